@@ -6,7 +6,9 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({ KeyServerTest.class, KVCacheTest.class, ThreadPoolTest.class,
-		TPCMasterTest.class })
+		TPCMasterTest.class, StripedLockTest.class, WireProtocolTest.class,
+		ConnectionPoolTest.class, SocketServerTest.class, SingleFlightTest.class,
+		KeyHashTest.class, HashRingTest.class, TPCMasterHandlerTest.class })
 public class AllTests {
 
 }
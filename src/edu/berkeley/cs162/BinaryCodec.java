@@ -0,0 +1,291 @@
+/**
+ * Compact binary encoding of messages
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Binary frames for KVMessage and TPCMessage:
+ *
+ * <pre>
+ * [byte MAGIC][int payload length][payload]
+ *
+ * payload: [byte type][byte flags][field]...
+ * </pre>
+ *
+ * type is an index into {@link #TYPES}, or 0 followed by the type as a string
+ * for anything else. flags says which fields follow, in the order key, value,
+ * message, TPC op id; each is an int length and that many bytes. Keys and 
+ * values that are Base64 (as made by {@link KVMessage#encodeObject(Object)}) 
+ * are sent as the raw bytes they encode and turned back into the same Base64 
+ * on arrival, so messages keep the exact strings they were built with. 
+ * Everything else is UTF-8.
+ *
+ * MAGIC can never start an XML document, which is how a receiver tells the 
+ * two formats apart.
+ */
+final class BinaryCodec {
+	static final int MAGIC = 0xCA;
+	// magic byte and payload length
+	static final int HEADER_SIZE = 5;
+
+	static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	private static final String[] TYPES = { null,
+		"getreq", "putreq", "delreq", "resp", "ready", "abort", "commit", "ack", 
+		"register", "ignoreNext", "getEnKey" };
+
+	private static final int KEY = 1;
+	private static final int KEY_RAW = 2;
+	private static final int VALUE = 4;
+	private static final int VALUE_RAW = 8;
+	private static final int MESSAGE = 16;
+	private static final int TPC_OP_ID = 32;
+
+	private BinaryCodec() {
+	}
+
+	/**
+	 * @param fields
+	 * @return the whole frame, magic byte included
+	 */
+	static byte[] write(MessageFields fields) {
+		byte[] key = null;
+		byte[] value = null;
+		int flags = 0;
+		if (fields.key != null) {
+			flags |= KEY;
+			key = rawBytes(fields.key);
+			if (key != null) {
+				flags |= KEY_RAW;
+			} else {
+				key = utf8(fields.key);
+			}
+		}
+		if (fields.value != null) {
+			flags |= VALUE;
+			value = rawBytes(fields.value);
+			if (value != null) {
+				flags |= VALUE_RAW;
+			} else {
+				value = utf8(fields.value);
+			}
+		}
+		if (fields.message != null) {
+			flags |= MESSAGE;
+		}
+		if (fields.tpcOpId != null) {
+			flags |= TPC_OP_ID;
+		}
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 
+					+ (key == null ? 0 : key.length) + (value == null ? 0 : value.length));
+			DataOutputStream out = new DataOutputStream(bytes);
+			// room for the header, filled in below
+			out.writeByte(MAGIC);
+			out.writeInt(0);
+			int type = typeCode(fields.msgType);
+			out.writeByte(type);
+			if (type == 0) {
+				writeBytes(out, fields.msgType == null ? null : utf8(fields.msgType));
+			}
+			out.writeByte(flags);
+			if (key != null) {
+				writeBytes(out, key);
+			}
+			if (value != null) {
+				writeBytes(out, value);
+			}
+			if (fields.message != null) {
+				writeBytes(out, utf8(fields.message));
+			}
+			if (fields.tpcOpId != null) {
+				writeBytes(out, utf8(fields.tpcOpId));
+			}
+			out.flush();
+
+			byte[] frame = bytes.toByteArray();
+			int length = frame.length - 5;
+			frame[1] = (byte) (length >>> 24);
+			frame[2] = (byte) (length >>> 16);
+			frame[3] = (byte) (length >>> 8);
+			frame[4] = (byte) length;
+			return frame;
+		} catch (IOException e) {
+			// writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads the rest of a frame whose magic byte has already been consumed
+	 * @param input
+	 * @return the fields of the message
+	 * @throws KVException if the frame is truncated or malformed
+	 * @throws SocketTimeoutException if the socket timed out while reading
+	 */
+	static MessageFields read(InputStream input) throws KVException, SocketTimeoutException {
+		DataInputStream in = new DataInputStream(input);
+		try {
+			int length = in.readInt();
+			if (length < 2 || length > MAX_FRAME_SIZE) {
+				throw new KVException(new KVMessage("Network Error: Received malformed binary message"));
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			return parse(payload);
+		} catch (SocketTimeoutException e) {
+			throw e;
+		} catch (EOFException e) {
+			throw new KVException(new KVMessage("Network Error: Received malformed binary message"));
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("Network Error: Could not receive data"));
+		}
+	}
+
+	private static MessageFields parse(byte[] payload) throws KVException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		MessageFields fields = new MessageFields();
+		try {
+			int type = in.readUnsignedByte();
+			if (type == 0) {
+				fields.msgType = string(readBytes(in));
+			} else if (type < TYPES.length) {
+				fields.msgType = TYPES[type];
+			} else {
+				throw new KVException(new KVMessage("Network Error: Received malformed binary message"));
+			}
+			int flags = in.readUnsignedByte();
+			if ((flags & KEY) != 0) {
+				byte[] key = readBytes(in);
+				fields.key = ((flags & KEY_RAW) != 0) ? DatatypeConverter.printBase64Binary(key) : string(key);
+			}
+			if ((flags & VALUE) != 0) {
+				byte[] value = readBytes(in);
+				fields.value = ((flags & VALUE_RAW) != 0) ? DatatypeConverter.printBase64Binary(value) : string(value);
+			}
+			if ((flags & MESSAGE) != 0) {
+				fields.message = string(readBytes(in));
+			}
+			if ((flags & TPC_OP_ID) != 0) {
+				fields.tpcOpId = string(readBytes(in));
+			}
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("Network Error: Received malformed binary message"));
+		}
+		return fields;
+	}
+
+	private static int typeCode(String msgType) {
+		for (int i = 1; i < TYPES.length; i++) {
+			if (TYPES[i].equals(msgType)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param field
+	 * @return the bytes a Base64 field encodes, or null if the field is not 
+	 * exactly the Base64 of those bytes
+	 */
+	private static byte[] rawBytes(String field) {
+		if (field.length() == 0 || field.length() % 4 != 0) {
+			return null;
+		}
+		byte[] raw;
+		try {
+			raw = DatatypeConverter.parseBase64Binary(field);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (!DatatypeConverter.printBase64Binary(raw).equals(field)) {
+			return null;
+		}
+		return raw;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * @param in wraps the payload of a frame, which is already in memory
+	 * @return the next field, or null if it was left out
+	 * @throws KVException if the field is longer than the rest of the frame
+	 */
+	private static byte[] readBytes(DataInputStream in) throws IOException, KVException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > in.available()) {
+			// checked before allocating, as the length comes off the wire
+			throw new KVException(new KVMessage("Network Error: Received malformed binary message"));
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String string(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
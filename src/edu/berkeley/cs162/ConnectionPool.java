@@ -0,0 +1,326 @@
+/**
+ * Bounded pool of long-lived connections to one server
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * Connections to one server, shared by the threads that talk to it. A
+ * connection is taken with {@link #borrow()} and given back through
+ * {@link WireProtocol#recycle(Socket)} once its reply has been read; a
+ * connection that is closed instead simply stops counting against the pool.
+ *
+ * At most maxConnections sockets are open at once (borrowers wait for one
+ * to come back), and at most maxIdle of them are kept between requests.
+ * Idle connections are closed after idleTimeout, which is shorter than the
+ * server's own idle timeout so that the client normally closes first. A
+ * connection that sat idle for longer than checkAfter is probed before it is
+ * handed out. If the server closed one anyway, a request that could not be 
+ * written is sent again by {@link WireProtocol#receiveReply(Socket, MessageFields)}
+ * on a new connection from the same pool; one that was written reports the 
+ * lost reply to its caller instead.
+ */
+class ConnectionPool {
+	public static final int UNBOUNDED = Integer.MAX_VALUE;
+	public static final int DEFAULT_MAX_IDLE = 16;
+	public static final int DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+	public static final int DEFAULT_CHECK_AFTER = 5 * 1000;
+
+	// how long a borrower waits before looking for closed sockets again
+	private static final int WAIT_MILLISECONDS = 50;
+
+	private static class IdleConnection {
+		final Socket socket;
+		final long since;
+
+		IdleConnection(Socket socket) {
+			this.socket = socket;
+			this.since = System.currentTimeMillis();
+		}
+	}
+
+	private final String host;
+	private final int port;
+	private final int maxConnections;
+	private final int maxIdle;
+	private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private int checkAfter = DEFAULT_CHECK_AFTER;
+
+	// all guarded by this; the most recently used connection is first
+	private final LinkedList<IdleConnection> idle = new LinkedList<IdleConnection>();
+	private final Set<Socket> open = new HashSet<Socket>();
+	// connections being opened outside the lock
+	private int opening = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param maxConnections bound on open connections, or UNBOUNDED
+	 * @param maxIdle bound on connections kept between requests
+	 */
+	public ConnectionPool(String host, int port, int maxConnections, int maxIdle) {
+		if (maxConnections <= 0 || maxIdle < 0) {
+			throw new IllegalArgumentException("ConnectionPool needs room for a connection");
+		}
+		this.host = host;
+		this.port = port;
+		this.maxConnections = maxConnections;
+		this.maxIdle = Math.min(maxIdle, maxConnections);
+	}
+
+	/**
+	 * @param idleTimeout milliseconds an idle connection is kept
+	 * @param checkAfter milliseconds of idleness after which a connection is
+	 * probed before it is reused
+	 */
+	public synchronized void setTimeouts(int idleTimeout, int checkAfter) {
+		this.idleTimeout = idleTimeout;
+		this.checkAfter = checkAfter;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Takes an idle connection, or opens a new one if the pool has room, or
+	 * waits for one to be given back
+	 * @return a connected socket
+	 * @throws IOException if a new connection cannot be opened
+	 */
+	public Socket borrow() throws IOException {
+		while (true) {
+			IdleConnection candidate = null;
+			synchronized (this) {
+				evictIdle();
+				candidate = idle.poll();
+				if (candidate == null) {
+					if (hasRoom()) {
+						break;
+					}
+					try {
+						wait(WAIT_MILLISECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for a connection");
+					}
+					continue;
+				}
+			}
+			if (System.currentTimeMillis() - candidate.since < checkAfter || isHealthy(candidate.socket)) {
+				WireProtocol.markReused(candidate.socket);
+				return candidate.socket;
+			}
+			discard(candidate.socket);
+		}
+		return connect();
+	}
+
+	/**
+	 * Opens a new connection, bypassing the idle ones (for a request that
+	 * failed on a reused connection)
+	 * @return a connected socket
+	 * @throws IOException
+	 */
+	public Socket open() throws IOException {
+		synchronized (this) {
+			while (!hasRoom()) {
+				try {
+					wait(WAIT_MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for a connection");
+				}
+			}
+		}
+		return connect();
+	}
+
+	/**
+	 * Called with the lock held. Reserves a slot for a new connection if
+	 * fewer than maxConnections are open.
+	 */
+	private boolean hasRoom() {
+		if (open.size() + opening >= maxConnections) {
+			pruneClosed();
+		}
+		if (open.size() + opening >= maxConnections) {
+			return false;
+		}
+		opening++;
+		return true;
+	}
+
+	/**
+	 * Opens a connection in a slot reserved by hasRoom()
+	 */
+	private Socket connect() throws IOException {
+		Socket socket = null;
+		try {
+			socket = new Socket(host, port);
+			WireProtocol.attach(socket, this);
+			return socket;
+		} finally {
+			synchronized (this) {
+				opening--;
+				if (socket != null) {
+					open.add(socket);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Keeps a connection for the next borrower. Called by WireProtocol for a
+	 * connection that can carry another request.
+	 * @param socket
+	 */
+	void giveBack(Socket socket) {
+		synchronized (this) {
+			if (!closed && !socket.isClosed() && idle.size() < maxIdle && open.contains(socket)) {
+				idle.addFirst(new IdleConnection(socket));
+				evictIdle();
+				notifyAll();
+				return;
+			}
+		}
+		discard(socket);
+	}
+
+	/**
+	 * Closes a connection and frees its slot
+	 * @param socket
+	 */
+	void discard(Socket socket) {
+		WireProtocol.closeQuietly(socket);
+		synchronized (this) {
+			open.remove(socket);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Called with the lock held. Closes connections idle for longer than
+	 * idleTimeout; those are at the end of the list.
+	 */
+	private void evictIdle() {
+		long oldest = System.currentTimeMillis() - idleTimeout;
+		while (!idle.isEmpty() && idle.getLast().since < oldest) {
+			Socket socket = idle.removeLast().socket;
+			WireProtocol.closeQuietly(socket);
+			open.remove(socket);
+		}
+	}
+
+	/**
+	 * A connection the server has closed reads end of stream right away; a
+	 * healthy one has nothing to read, since its last reply was read in full.
+	 */
+	private static boolean isHealthy(Socket socket) {
+		if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+			return false;
+		}
+		int timeout;
+		try {
+			timeout = socket.getSoTimeout();
+		} catch (SocketException e) {
+			return false;
+		}
+		try {
+			socket.setSoTimeout(1);
+			socket.getInputStream().read();
+			// end of stream, or bytes nobody asked for
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.setSoTimeout(timeout);
+			} catch (SocketException e) {
+				// the next read fails and the request is resent
+			}
+		}
+	}
+
+	/**
+	 * @return the number of connections kept between requests
+	 */
+	public synchronized int idleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * @return the number of open connections, idle or in use
+	 */
+	public synchronized int openCount() {
+		pruneClosed();
+		return open.size();
+	}
+
+	/**
+	 * Called with the lock held. A slot is freed when its socket is closed,
+	 * wherever that happened.
+	 */
+	private void pruneClosed() {
+		Iterator<Socket> sockets = open.iterator();
+		while (sockets.hasNext()) {
+			if (sockets.next().isClosed()) {
+				sockets.remove();
+			}
+		}
+	}
+
+	/**
+	 * Closes the idle connections; connections in use are closed when they
+	 * come back
+	 */
+	public synchronized void close() {
+		closed = true;
+		while (!idle.isEmpty()) {
+			Socket socket = idle.removeFirst().socket;
+			WireProtocol.closeQuietly(socket);
+			open.remove(socket);
+		}
+		notifyAll();
+	}
+}
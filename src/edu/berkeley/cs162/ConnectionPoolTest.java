@@ -0,0 +1,90 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+	// tests that a pool never has more than its bound of connections open
+	@Test
+	public void testBounded() throws Exception {
+		Set<Socket> seen = Collections.synchronizedSet(new HashSet<Socket>());
+		SocketServer server = WireProtocolTest.startEchoServer(seen);
+		final ConnectionPool pool = new ConnectionPool(server.getHostname(), server.getPort(), 2, 2);
+		Socket first = pool.borrow();
+		Socket second = pool.borrow();
+		assertEquals(2, pool.openCount());
+
+		final Socket[] third = new Socket[1];
+		Thread borrower = new Thread() {
+			public void run() {
+				try {
+					third[0] = pool.borrow();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		borrower.start();
+		borrower.join(200);
+		assertTrue(borrower.isAlive());
+
+		assertEquals("key", WireProtocolTest.echo(first, "key"));
+		borrower.join(1000);
+		assertFalse(borrower.isAlive());
+		assertSame(first, third[0]);
+		assertEquals(2, pool.openCount());
+
+		WireProtocolTest.echo(second, "key");
+		WireProtocolTest.echo(third[0], "key");
+		assertEquals(2, pool.idleCount());
+		pool.close();
+		assertEquals(0, pool.openCount());
+		server.server.close();
+	}
+
+	// tests that idle connections are closed after the idle timeout
+	@Test
+	public void testIdleEviction() throws Exception {
+		Set<Socket> seen = Collections.synchronizedSet(new HashSet<Socket>());
+		SocketServer server = WireProtocolTest.startEchoServer(seen);
+		ConnectionPool pool = new ConnectionPool(server.getHostname(), server.getPort(), 4, 4);
+		pool.setTimeouts(100, ConnectionPool.DEFAULT_CHECK_AFTER);
+		Socket connection = pool.borrow();
+		WireProtocolTest.echo(connection, "key");
+		assertEquals(1, pool.idleCount());
+		Thread.sleep(300);
+
+		Socket next = pool.borrow();
+		assertNotSame(connection, next);
+		assertTrue(connection.isClosed());
+		assertEquals(1, pool.openCount());
+		WireProtocolTest.echo(next, "key");
+		server.server.close();
+	}
+
+	// tests that a connection the server closed is found before it is handed out
+	@Test
+	public void testHealthCheck() throws Exception {
+		Set<Socket> seen = Collections.synchronizedSet(new HashSet<Socket>());
+		SocketServer server = WireProtocolTest.startEchoServer(seen);
+		server.setIdleTimeout(100);
+		ConnectionPool pool = new ConnectionPool(server.getHostname(), server.getPort(), 4, 4);
+		pool.setTimeouts(ConnectionPool.DEFAULT_IDLE_TIMEOUT, 0);
+		Socket connection = pool.borrow();
+		WireProtocolTest.echo(connection, "key");
+		Thread.sleep(300);
+
+		Socket next = pool.borrow();
+		assertNotSame(connection, next);
+		assertEquals("again", WireProtocolTest.echo(next, "again"));
+		assertEquals(2, seen.size());
+		server.server.close();
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * Immutable snapshot of a consistent-hash ring
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent-hash ring that never changes once built. The tokens are kept
+ * as a sorted array, so a lookup is a binary search that takes no lock; a 
+ * change of membership builds a new ring, which the owner publishes through 
+ * a volatile field. Membership changes rarely, lookups happen on every 
+ * request.
+ *
+ * Positions are compared as signed longs. Each member owns one or more 
+ * tokens, and a key belongs to the owner of the first token at or after its 
+ * position, wrapping around past the last one.
+ *
+ * @param <T> type of the members
+ */
+final class HashRing<T> {
+	private final long[] positions;
+	private final List<T> owners;
+	private final Map<Long, T> members;
+
+	private HashRing(long[] positions, List<T> owners, Map<Long, T> members) {
+		this.positions = positions;
+		this.owners = owners;
+		this.members = members;
+	}
+
+	/**
+	 * @return a ring without members
+	 */
+	static <T> HashRing<T> empty() {
+		return new HashRing<T>(new long[0], Collections.<T>emptyList(), Collections.<Long, T>emptyMap());
+	}
+
+	/**
+	 * Position of one token of a member. Token 0 is the ID itself, so with 
+	 * one token per member each sits at its ID; the others are spread by the
+	 * SplitMix64 finalizer.
+	 * @param id
+	 * @param token
+	 * @return
+	 */
+	static long tokenPosition(long id, int token) {
+		if (token == 0) {
+			return id;
+		}
+		long z = id + token * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Builds the ring with a member added, or replaced if one with this ID is
+	 * already on it. A token position held by another member is left to it.
+	 * @param id
+	 * @param member
+	 * @param tokens number of tokens of the member, at least 1
+	 * @return the new ring; this one is unchanged
+	 */
+	HashRing<T> withMember(long id, T member, int tokens) {
+		T old = members.get(id);
+		TreeMap<Long, T> ring = new TreeMap<Long, T>();
+		for (int i = 0; i < positions.length; i++) {
+			if (owners.get(i) != old) {
+				ring.put(positions[i], owners.get(i));
+			}
+		}
+		for (int i = 0; i < tokens; i++) {
+			long position = tokenPosition(id, i);
+			if (!ring.containsKey(position)) {
+				ring.put(position, member);
+			}
+		}
+		long[] newPositions = new long[ring.size()];
+		List<T> newOwners = new ArrayList<T>(ring.size());
+		int i = 0;
+		for (Map.Entry<Long, T> token : ring.entrySet()) {
+			newPositions[i++] = token.getKey();
+			newOwners.add(token.getValue());
+		}
+		Map<Long, T> newMembers = new HashMap<Long, T>(members);
+		newMembers.put(id, member);
+		return new HashRing<T>(newPositions, Collections.unmodifiableList(newOwners), 
+				Collections.unmodifiableMap(newMembers));
+	}
+
+	/**
+	 * @param id
+	 * @return the member with this ID, or null
+	 */
+	T member(long id) {
+		return members.get(id);
+	}
+
+	/**
+	 * @return the number of distinct members
+	 */
+	int memberCount() {
+		return members.size();
+	}
+
+	/**
+	 * @return the number of tokens on the ring
+	 */
+	int tokenCount() {
+		return positions.length;
+	}
+
+	/**
+	 * Finds the members that store a key: the owner of the key's position,
+	 * then the owners of the following tokens that are not on the list yet.
+	 * @param position position of the key
+	 * @param count number of distinct members wanted
+	 * @return up to count members in ring order; fewer if the ring has fewer
+	 */
+	List<T> replicas(long position, int count) {
+		List<T> replicas = new ArrayList<T>(count);
+		if (positions.length == 0) {
+			return replicas;
+		}
+		int first = Arrays.binarySearch(positions, position);
+		if (first < 0) {
+			// not a token itself; start at the next one
+			first = -first - 1;
+		}
+		int wanted = Math.min(count, members.size());
+		for (int i = 0; i < positions.length && replicas.size() < wanted; i++) {
+			T owner = owners.get((first + i) % positions.length);
+			if (!replicas.contains(owner)) {
+				replicas.add(owner);
+			}
+		}
+		return replicas;
+	}
+}
@@ -0,0 +1,80 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HashRingTest {
+
+	// tests lookups on a ring with one token per member, including the wrap-around
+	@Test
+	public void testSingleTokens() {
+		HashRing<String> ring = HashRing.<String>empty();
+		assertTrue(ring.replicas(42L, 2).isEmpty());
+		ring = ring.withMember(100L, "a", 1).withMember(200L, "b", 1).withMember(300L, "c", 1);
+		assertEquals(Arrays.asList("a", "b"), ring.replicas(50L, 2));
+		assertEquals(Arrays.asList("a", "b"), ring.replicas(100L, 2));
+		assertEquals(Arrays.asList("b", "c"), ring.replicas(101L, 2));
+		assertEquals(Arrays.asList("c", "a"), ring.replicas(250L, 2));
+		assertEquals(Arrays.asList("a", "b"), ring.replicas(301L, 2));
+		assertEquals(Arrays.asList("a", "b", "c"), ring.replicas(Long.MIN_VALUE, 5));
+		assertEquals(3, ring.memberCount());
+		assertEquals("b", ring.member(200L));
+	}
+
+	// tests that the replicas of a key are always distinct members
+	@Test
+	public void testDistinctReplicas() {
+		HashRing<String> ring = HashRing.<String>empty()
+				.withMember(1L, "a", 64).withMember(2L, "b", 64).withMember(3L, "c", 64);
+		assertEquals(192, ring.tokenCount());
+		for (long position = -1000000L; position < 1000000L; position += 997) {
+			List<String> replicas = ring.replicas(position * 9223372036854L, 2);
+			assertEquals(2, replicas.size());
+			assertFalse(replicas.get(0).equals(replicas.get(1)));
+		}
+		HashRing<String> alone = HashRing.<String>empty().withMember(1L, "a", 64);
+		assertEquals(Arrays.asList("a"), alone.replicas(5L, 2));
+	}
+
+	// tests that many tokens even out hand-picked IDs, and that weights are honoured
+	@Test
+	public void testVirtualNodesAndWeights() {
+		HashRing<String> ring = HashRing.<String>empty()
+				.withMember(100L, "a", 256).withMember(9000000000000000000L, "b", 256)
+				.withMember(200L, "big", 512);
+		Map<String, Integer> owned = new HashMap<String, Integer>();
+		int keys = 40000;
+		Murmur3KeyHash hash = new Murmur3KeyHash();
+		for (int i = 0; i < keys; i++) {
+			String owner = ring.replicas(hash.hash("key" + i), 1).get(0);
+			Integer count = owned.get(owner);
+			owned.put(owner, (count == null) ? 1 : count + 1);
+		}
+		// a quarter, a quarter and a half, give or take
+		assertTrue(owned.get("a") > keys / 5 && owned.get("a") < keys * 3 / 10);
+		assertTrue(owned.get("b") > keys / 5 && owned.get("b") < keys * 3 / 10);
+		assertTrue(owned.get("big") > keys * 2 / 5 && owned.get("big") < keys * 3 / 5);
+	}
+
+	// tests that a new snapshot replaces a member without touching the old one
+	@Test
+	public void testCopyOnWrite() {
+		HashRing<String> before = HashRing.<String>empty().withMember(100L, "a", 4).withMember(200L, "b", 4);
+		HashRing<String> after = before.withMember(100L, "a2", 2);
+		assertEquals("a", before.member(100L));
+		assertEquals(8, before.tokenCount());
+		assertEquals("a2", after.member(100L));
+		assertEquals(6, after.tokenCount());
+		assertEquals(2, after.memberCount());
+		assertEquals("a2", after.replicas(100L, 1).get(0));
+		for (long position = -1000L; position < 1000L; position++) {
+			assertFalse(after.replicas(position * 9223372036854775L, 2).contains("a"));
+		}
+	}
+}
@@ -28,30 +28,39 @@
 package edu.berkeley.cs162;
 
 import java.io.Serializable;
-import java.util.Hashtable;
-import java.util.LinkedList;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An LRU cache which has a fixed maximum number of elements (cacheSize).
  * If the cache is full and another entry is added, the LRU (least recently used) entry is dropped.
+ * 
+ * Entries are kept in an access-ordered LinkedHashMap, so promoting an entry on a hit and
+ * evicting the LRU entry are both O(1). A single lock guards the map, because in access order
+ * even a get() relinks the entry to the tail of the list.
  */
 public class KVCache<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V>{
 	private int cacheSize;
-	private Hashtable<K, V> cacheStructure;
-	private LinkedList<K> orderAccessed;
-	private Hashtable<K, ReentrantReadWriteLock> accessLocks;
+	private LinkedHashMap<K, V> cacheStructure;
+	private ReentrantLock cacheLock;
 	
 	/**
 	 * Creates a new LRU cache.
 	 * @param cacheSize the maximum number of entries that will be kept in this cache.
 	 */
 	public KVCache (int cacheSize) {
-		// implement me
 		this.cacheSize = cacheSize;
-		cacheStructure = new Hashtable<K, V>();
-		orderAccessed = new LinkedList<K>();
-		accessLocks = new Hashtable<K, ReentrantReadWriteLock>();
+		cacheLock = new ReentrantLock();
+		// accessOrder = true: iteration order runs from LRU to MRU
+		cacheStructure = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > KVCache.this.cacheSize;
+			}
+		};
 	}
 
 	/**
@@ -61,19 +70,11 @@ public class KVCache<K extends Serializable, V extends Serializable> implements
 	 * @return the value associated to this key, or null if no value with this key exists in the cache.
 	 */
 	public V get (K key) {
-		// implement me
-		if (accessLocks.get(key) == null) { return null; }
-		
-		accessLocks.get(key).readLock().lock();
-		V tempValue = cacheStructure.get(key);
-		accessLocks.get(key).readLock().unlock();
-		if ( tempValue == null ) { return null; }
-		else {
-			accessLocks.get(key).writeLock().lock();
-			orderAccessed.remove( key );
-			orderAccessed.addFirst( key );
-			accessLocks.get(key).writeLock().unlock();
-			return tempValue;
+		cacheLock.lock();
+		try {
+			return cacheStructure.get(key);
+		} finally {
+			cacheLock.unlock();
 		}
 	}
 
@@ -84,31 +85,19 @@ public class KVCache<K extends Serializable, V extends Serializable> implements
 	 * If the cache is full, the LRU (least recently used) entry is removed from the cache.
 	 * @param key    the key with which the specified value is to be associated.
 	 * @param value  a value to be associated with the specified key.
-	 * @return 
+	 * @return whether an entry with this key was already in the cache
 	 */
 	public boolean put (K key, V value) {
-		// implement me
-		if (accessLocks.get(key) == null) { 
-			accessLocks.put(key, new ReentrantReadWriteLock()); 
-		}
-		
-		accessLocks.get(key).writeLock().lock();
-		if (get(key) != null) { 
-			if (get(key) == value) { return true; }
-			orderAccessed.remove( key );
-			orderAccessed.addFirst( key );
-			cacheStructure.remove( key );
-			cacheStructure.put( key, value);
-			accessLocks.get(key).writeLock().unlock();
-			return true;
-		}
-		if ( (orderAccessed.size() + 1) > cacheSize ) {
-			del( orderAccessed.removeLast() );
+		if (cacheSize <= 0) { return false; }
+		cacheLock.lock();
+		try {
+			// replacing an existing mapping also moves it to the MRU end
+			boolean existed = cacheStructure.containsKey(key);
+			cacheStructure.put(key, value);
+			return existed;
+		} finally {
+			cacheLock.unlock();
 		}
-		orderAccessed.addFirst( key );
-		cacheStructure.put( key, value);
-		accessLocks.get(key).writeLock().unlock();
-		return false;
 	}
 
 	/**
@@ -116,13 +105,35 @@ public class KVCache<K extends Serializable, V extends Serializable> implements
 	 * @param key the key with which the specified value is to be associated.
 	 */
 	public void del (K key) {
-		// implement me
-		if (accessLocks.get(key) == null) return;
-		
-		accessLocks.get(key).writeLock().lock();
-		orderAccessed.remove( key );
-		cacheStructure.remove( key );
-		accessLocks.get(key).writeLock().unlock();
-		accessLocks.remove(key);
+		cacheLock.lock();
+		try {
+			cacheStructure.remove(key);
+		} finally {
+			cacheLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes every entry from this cache.
+	 */
+	public void clear () {
+		cacheLock.lock();
+		try {
+			cacheStructure.clear();
+		} finally {
+			cacheLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of entries currently in the cache
+	 */
+	public int size () {
+		cacheLock.lock();
+		try {
+			return cacheStructure.size();
+		} finally {
+			cacheLock.unlock();
+		}
 	}
 } // end class LRUCache
@@ -32,13 +32,13 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintWriter;
 import java.io.Serializable;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -95,12 +95,10 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 	}
 	
 	private KVMessage sendRecieve(KVMessage message) throws KVException {
-		String xmlFile = message.toXML();
+		MessageFields request = MessageFields.of(message);
 		Socket connection;
-		PrintWriter out = null;
-		InputStream in = null;
 		try {
-			connection = new Socket(server, port);
+			connection = WireProtocol.connect(server, port);
 		} catch (UnknownHostException e) {
 			throw new KVException(new KVMessage("Network Error: Could not connect"));
 		} catch (IOException e) {
@@ -110,28 +108,23 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 		try {
 			connection.setSoTimeout(0);
 		} catch (SocketException e1) {
+			WireProtocol.closeQuietly(connection);
 			throw new KVException(new KVMessage("Unknown Error: Could net set Socket timeout"));
 		}
 		try {
-			out = new PrintWriter(connection.getOutputStream(),true);
-			out.println(xmlFile);
-			connection.shutdownOutput();
+			WireProtocol.send(connection, request);
 		} catch (IOException e) {
+			WireProtocol.closeQuietly(connection);
 			throw new KVException(new KVMessage("Network Error: Could not send data"));
 		}
 		try {
-			in = connection.getInputStream();
-			message = new KVMessage(in);
-			in.close();
+			message = new KVMessage(WireProtocol.receiveReply(connection, request));
 		} catch (IOException e) {
+			WireProtocol.closeQuietly(connection);
 			throw new KVException(new KVMessage("Network Error: Could not receive data"));
 		}
-		out.close();
-		try {
-			connection.close();
-		} catch (IOException e) {
-			throw new KVException(new KVMessage("Unknown Error: Could not close socket"));
-		}
+		// keeps the connection open for the next request if the server allows it
+		WireProtocol.recycle(connection);
 		return message;
 	}
 	
@@ -146,19 +139,7 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 			if( ((String) value).isEmpty()) throw new KVException(new KVMessage("Empty value"));
 		}
 		String keyString = KVMessage.encodeObject(key);
-		String valueString = KVMessage.encodeObject(value);
-		try {
-			valueString = KVMessage.encodeObject(crypt.encrypt(valueString));
-		} catch (InvalidKeyException e) {
-			// TODO What should we do if encryption breaks?
-			e.printStackTrace();
-		} catch (BadPaddingException e) {
-			// TODO What should we do if encryption breaks?
-			e.printStackTrace();
-		} catch (IllegalBlockSizeException e) {
-			// TODO What should we do if encryption breaks?
-			e.printStackTrace();
-		}
+		String valueString = encryptValue(value);
 		if (keyString.isEmpty()) throw new KVException(new KVMessage("Empty key"));
 		if (valueString.isEmpty()) throw new KVException(new KVMessage("Empty value"));
 
@@ -176,6 +157,23 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 		return false;
 	}
 
+	private String encryptValue(V value) throws KVException {
+		String valueString = KVMessage.encodeObject(value);
+		try {
+			valueString = KVMessage.encodeObject(crypt.encrypt(valueString));
+		} catch (InvalidKeyException e) {
+			// TODO What should we do if encryption breaks?
+			e.printStackTrace();
+		} catch (BadPaddingException e) {
+			// TODO What should we do if encryption breaks?
+			e.printStackTrace();
+		} catch (IllegalBlockSizeException e) {
+			// TODO What should we do if encryption breaks?
+			e.printStackTrace();
+		}
+		return valueString;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public V get(K key) throws KVException {
@@ -221,6 +219,39 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 		if (!"Success".equals(message.getMessage())) throw new KVException(new KVMessage(message.getMessage()));
 	}
 	
+	/**
+	 * Applies the puts and deletes of a transaction in one round trip. 
+	 * Either all of them take effect or, if any of them fails (e.g. a delete 
+	 * of a key that does not exist), none of them does.
+	 * @param transaction
+	 * @throws KVException with the reasons the SlaveServers aborted
+	 */
+	public void commit(KVTransaction<K, V> transaction) throws KVException {
+		if (transaction.size() == 0) return;
+		List<KVMessage> mutations = new ArrayList<KVMessage>(transaction.size());
+		for (int i = 0; i < transaction.size(); i++) {
+			K key = transaction.getKey(i);
+			V value = transaction.getValue(i);
+			if (key == null) throw new KVException(new KVMessage("Empty key"));
+			if (key instanceof String) {
+				if( ((String) key).isEmpty()) throw new KVException(new KVMessage("Empty key"));
+			}
+			if (value instanceof String) {
+				if( ((String) value).isEmpty()) throw new KVException(new KVMessage("Empty value"));
+			}
+			String keyString = KVMessage.encodeObject(key);
+			if (value == null) {
+				mutations.add(new KVMessage("delreq", keyString));
+			} else {
+				mutations.add(new KVMessage("putreq", keyString, encryptValue(value)));
+			}
+		}
+		KVMessage message = new KVMessage("txnreq", null, TPCMessage.encodeBatch(mutations));
+		message = sendRecieve(message);
+		if (!message.getMsgType().equals("resp")) throw new KVException(new KVMessage("Unknown Error: response xml not a response!!"));
+		if (!"Success".equals(message.getMessage())) throw new KVException(new KVMessage(message.getMessage()));
+	}
+
 	public void ignoreNext(Long slaveID) throws KVException {
 		KVMessage message = new KVMessage("ignoreNext", slaveID.toString());
 		message = sendRecieve(message);
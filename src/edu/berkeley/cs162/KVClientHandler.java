@@ -37,6 +37,7 @@ import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections. 
@@ -45,7 +46,7 @@ import java.net.Socket;
  * @param <K> Java Generic type for the Key
  * @param <V> Java Generic type for the Value
  */
-public class KVClientHandler<K extends Serializable, V extends Serializable> implements NetworkHandler {
+public class KVClientHandler<K extends Serializable, V extends Serializable> implements FramedNetworkHandler {
 	// private KeyServer<K, V> keyserver = null;
 	private ThreadPool threadpool = null;	
 	private TPCMaster<K, V> tpcMaster = null;
@@ -58,6 +59,16 @@ public class KVClientHandler<K extends Serializable, V extends Serializable> imp
 		initialize(connections, master);
 	}
 
+	/**
+	 * @param threadpool runs the requests; if it is bounded with the FAIL 
+	 * policy, requests that do not fit are answered with ThreadPool.BUSY
+	 * @param master
+	 */
+	public KVClientHandler(ThreadPool threadpool, TPCMaster<K,V> master) {
+		this.threadpool = threadpool;
+		this.tpcMaster = master;
+	}
+
 	private void initialize(int connections, TPCMaster<K,V> master) {
 		//this.keyserver = keyserver;
 		this.threadpool = new ThreadPool(connections);	
@@ -102,6 +113,9 @@ public class KVClientHandler<K extends Serializable, V extends Serializable> imp
 		} catch (InterruptedException e) {
 			KVMessage.sendMessage(client, new KVMessage("Unknown Error: InterruptedException from the threadpool"));
 			return;
+		} catch (RejectedExecutionException e) {
+			KVMessage.sendMessage(client, new KVMessage(e.getMessage()));
+			return;
 		}
 	}
 }
@@ -125,12 +139,6 @@ class processMessageRunnable<K extends Serializable, V extends Serializable> imp
 				value = tpcMaster.handleGet(mess);
 			} catch (KVException e) {
 				KVMessage.sendMessage(client, e.getMsg());
-				try {
-					client.close();
-				} catch (IOException e2) {
-					// These ones don't send errors, this is a server error
-					e2.printStackTrace();
-				}
 				return;
 			}
 
@@ -141,7 +149,7 @@ class processMessageRunnable<K extends Serializable, V extends Serializable> imp
 
 			KVMessage.sendMessage(client, message);
 
-			// client will be closed at the end
+			// sendMessage hands the client back to the SocketServer
 
 		} else if ("getEnKey".equals(mess.getMsgType())){
 			KVMessage message = null;
@@ -153,38 +161,42 @@ class processMessageRunnable<K extends Serializable, V extends Serializable> imp
 
 			KVMessage.sendMessage(client, message);	
 
-			// client will be closed at the end
+			// sendMessage hands the client back to the SocketServer
 
 
-		} else if (mess.getMsgType().equals("putreq") || mess.getMsgType().equals("delreq")) {
+		} else if (mess.getMsgType().equals("putreq") || mess.getMsgType().equals("delreq")
+				|| mess.getMsgType().equals("txnreq")) {
 			boolean isPutReq = mess.getMsgType().equals("putreq");
+			// answer as soon as the outcome is known, rather than when the 
+			// last replica acknowledges the decision
+			final Socket replyTo = client;
+			TPCMaster.Outcome outcome = new TPCMaster.Outcome() {
+				public void committed() {
+					KVMessage message = new KVMessage("Success");
+					KVMessage.sendMessage(replyTo, message);
+				}
+
+				public void aborted(KVException reason) {
+					KVMessage.sendMessage(replyTo, reason.getMsg());
+				}
+			};
 			try {
-				tpcMaster.performTPCOperation(mess, isPutReq);
+				if (mess.getMsgType().equals("txnreq")) {
+					tpcMaster.performTransaction(mess, outcome);
+				} else {
+					tpcMaster.performTPCOperation(mess, isPutReq, outcome);
+				}
 			} catch (KVException e) {
 				KVMessage.sendMessage(client, e.getMsg());
-				try {
-					client.close();
-				} catch (IOException e2) {
-					// These ones don't send errors, this is a server error
-					e2.printStackTrace();
-				}
 				return;
 			}
-			KVMessage message = new KVMessage("Success");
-			KVMessage.sendMessage(client, message);
 
-			// client will be closed at the end
+			// sendMessage hands the client back to the SocketServer
 
 		} else {
 			System.err.println("processMessageRunnable called with bad message");
 			TPCMaster.exit();
 		}
-		try {
-			client.close();
-		} catch (IOException e) {
-			// These ones don't send errors, this is a server error
-			e.printStackTrace();
-		}
 		/*
 		KVMessage message = null;
 		try {
@@ -31,30 +31,16 @@ package edu.berkeley.cs162;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 
-import org.w3c.dom.*;
-
 import javax.xml.bind.DatatypeConverter;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.xml.sax.SAXException;
-
-import javax.xml.transform.*;
-import javax.xml.transform.dom.*;
-import javax.xml.transform.stream.*;
 
 
 /**
@@ -80,9 +66,6 @@ public class KVMessage{
 		this.value = value;
 	}
 	
-	// added by luke
-	Text text;
-	
 	// key or ignoreNext
 	public KVMessage(String msgType, String keyORslaveID) {
 		this.msgType = msgType;
@@ -144,75 +127,19 @@ public class KVMessage{
 		return (value == null| value.length() == 0 | value.isEmpty());
 	}
 	
-	/* Hack for ensuring XML libraries does not close input stream by default.
-	 * Solution from http://weblogs.java.net/blog/kohsuke/archive/2005/07/socket_xml_pitf.html */
-	private class NoCloseInputStream extends FilterInputStream {
-	    public NoCloseInputStream(InputStream in) {
-	        super(in);
-	    }
-	    
-	    public void close() {} // ignore close
-	}
-	
-	public String getElementsTag (String tag, Element x){
-		NodeList nodeList = x.getElementsByTagName(tag);
-		if (nodeList.getLength() != 0){ 
-			return getTagValue(tag, x);
-		} else {
-			return null;
-		}
-	}
-
-	  private static String getTagValue(String sTag, Element eElement) {
-			NodeList nlList = eElement.getElementsByTagName(sTag).item(0).getChildNodes();
-		 
-		        Node nValue = (Node) nlList.item(0);
-		 
-			return nValue.getNodeValue();
-		  }
-
-	
 	/**
-	 * Sites used:
-	 * http://www.developerfusion.com/code/2064/a-simple-way-to-read-an-xml-file-in-java/
-	 * http://www.mkyong.com/java/how-to-read-xml-file-in-java-dom-parser/
+	 * Parses a message off the stream, in either wire format
 	 * @param input
 	 */	
 	public KVMessage(InputStream input) throws KVException, SocketTimeoutException{
-			DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder docBuilder;
-			try {
-				docBuilder = docBuilderFactory.newDocumentBuilder();
-			} catch (ParserConfigurationException e) {
-				throw new KVException(new KVMessage("Unknown Error: Invalid parser config"));
-			}
-			Document doc = null;
-			try {
-				doc = docBuilder.parse(new NoCloseInputStream(input));
-			} catch (SocketTimeoutException e){
-				throw e;
-			} catch (SAXException e) {
-				throw new KVException(new KVMessage("XML Error: Received unparseable message"));
-			} catch (IOException e) {
-				e.printStackTrace();
-				throw new KVException(new KVMessage("XML Error: Received unparseable message"));
-			}
-			
-			doc.getDocumentElement().normalize();
-			
-			// messageList should be a NodeList with only ONE Node
-			NodeList typeList = doc.getElementsByTagName("KVMessage");
-			
-			Node typeNode = typeList.item(0);
-			Element typeElement = (Element) typeNode;
-
-			msgType = typeElement.getAttribute("type");
-			
-			key = getElementsTag("Key", typeElement);
-
-			value = getElementsTag("Value", typeElement);
-
-			message = getElementsTag("Message", typeElement);
+		this(WireProtocol.read(input));
+	}
+	
+	KVMessage(MessageFields fields) {
+		msgType = fields.msgType;
+		key = fields.key;
+		value = fields.value;
+		message = fields.message;
 	}
 	
 	/**
@@ -220,95 +147,7 @@ public class KVMessage{
 	 * @return the XML String
 	 */
 	public String toXML() throws KVException{
-		String rtn = null;
-			/////////////////////////////
-            //Creating an empty XML Document
-            //We need a Document
-            DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
-            DocumentBuilder docBuilder = null;
-			try {
-				docBuilder = dbfac.newDocumentBuilder();
-			} catch (ParserConfigurationException e) {
-				e.printStackTrace();
-				throw new KVException(new KVMessage("Unknown Error: Error occured duringf XML creation"));
-			}
-            Document doc = docBuilder.newDocument();
-
-        	/////////////////////////////
-            //Creating the XML tree
-            //create the root element and add it to the document
-            Element root = doc.createElement("KVMessage");
-            doc.appendChild(root);
-            root.setAttribute("type", msgType);
-            
-
-            if (key != null){
-            	//create child element, add an attribute, and add to root
-            	Element keyElement = doc.createElement("Key");
-            	root.appendChild(keyElement);
-            	//add a text element to the child
-            	text = doc.createTextNode(key);
-            	keyElement.appendChild(text);
-            }
-            if (value != null){
-            	//create child element, add an attribute, and add to root
-                Element valueElement = doc.createElement("Value");
-                root.appendChild(valueElement);
-
-                //add a text element to the child
-                text = doc.createTextNode(value);
-                valueElement.appendChild(text);
-            }
-/*            if (isPutResp){
-            	//create child element, add an attribute, and add to root
-                Element valueElement = doc.createElement("Status");
-                root.appendChild(valueElement);
-
-                //add a text element to the child
-                if (status) text = doc.createTextNode("True");
-                else text = doc.createTextNode("False");
-                valueElement.appendChild(text);
-            }*/
-            if (message != null){
-            	//create child element, add an attribute, and add to root
-                Element valueElement = doc.createElement("Message");
-                root.appendChild(valueElement);
-
-                //add a text element to the child
-                text = doc.createTextNode(message);
-                valueElement.appendChild(text);
-            }
-            /////////////////////////////
-            //Output the XML
-            //set up a transformer
-            TransformerFactory transfac = TransformerFactory.newInstance();
-            Transformer trans = null;
-			try {
-				trans = transfac.newTransformer();
-			} catch (TransformerConfigurationException e) {
-				e.printStackTrace();
-				throw new KVException(new KVMessage("Unknown Error: Error occured duringf XML creation"));
-			}
-            trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            trans.setOutputProperty(OutputKeys.INDENT, "yes");
-
-            //create string from xml tree
-            StringWriter sw = new StringWriter();
-            StreamResult result = new StreamResult(sw);
-            DOMSource source = new DOMSource(doc);
-            try {
-				trans.transform(source, result);
-			} catch (TransformerException e) {
-				e.printStackTrace();
-				throw new KVException(new KVMessage("Unknown Error: Error occured duringf XML creation"));
-			}
-            String xmlString = sw.toString();
-            rtn = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xmlString;
-
-            //print xml
-           // System.out.println("Here's the xml:\n\n" + rtn);
-            //KVMessage.delay();
-		return rtn;
+		return XMLCodec.write(msgType, key, value, message, null);
 	}
 	
 	/**
@@ -353,49 +192,32 @@ public class KVMessage{
 		return obj;
 	}
 	
-	/** utility function that sends a KVMessage across a socket
+	/** utility function that sends a KVMessage reply across a socket, and then 
+	 * hands the connection back to its SocketServer (which closes it unless 
+	 * it can carry another request)
 	 * @param socket
 	 * @param message
 	 */
 	public static void sendMessage(Socket connection, KVMessage message){
-		String xmlFile = null;
-		try {
-			xmlFile = message.toXML();
-		} catch (KVException e) {
-			// should NOT ever throw exception here
-			e.printStackTrace();
-		}
-		PrintWriter out = null;
-		try {
-			out = new PrintWriter(connection.getOutputStream(),true);
-		} catch (IOException e) {
-			// should NOT ever throw exception here
-			e.printStackTrace();
-		}
-//		System.out.println("Sending to Client: \n" + xmlFile + "\n\n");
-		out.println(xmlFile);
-		
 		try {
-			connection.shutdownOutput();
+			WireProtocol.send(connection, MessageFields.of(message));
 		} catch (IOException e) {
 			// should NOT ever throw exception here
 			e.printStackTrace();
 		}
-		//out.close();
+		SocketServer.release(connection);
 	}
 	
 	/** utility function that receives a KVMessage across a socket
 	 * @param socket
 	 */
 	public static KVMessage receiveMessage(Socket connection) throws KVException, SocketTimeoutException {
-		InputStream in = null;
 		KVMessage rtn = null;
 		
 		try {
-			in = connection.getInputStream();
-			rtn = new KVMessage(in);
-//			System.out.println("Received from Client: \n" + rtn.toXML() + "\n\n");
-//			in.close();
+			rtn = new KVMessage(WireProtocol.receive(connection));
+		} catch (SocketTimeoutException e) {
+			throw e;
 		} catch (IOException e) {
 			// should NOT throw an exception here
 			e.printStackTrace();
@@ -33,6 +33,7 @@ package edu.berkeley.cs162;
 import java.io.Serializable;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.Map;
 
 /**
  * This is a dummy KeyValue Store. Ideally this would go to disk, 
@@ -92,4 +93,29 @@ public class KVStore<K extends Serializable, V extends Serializable> implements
 		delDelay();
 		this.store.remove(key);
 	}
+	
+	/**
+	 * Copies the whole store in one pass. This is a bulk dump for checkpoints,
+	 * so it does not pay the per-access delay.
+	 * @return a copy of every key-value pair
+	 */
+	public Hashtable<K, V> snapshot() {
+		Hashtable<K, V> table = (Hashtable<K, V>) store;
+		synchronized (table) {
+			return new Hashtable<K, V>(table);
+		}
+	}
+	
+	/**
+	 * Replaces the contents of the store with a snapshot, without the 
+	 * per-access delay.
+	 * @param snapshot
+	 */
+	public void restore(Map<K, V> snapshot) {
+		Hashtable<K, V> table = (Hashtable<K, V>) store;
+		synchronized (table) {
+			table.clear();
+			table.putAll(snapshot);
+		}
+	}
 }
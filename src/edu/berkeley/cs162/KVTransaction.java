@@ -0,0 +1,87 @@
+/**
+ * Puts and deletes on several keys that are committed together
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of puts and deletes for {@link KVClient#commit(KVTransaction)}. They 
+ * are sent in one request, and the master runs them as a single 2PC 
+ * operation on every SlaveServer that stores one of the keys: either all of 
+ * them are applied, in the order they were added, or none of them is.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public class KVTransaction<K extends Serializable, V extends Serializable> {
+	private List<K> keys = new ArrayList<K>();
+	// null for a delete
+	private List<V> values = new ArrayList<V>();
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return this transaction
+	 * @throws KVException if the value is null, which only {@link #del(Serializable)} 
+	 * may add
+	 */
+	public KVTransaction<K, V> put(K key, V value) throws KVException {
+		if (value == null) throw new KVException(new KVMessage("Empty value"));
+		keys.add(key);
+		values.add(value);
+		return this;
+	}
+
+	/**
+	 * @param key
+	 * @return this transaction
+	 */
+	public KVTransaction<K, V> del(K key) {
+		keys.add(key);
+		values.add(null);
+		return this;
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	K getKey(int index) {
+		return keys.get(index);
+	}
+
+	/**
+	 * @param index
+	 * @return the value of a put, or null for a delete
+	 */
+	V getValue(int index) {
+		return values.get(index);
+	}
+}
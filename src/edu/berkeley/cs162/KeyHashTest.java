@@ -0,0 +1,117 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class KeyHashTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// key sets shaped like real ones: shared prefixes and sequential numbers
+	private static String[] realisticKeys(int count) throws KVException {
+		String[] keys = new String[count];
+		for (int i = 0; i < count; i++) {
+			String key;
+			switch (i % 3) {
+			case 0: key = "user:" + i; break;
+			case 1: key = "session-" + String.format("%08d", i); break;
+			default: key = "/photos/2012/album" + (i % 97) + "/img" + i + ".jpg"; break;
+			}
+			keys[i] = KVMessage.encodeObject(key);
+		}
+		return keys;
+	}
+
+	// tests Murmur3 against the reference implementation's output
+	@Test
+	public void testMurmur3KnownValues() {
+		Murmur3KeyHash murmur = new Murmur3KeyHash();
+		assertEquals(0L, murmur.hash(new byte[0]));
+		assertEquals(0xcbd8a7b341bd9b02L, murmur.hash("hello".getBytes(UTF8)));
+		assertEquals(0xe34bbc7bbc071b6cL,
+				murmur.hash("The quick brown fox jumps over the lazy dog".getBytes(UTF8)));
+		// strings hash like their bytes, whatever the length of the tail
+		String text = "The quick brown fox jumps over the lazy dog";
+		for (int i = 0; i <= text.length(); i++) {
+			String prefix = text.substring(0, i);
+			assertEquals(murmur.hash(prefix.getBytes(UTF8)), murmur.hash(prefix));
+		}
+		assertEquals(murmur.hash("h\u00e9llo".getBytes(UTF8)), murmur.hash("h\u00e9llo"));
+	}
+
+	// tests that the original placement is kept
+	@Test
+	public void testStringKeyHashMatchesOriginal() throws KVException {
+		long h = 1125899906842597L;
+		for (char c : "key1".toCharArray()) {
+			h = 31*h + c;
+		}
+		assertEquals(h, new StringKeyHash().hash(KVMessage.encodeObject("key1")));
+	}
+
+	// tests that Murmur3 spreads keys with shared prefixes evenly over the ring
+	@Test
+	public void testDistribution() throws KVException {
+		String[] keys = realisticKeys(96000);
+		int buckets = 16;
+		int[] murmurCounts = new int[buckets];
+		int[] stringCounts = new int[buckets];
+		KeyHash murmur = new Murmur3KeyHash();
+		KeyHash original = new StringKeyHash();
+		for (String key : keys) {
+			murmurCounts[(int) (murmur.hash(key) >>> 60)]++;
+			stringCounts[(int) (original.hash(key) >>> 60)]++;
+		}
+		int mean = keys.length / buckets;
+		int murmurMax = 0;
+		int stringMax = 0;
+		for (int i = 0; i < buckets; i++) {
+			assertTrue("bucket " + i + " has " + murmurCounts[i] + " keys",
+					Math.abs(murmurCounts[i] - mean) < mean / 10);
+			murmurMax = Math.max(murmurMax, murmurCounts[i]);
+			stringMax = Math.max(stringMax, stringCounts[i]);
+		}
+		System.out.println("Largest of " + buckets + " arcs, mean " + mean 
+				+ ": Murmur3 " + murmurMax + ", String.hashCode " + stringMax);
+
+		// one changed character flips about half of the bits
+		long flipped = 0;
+		for (int i = 0; i < 1000; i++) {
+			flipped += Long.bitCount(murmur.hash("key" + i) ^ murmur.hash("key" + (i + 1)));
+		}
+		assertTrue(flipped > 28 * 1000 && flipped < 36 * 1000);
+	}
+
+	// compares hashing the encoding with decoding the key first; the times
+	// are only printed, since a wall-clock race is no test of correctness
+	@Test
+	public void testThroughput() throws KVException {
+		String[] keys = realisticKeys(30000);
+		KeyHash murmur = new Murmur3KeyHash();
+		KeyHash original = new StringKeyHash();
+		long sink = 0;
+		// warm up both
+		for (String key : keys) {
+			sink += murmur.hash(key) + original.hash(key);
+		}
+		long start = System.nanoTime();
+		for (int round = 0; round < 10; round++) {
+			for (String key : keys) {
+				sink += murmur.hash(key);
+			}
+		}
+		long murmurTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int round = 0; round < 10; round++) {
+			for (String key : keys) {
+				sink += original.hash(key);
+			}
+		}
+		long stringTime = System.nanoTime() - start;
+		System.out.println("Hash " + 10 * keys.length + " keys (ms): Murmur3 " 
+				+ murmurTime / 1000000 + ", decode + String.hashCode " + stringTime / 1000000 
+				+ " (" + sink % 2 + ")");
+	}
+}
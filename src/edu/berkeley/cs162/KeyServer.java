@@ -31,7 +31,7 @@ package edu.berkeley.cs162;
 
 import java.io.Serializable;
 import java.util.Hashtable;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Map;
 
 /**
  * This class defines the salve key value servers. Each individual KeyServer 
@@ -47,22 +47,30 @@ public class KeyServer<K extends Serializable, V extends Serializable> implement
 	private KVStore<K, V> dataStore = null;
 	private KVCache<K, V> dataCache = null;
 	
-	private Hashtable<K, ReentrantReadWriteLock> lockstore;
+	private StripedLock lockstore;
+	
+	// loads from the store in flight
+	private SingleFlight<K, V> storeLoads = new SingleFlight<K, V>();
 	
 	/**
 	 * @param cacheSize number of entries in the data Cache.
 	 */
 	public KeyServer(int cacheSize) {
-		// implement me
+		this(cacheSize, StripedLock.DEFAULT_STRIPES);
+	}
+	
+	/**
+	 * @param cacheSize number of entries in the data Cache.
+	 * @param lockStripes number of per-key locks shared by all keys
+	 */
+	public KeyServer(int cacheSize, int lockStripes) {
 		dataStore = new KVStore<K, V>();
 		dataCache = new KVCache<K, V>(cacheSize);
-		lockstore = new Hashtable<K, ReentrantReadWriteLock>();
+		lockstore = new StripedLock(lockStripes);
 	}
 	
 	public boolean put(K key, V value) throws KVException {
 		// implement me
-		if (lockstore.get(key) == null) lockstore.put(key, new ReentrantReadWriteLock());//This way, whatever method we call, if the lock does not exist it is created
-		
 		lockstore.get(key).writeLock().lock();
 		boolean ret = false;
 		try{
@@ -72,6 +80,8 @@ public class KeyServer<K extends Serializable, V extends Serializable> implement
 			throw new KVException(new KVMessage("IO Error"));
 		}
 		dataCache.put(key, value);
+		// a load that started before this write must not be joined by later gets
+		storeLoads.forget(key);
 		lockstore.get(key).writeLock().unlock();	
 		
 		return ret;
@@ -79,8 +89,6 @@ public class KeyServer<K extends Serializable, V extends Serializable> implement
 	
 	public V get (K key) throws KVException {
 		// implement me
-	if (lockstore.get(key) == null) lockstore.put(key, new ReentrantReadWriteLock());
-		
 		lockstore.get(key).readLock().lock();
 		V val = dataCache.get(key);
 		lockstore.get(key).readLock().unlock();
@@ -89,22 +97,38 @@ public class KeyServer<K extends Serializable, V extends Serializable> implement
 			//This line of code is for testing only, it breaks most things
 			//System.out.println("Cache: " + val.toString() + " Store: " + dataStore.get(key).toString());
 			return val;
-		} else {
-			lockstore.get(key).readLock().lock();
-			try {
-			val = dataStore.get(key);
-			} catch (KVException e){
-				lockstore.get(key).readLock().unlock();
-				throw new KVException(new KVMessage("IO Error"));
+		}
+		// concurrent misses on this key share one read of the store
+		final K missed = key;
+		return storeLoads.get(key, new SingleFlight.Loader<V>() {
+			public V load() throws KVException {
+				return loadFromStore(missed);
 			}
+		});
+	}
+	
+	/**
+	 * Reads a key the cache does not have from the store, and caches it
+	 * @param key
+	 * @return the value
+	 * @throws KVException if the key does not exist or the store failed
+	 */
+	private V loadFromStore(K key) throws KVException {
+		V val;
+		lockstore.get(key).readLock().lock();
+		try {
+		val = dataStore.get(key);
+		} catch (KVException e){
 			lockstore.get(key).readLock().unlock();
-			if (val == null) {
-				throw new KVException(new KVMessage("Does not exist"));
-			}
-			lockstore.get(key).writeLock().lock();
-			dataCache.put(key, val);
-			lockstore.get(key).writeLock().unlock();
+			throw new KVException(new KVMessage("IO Error"));
+		}
+		lockstore.get(key).readLock().unlock();
+		if (val == null) {
+			throw new KVException(new KVMessage("Does not exist"));
 		}
+		lockstore.get(key).writeLock().lock();
+		dataCache.put(key, val);
+		lockstore.get(key).writeLock().unlock();
 		
 		return val;
 	}
@@ -112,8 +136,6 @@ public class KeyServer<K extends Serializable, V extends Serializable> implement
 	@Override
 	public void del(K key) throws KVException {
 		// implement me	
-		if (lockstore.get(key) == null) lockstore.put(key, new ReentrantReadWriteLock());
-		
 		lockstore.get(key).readLock().lock();
 //		try {
 		if (dataCache.get(key) == null && dataStore.get(key) == null){
@@ -133,8 +155,24 @@ public class KeyServer<K extends Serializable, V extends Serializable> implement
 			throw new KVException(new KVMessage("IO Error"));
 		}
 		dataCache.del(key);
+		storeLoads.forget(key);
 		lockstore.get(key).writeLock().unlock();
 	}
-}
-
 
+	/**
+	 * @return a copy of every key-value pair in the store, for a checkpoint
+	 */
+	public Hashtable<K, V> snapshot() {
+		return dataStore.snapshot();
+	}
+	
+	/**
+	 * Replaces the contents of this server with a checkpoint. The cache is 
+	 * emptied, since it may hold values the snapshot does not.
+	 * @param snapshot
+	 */
+	public void restore(Map<K, V> snapshot) {
+		dataStore.restore(snapshot);
+		dataCache.clear();
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Fields of a message on the wire
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * The fields of a KVMessage or TPCMessage as they travel on the wire, shared
+ * by the XML and the binary codec. Keys and values are the Base64 strings 
+ * made by {@link KVMessage#encodeObject(Object)}.
+ */
+class MessageFields {
+	String msgType = null;
+	String key = null;
+	String value = null;
+	String message = null;
+	String tpcOpId = null;
+
+	MessageFields() {
+	}
+
+	MessageFields(String msgType, String key, String value, String message, String tpcOpId) {
+		this.msgType = msgType;
+		this.key = key;
+		this.value = value;
+		this.message = message;
+		this.tpcOpId = tpcOpId;
+	}
+
+	/**
+	 * @param message a KVMessage or a TPCMessage
+	 * @return the fields of the message
+	 */
+	static MessageFields of(KVMessage message) {
+		String tpcOpId = null;
+		if (message instanceof TPCMessage) {
+			tpcOpId = ((TPCMessage) message).getTpcOpId();
+		}
+		return new MessageFields(message.getMsgType(), message.getKey(), message.getValue(), 
+				message.getMessage(), tpcOpId);
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * MurmurHash3 ring placement over the encoded key
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.nio.charset.Charset;
+
+/**
+ * Places keys by the first 64 bits of MurmurHash3 (x64, 128-bit variant) of 
+ * the encoded key. The encoding is hashed as is, so no key is decoded, and 
+ * base64 is ASCII, so its characters are read as bytes without copying the
+ * string. Every input bit affects every output bit, so keys that differ in
+ * one character land far apart.
+ */
+public class Murmur3KeyHash implements KeyHash {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final long seed;
+
+	public Murmur3KeyHash() {
+		this(0L);
+	}
+
+	/**
+	 * @param seed only the low 32 bits are used, as in the reference code
+	 */
+	public Murmur3KeyHash(long seed) {
+		this.seed = seed & 0xffffffffL;
+	}
+
+	@Override
+	public long hash(String encodedKey) {
+		for (int i = 0; i < encodedKey.length(); i++) {
+			if (encodedKey.charAt(i) > 0x7f) {
+				// not base64, so hash the UTF-8 bytes
+				byte[] bytes = encodedKey.getBytes(UTF8);
+				return hash(new ByteSource(bytes), bytes.length);
+			}
+		}
+		return hash(new CharSource(encodedKey), encodedKey.length());
+	}
+
+	/**
+	 * @param data
+	 * @return the first 64 bits of the hash of the bytes
+	 */
+	public long hash(byte[] data) {
+		return hash(new ByteSource(data), data.length);
+	}
+
+	/**
+	 * Bytes of the input, so that strings and arrays share one implementation
+	 */
+	private interface Source {
+		int byteAt(int i);
+	}
+
+	private static class ByteSource implements Source {
+		private final byte[] bytes;
+
+		ByteSource(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		public int byteAt(int i) {
+			return bytes[i] & 0xff;
+		}
+	}
+
+	private static class CharSource implements Source {
+		private final String ascii;
+
+		CharSource(String ascii) {
+			this.ascii = ascii;
+		}
+
+		public int byteAt(int i) {
+			return ascii.charAt(i);
+		}
+	}
+
+	private long hash(Source data, int length) {
+		long h1 = seed;
+		long h2 = seed;
+
+		int blocks = length / 16;
+		for (int i = 0; i < blocks; i++) {
+			long k1 = getLong(data, i * 16);
+			long k2 = getLong(data, i * 16 + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		// the last 0 to 15 bytes
+		int tail = blocks * 16;
+		long k1 = 0;
+		long k2 = 0;
+		for (int i = length - tail - 1; i >= 8; i--) {
+			k2 ^= ((long) data.byteAt(tail + i)) << ((i - 8) * 8);
+		}
+		for (int i = Math.min(length - tail, 8) - 1; i >= 0; i--) {
+			k1 ^= ((long) data.byteAt(tail + i)) << (i * 8);
+		}
+		if (length - tail > 8) {
+			h2 ^= mixK2(k2);
+		}
+		if (length - tail > 0) {
+			h1 ^= mixK1(k1);
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+		return h1;
+	}
+
+	// little-endian, as the reference code reads blocks on x86
+	private static long getLong(Source data, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | data.byteAt(offset + i);
+		}
+		return value;
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		return k1;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		return k2;
+	}
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
@@ -37,6 +37,9 @@ public class Server {
 	
 	static TPCMaster<String, String> tpcMaster = null;
 	
+	// client requests in progress at once; more are answered with ThreadPool.BUSY
+	static final int MAX_CLIENT_REQUESTS = 1000;
+	
 	/**
 	 * @param args list of SlaveServers in "SlaveServerID@HostName:Port" format
 	 * @throws IOException 
@@ -52,8 +55,13 @@ public class Server {
 		// Create KVClientHandler
 		System.out.println("Binding Master:");
 		server = new SocketServer(InetAddress.getLocalHost().getHostAddress(), 8080);
-		NetworkHandler handler = new KVClientHandler<String, String>(1, tpcMaster);
+		// every client request gets a thread of its own while it waits on the slaves
+		ThreadPool requests = new ThreadPool(ThreadPool.THREAD_PER_TASK, 
+				MAX_CLIENT_REQUESTS, ThreadPool.RejectionPolicy.FAIL);
+		NetworkHandler handler = new KVClientHandler<String, String>(requests, tpcMaster);
 		server.addHandler(handler);
+		// read client requests off non-blocking channels
+		server.setIOThreads(2);
 		server.connect();
 		System.out.println("Starting Master");
 		server.run();		
@@ -0,0 +1,146 @@
+/**
+ * Coalesces concurrent loads of the same key
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets concurrent callers that miss on the same key share one load. The 
+ * first caller for a key runs its Loader; callers that arrive while that 
+ * load is in flight wait for it and get the same value, or the same 
+ * KVException, instead of loading again. Once the load finishes, the next 
+ * caller starts a new one, so nothing is cached here.
+ *
+ * A writer that changes a key should call {@link #forget(Object)} after the
+ * change, so that callers arriving later start a fresh load instead of 
+ * joining one that may have read the old value.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public class SingleFlight<K, V> {
+	/**
+	 * Loads the value of one key
+	 */
+	public interface Loader<V> {
+		V load() throws KVException;
+	}
+
+	/**
+	 * One load in flight, and its outcome once it is done
+	 */
+	private static class Flight<V> {
+		private boolean done = false;
+		private V value = null;
+		private KVException error = null;
+		private RuntimeException failure = null;
+
+		synchronized void finish(V value, KVException error, RuntimeException failure) {
+			this.value = value;
+			this.error = error;
+			this.failure = failure;
+			this.done = true;
+			notifyAll();
+		}
+
+		synchronized V await() throws KVException {
+			boolean interrupted = false;
+			try {
+				while (!done) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// the load runs on another thread and will finish anyway
+						interrupted = true;
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return value;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Flight<V>> flights = new ConcurrentHashMap<K, Flight<V>>();
+
+	/**
+	 * @param key
+	 * @param loader run by this thread if no load of the key is in flight
+	 * @return the loaded value
+	 * @throws KVException thrown by the load this caller ran or joined
+	 */
+	public V get(K key, Loader<V> loader) throws KVException {
+		Flight<V> flight = new Flight<V>();
+		Flight<V> inFlight = flights.putIfAbsent(key, flight);
+		if (inFlight != null) {
+			return inFlight.await();
+		}
+		V value = null;
+		KVException error = null;
+		RuntimeException failure = null;
+		try {
+			value = loader.load();
+			return value;
+		} catch (KVException e) {
+			error = e;
+			throw e;
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		} catch (Error e) {
+			failure = new IllegalStateException("Load of " + key + " failed", e);
+			throw e;
+		} finally {
+			flights.remove(key, flight);
+			flight.finish(value, error, failure);
+		}
+	}
+
+	/**
+	 * Stops later callers from joining the load of a key that is in flight
+	 * @param key
+	 */
+	public void forget(K key) {
+		flights.remove(key);
+	}
+
+	/**
+	 * @return the number of loads in flight
+	 */
+	public int size() {
+		return flights.size();
+	}
+}
@@ -0,0 +1,122 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	private static class slowLoader implements SingleFlight.Loader<String> {
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final String value;
+
+		slowLoader(String value) {
+			this.value = value;
+		}
+
+		public String load() throws KVException {
+			loads.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (value == null) {
+				throw new KVException(new KVMessage("Does not exist"));
+			}
+			return value;
+		}
+	}
+
+	private static class getter extends Thread {
+		final SingleFlight<String, String> flights;
+		final SingleFlight.Loader<String> loader;
+		String value = null;
+		KVException error = null;
+
+		getter(SingleFlight<String, String> flights, SingleFlight.Loader<String> loader) {
+			this.flights = flights;
+			this.loader = loader;
+		}
+
+		public void run() {
+			try {
+				value = flights.get("key", loader);
+			} catch (KVException e) {
+				error = e;
+			}
+		}
+	}
+
+	// starts callers for one key and waits until the first load is in flight
+	private static getter[] startGetters(SingleFlight<String, String> flights, slowLoader loader, int count)
+			throws InterruptedException {
+		getter[] getters = new getter[count];
+		for (int i = 0; i < count; i++) {
+			getters[i] = new getter(flights, loader);
+			getters[i].start();
+		}
+		while (loader.loads.get() == 0) {
+			Thread.sleep(5);
+		}
+		// give the others time to join the load in flight
+		Thread.sleep(100);
+		return getters;
+	}
+
+	// tests that concurrent misses on one key run a single load and share its value
+	@Test
+	public void testSharedLoad() throws Exception {
+		SingleFlight<String, String> flights = new SingleFlight<String, String>();
+		slowLoader loader = new slowLoader("value");
+		getter[] getters = startGetters(flights, loader, 8);
+		loader.release.countDown();
+		for (getter g : getters) {
+			g.join(5000);
+			assertEquals("value", g.value);
+		}
+		assertEquals(1, loader.loads.get());
+		assertEquals(0, flights.size());
+	}
+
+	// tests that a failed load is reported to every caller that joined it
+	@Test
+	public void testSharedError() throws Exception {
+		SingleFlight<String, String> flights = new SingleFlight<String, String>();
+		slowLoader loader = new slowLoader(null);
+		getter[] getters = startGetters(flights, loader, 4);
+		loader.release.countDown();
+		for (getter g : getters) {
+			g.join(5000);
+			assertNotNull(g.error);
+			assertEquals("Does not exist", g.error.getMsg().getMessage());
+		}
+		assertEquals(1, loader.loads.get());
+	}
+
+	// tests that nothing is cached once a load has finished, and that forget
+	// makes later callers start a new load
+	@Test
+	public void testNewLoadAfterFinishOrForget() throws Exception {
+		SingleFlight<String, String> flights = new SingleFlight<String, String>();
+		slowLoader loader = new slowLoader("value");
+		loader.release.countDown();
+		assertEquals("value", flights.get("key", loader));
+		assertEquals("value", flights.get("key", loader));
+		assertEquals(2, loader.loads.get());
+
+		slowLoader stale = new slowLoader("old");
+		getter[] first = startGetters(flights, stale, 1);
+		flights.forget("key");
+		slowLoader fresh = new slowLoader("new");
+		fresh.release.countDown();
+		assertEquals("new", flights.get("key", fresh));
+		stale.release.countDown();
+		first[0].join(5000);
+		assertEquals("old", first[0].value);
+	}
+}
@@ -54,6 +54,9 @@ public class SlaveServer {
 	static int masterPort = -1;
 	// Port which Master/Coordinator is listening to for SlaveServers to register themselves
 	static int registrationPort = -1;
+	// requests from the Master in progress at once; more are answered with 
+	// ThreadPool.BUSY (a 2PC request then gets an abort vote)
+	static final int MAX_MASTER_REQUESTS = 1000;
 	
 	/**
 	 * @param args
@@ -74,14 +77,21 @@ public class SlaveServer {
 		System.out.println("Binding SlaveServer:");
 		keyServer = new KeyServer<String, String>(1000);
 		server = new SocketServer(InetAddress.getLocalHost().getHostAddress());
-		TPCMasterHandler<String, String> handler = new TPCMasterHandler<String, String>(keyServer);
+		TPCMasterHandler<String, String> handler = new TPCMasterHandler<String, String>(keyServer, 
+				new ThreadPool(ThreadPool.THREAD_PER_TASK, MAX_MASTER_REQUESTS, ThreadPool.RejectionPolicy.FAIL));
 		server.addHandler(handler);
+		// read master requests off non-blocking channels
+		server.setIOThreads(2);
 		server.connect();
 		System.out.println("Starting SlaveServer at " + server.getHostname() + ":" + server.getPort());
 		
 		// Create TPCLog
 		logPath = slaveID + "@" + server.getHostname();
 		tpcLog = new TPCLog<String, String>(logPath, keyServer);
+		// handler threads log concurrently, so let them share forces
+		tpcLog.setGroupCommit(1, 64 * 1024);
+		// bound the replay on restart to the last 1000 records
+		tpcLog.setCheckpointInterval(1000);
 		
 		// Load from disk and rebuild logs
 		tpcLog.rebuildKeyServer();
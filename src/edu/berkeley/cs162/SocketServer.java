@@ -30,19 +30,91 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** 
  * This is an generic class that should handle all TCP network connections 
  * arriving on a given unique (host, port) tuple. Ensure that this class 
  * remains generic by providing the connection handling logic in a NetworkHandler
+ * 
+ * Handlers give a connection back with {@link #release(Socket)} once they have
+ * replied. Connections that can carry another request (see {@link WireProtocol})
+ * are then watched until the next request arrives, which goes to the handler
+ * like a new connection; idle ones are closed after the idle timeout.
+ * 
+ * By default run() blocks in accept() and hands each connection straight to 
+ * the handler, and a kept-alive connection holds a thread while it waits. 
+ * With {@link #setIOThreads(int)} and a {@link FramedNetworkHandler}, run() 
+ * accepts without blocking and the I/O threads read requests off non-blocking
+ * channels, handing each complete message to the handler on a worker thread
+ * (virtual where the JVM has them); a slow client then holds no thread at 
+ * all, waiting connections cost nothing but a selection key, and a handler 
+ * that blocks never holds up the reads of other connections.
+ * 
+ * With {@link #setThreadPerConnection(boolean)}, the blocking mode instead 
+ * calls the handler for each connection, and waits for each kept-alive 
+ * connection's next request, on a thread of its own; these are virtual 
+ * threads where the JVM has them (see {@link Threads}).
  */
 public class SocketServer {
+	public static final int DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+	// how often the selectors look for idle connections and a closed server
+	private static final int SWEEP_MILLISECONDS = 1000;
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+	// the server that accepted each open connection
+	private static final Map<Socket, SocketServer> owners = 
+			Collections.synchronizedMap(new WeakHashMap<Socket, SocketServer>());
+
 	String hostname;
 	int port;
 	NetworkHandler handler;
 	ServerSocket server;
+	private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private int ioThreads = 0;
+	private boolean threadPerConnection = false;
+	// set by run() when it uses selectors
+	private volatile ioLoopRunnable[] ioLoops = null;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	// threads waiting for the next request on kept-alive connections
+	private final ExecutorService keepAlive = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "keep-alive");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	// threads running the handler for requests read by the I/O threads, 
+	// where there are no virtual threads
+	private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "socket-worker");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
 	public SocketServer(String hostname) {
 		this.hostname = hostname;
@@ -63,11 +135,14 @@ public class SocketServer {
 	}
 
 	public void connect() throws IOException {
+		// a channel's socket works both for accept() and for a selector
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		this.server = channel.socket();
 		if (port == -1){
-			this.server = new ServerSocket(0);
+			server.bind(new InetSocketAddress(0));
 			this.port = server.getLocalPort();
 		} else {
-			this.server = new ServerSocket(port);
+			server.bind(new InetSocketAddress(port));
 		}
 
 	}
@@ -77,9 +152,355 @@ public class SocketServer {
 	 * @throws IOException if there is a network error (for instance if the socket is inadvertently closed) 
 	 */
 	public void run() throws IOException {
+		if (ioThreads > 0 && handler instanceof FramedNetworkHandler) {
+			runSelectors();
+			return;
+		}
 		while(true){
 			Socket client = server.accept();
-			handler.handle(client);
+			owners.put(client, this);
+			if (threadPerConnection) {
+				Threads.start(new handleRunnable(client), "connection");
+			} else {
+				handler.handle(client);
+			}
+		}
+	}
+	
+	/**
+	 * Accepts connections without blocking and deals them out to the I/O 
+	 * threads, until the server socket is closed
+	 */
+	private void runSelectors() throws IOException {
+		ServerSocketChannel channel = server.getChannel();
+		ioLoopRunnable[] loops = new ioLoopRunnable[ioThreads];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new ioLoopRunnable(Selector.open());
+			Thread thread = new Thread(loops[i], "socket-io-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		ioLoops = loops;
+
+		Selector acceptor = Selector.open();
+		try {
+			channel.configureBlocking(false);
+			channel.register(acceptor, SelectionKey.OP_ACCEPT);
+			while (channel.isOpen()) {
+				acceptor.select(SWEEP_MILLISECONDS);
+				acceptor.selectedKeys().clear();
+				SocketChannel client;
+				while ((client = channel.accept()) != null) {
+					owners.put(client.socket(), this);
+					nextLoop().add(client);
+				}
+			}
+		} finally {
+			acceptor.close();
+			for (ioLoopRunnable loop : loops) {
+				loop.stop();
+			}
+		}
+		throw new SocketException("Socket is closed");
+	}
+
+	private ioLoopRunnable nextLoop() {
+		ioLoopRunnable[] loops = ioLoops;
+		return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+	
+	/**
+	 * @param idleTimeout milliseconds a kept-alive connection may wait for its
+	 * next request before it is closed
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * Must be called before run(). Only takes effect for a 
+	 * {@link FramedNetworkHandler}.
+	 * @param ioThreads number of threads reading requests off non-blocking 
+	 * channels, or 0 to block in accept() and hand over bare sockets
+	 */
+	public void setIOThreads(int ioThreads) {
+		if (ioThreads < 0) {
+			throw new IllegalArgumentException("SocketServer cannot have a negative number of I/O threads");
+		}
+		this.ioThreads = ioThreads;
+	}
+	
+	/**
+	 * Must be called before run(). Has no effect when the server uses I/O 
+	 * threads, whose handler already only ever sees complete requests.
+	 * @param threadPerConnection true to handle each connection on a new 
+	 * (virtual, where possible) thread rather than on the accepting thread
+	 */
+	public void setThreadPerConnection(boolean threadPerConnection) {
+		this.threadPerConnection = threadPerConnection;
+	}
+	
+	/**
+	 * Called by a handler when it is done with a request on a connection. 
+	 * Keeps the connection open for the next request if it can carry one, 
+	 * and closes it otherwise.
+	 * @param client
+	 */
+	public static void release(Socket client) {
+		SocketServer owner = owners.get(client);
+		if (owner == null || !WireProtocol.isReusable(client)) {
+			WireProtocol.closeQuietly(client);
+			return;
+		}
+		if (owner.ioLoops != null && client.getChannel() != null) {
+			owner.nextLoop().add(client.getChannel());
+			return;
+		}
+		if (owner.threadPerConnection) {
+			Threads.start(owner.new keepAliveRunnable(client), "keep-alive");
+		} else {
+			owner.keepAlive.execute(owner.new keepAliveRunnable(client));
+		}
+	}
+	
+	/**
+	 * Hands one connection to the handler, off the accepting or I/O thread
+	 */
+	private class handleRunnable implements Runnable {
+		private Socket client;
+		
+		public handleRunnable(Socket client) {
+			this.client = client;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				handler.handle(client);
+			} catch (IOException e) {
+				WireProtocol.closeQuietly(client);
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the next request on a connection and hands it to the handler
+	 */
+	private class keepAliveRunnable implements Runnable {
+		private Socket client;
+		
+		public keepAliveRunnable(Socket client) {
+			this.client = client;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				client.setSoTimeout(idleTimeout);
+				if (!WireProtocol.awaitRequest(client)) {
+					// the client hung up
+					WireProtocol.closeQuietly(client);
+					return;
+				}
+				client.setSoTimeout(0);
+				handler.handle(client);
+			} catch (IOException e) {
+				// idle for too long, or the connection broke
+				WireProtocol.closeQuietly(client);
+			}
+		}
+	}
+	
+	/**
+	 * The bytes of one request read so far, and when the last ones arrived
+	 */
+	private static class PartialRequest {
+		byte[] buffer = new byte[256];
+		int length = 0;
+		long lastActive = System.currentTimeMillis();
+
+		/**
+		 * @return false once the client has closed its side
+		 */
+		boolean readFrom(SocketChannel channel, ByteBuffer scratch) throws IOException {
+			while (true) {
+				scratch.clear();
+				int read = channel.read(scratch);
+				if (read < 0) {
+					return false;
+				}
+				if (read == 0) {
+					return true;
+				}
+				lastActive = System.currentTimeMillis();
+				if (length + read > buffer.length) {
+					buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + read));
+				}
+				scratch.flip();
+				scratch.get(buffer, length, read);
+				length += read;
+				if (isComplete()) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return whether a whole binary frame has arrived; too much data also 
+		 * counts, so that the handler gets to reject it
+		 */
+		boolean isComplete() {
+			return length > BinaryCodec.MAX_FRAME_SIZE || WireProtocol.isCompleteFrame(buffer, length);
+		}
+	}
+	
+	/**
+	 * Reads requests off non-blocking channels. A channel with a complete 
+	 * request is taken off the selector, put back in blocking mode and given 
+	 * to the handler on a worker thread; release() brings it back for the 
+	 * next request.
+	 */
+	private class ioLoopRunnable implements Runnable {
+		private final Selector selector;
+		private final Queue<SocketChannel> added = new ConcurrentLinkedQueue<SocketChannel>();
+		private volatile boolean running = true;
+		private final ByteBuffer scratch = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		public ioLoopRunnable(Selector selector) {
+			this.selector = selector;
+		}
+
+		/**
+		 * Watches a channel for its next request; may be called from any thread
+		 * @param channel
+		 */
+		void add(SocketChannel channel) {
+			added.add(channel);
+			selector.wakeup();
+		}
+
+		void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select(SWEEP_MILLISECONDS);
+					register();
+					List<SelectionKey> ready = readSelected();
+					closeIdle();
+					if (!ready.isEmpty()) {
+						dispatch(ready);
+					}
+				}
+			} catch (IOException e) {
+				// the selector itself broke, nothing more can be read
+				e.printStackTrace();
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					closeQuietly((SocketChannel) key.channel());
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// already shutting down
+				}
+			}
+		}
+
+		private void register() {
+			SocketChannel channel;
+			while ((channel = added.poll()) != null) {
+				try {
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_READ, new PartialRequest());
+				} catch (IOException e) {
+					closeQuietly(channel);
+				}
+			}
+		}
+
+		/**
+		 * @return the keys whose channels now hold a complete request
+		 */
+		private List<SelectionKey> readSelected() {
+			List<SelectionKey> ready = new ArrayList<SelectionKey>();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				SocketChannel channel = (SocketChannel) key.channel();
+				PartialRequest request = (PartialRequest) key.attachment();
+				try {
+					if (request.readFrom(channel, scratch)) {
+						if (request.isComplete()) {
+							ready.add(key);
+						}
+					} else if (request.length > 0) {
+						// an XML request ends where the client shut down its output
+						ready.add(key);
+					} else {
+						// the client hung up between requests
+						key.cancel();
+						closeQuietly(channel);
+					}
+				} catch (IOException e) {
+					key.cancel();
+					closeQuietly(channel);
+				}
+			}
+			return ready;
+		}
+
+		private void closeIdle() {
+			long oldest = System.currentTimeMillis() - idleTimeout;
+			for (SelectionKey key : selector.keys()) {
+				PartialRequest request = (PartialRequest) key.attachment();
+				if (key.isValid() && request.lastActive < oldest) {
+					key.cancel();
+					closeQuietly((SocketChannel) key.channel());
+				}
+			}
+		}
+
+		private void dispatch(List<SelectionKey> ready) throws IOException {
+			for (SelectionKey key : ready) {
+				key.cancel();
+			}
+			// a channel only leaves the selector (and may block again) once 
+			// its cancelled key has been flushed by the next select
+			selector.selectNow();
+			for (SelectionKey key : ready) {
+				SocketChannel channel = (SocketChannel) key.channel();
+				PartialRequest request = (PartialRequest) key.attachment();
+				Socket client = channel.socket();
+				try {
+					channel.configureBlocking(true);
+					client.setSoTimeout(0);
+					WireProtocol.setFramed(client, Arrays.copyOf(request.buffer, request.length));
+				} catch (IOException e) {
+					closeQuietly(channel);
+					continue;
+				}
+				// the handler parses the request and may block, so it never 
+				// runs on the thread that reads the other connections
+				if (Threads.isVirtual()) {
+					Threads.start(new handleRunnable(client), "request");
+				} else {
+					workers.execute(new handleRunnable(client));
+				}
+			}
+		}
+
+		private void closeQuietly(SocketChannel channel) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing left to do with it
+			}
 		}
 	}
 	
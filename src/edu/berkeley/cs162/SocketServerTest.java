@@ -0,0 +1,124 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class SocketServerTest {
+
+	// tests that a kept-alive connection goes back to the selector between requests
+	@Test
+	public void testSelectorKeepAlive() throws Exception {
+		Set<Socket> seen = Collections.synchronizedSet(new HashSet<Socket>());
+		SocketServer server = WireProtocolTest.startEchoServer(seen, 1);
+		ConnectionPool pool = new ConnectionPool(server.getHostname(), server.getPort(), 1, 1);
+		for (int i = 0; i < 5; i++) {
+			assertEquals("key" + i, WireProtocolTest.echo(pool.borrow(), "key" + i));
+		}
+		assertEquals(1, seen.size());
+		assertEquals(1, pool.openCount());
+		server.server.close();
+	}
+
+	// tests that a client which stops halfway through a request does not hold up others
+	@Test
+	public void testSlowClient() throws Exception {
+		Set<Socket> seen = Collections.synchronizedSet(new HashSet<Socket>());
+		SocketServer server = WireProtocolTest.startEchoServer(seen, 1);
+		Socket slow = new Socket(server.getHostname(), server.getPort());
+		OutputStream out = slow.getOutputStream();
+		out.write(BinaryCodec.MAGIC);
+		out.write(0);
+		out.flush();
+
+		Socket fast = new Socket(server.getHostname(), server.getPort());
+		fast.setSoTimeout(5000);
+		assertEquals("key", WireProtocolTest.echo(fast, "key"));
+		assertEquals(1, seen.size());
+		slow.close();
+		server.server.close();
+	}
+
+	// tests that an XML request is framed by the end of its stream
+	@Test
+	public void testSelectorXML() throws Exception {
+		Set<Socket> seen = Collections.synchronizedSet(new HashSet<Socket>());
+		SocketServer server = WireProtocolTest.startEchoServer(seen, 2);
+		Socket client = new Socket(InetAddress.getLocalHost(), server.getPort());
+		PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+		out.println(new KVMessage("getreq", "key", null).toXML());
+		client.shutdownOutput();
+		KVMessage reply = new KVMessage(client.getInputStream());
+		assertEquals("resp", reply.getMsgType());
+		assertEquals("key", reply.getKey());
+		client.close();
+		server.server.close();
+	}
+
+	// tests that a connection stuck halfway through a request is closed after the idle timeout
+	@Test
+	public void testSelectorIdleTimeout() throws Exception {
+		Set<Socket> seen = Collections.synchronizedSet(new HashSet<Socket>());
+		SocketServer server = WireProtocolTest.startEchoServer(seen, 1);
+		server.setIdleTimeout(100);
+		Socket slow = new Socket(server.getHostname(), server.getPort());
+		slow.getOutputStream().write(BinaryCodec.MAGIC);
+		slow.setSoTimeout(5000);
+		InputStream in = slow.getInputStream();
+		assertEquals(-1, in.read());
+		assertEquals(0, seen.size());
+		slow.close();
+		server.server.close();
+	}
+
+	// tests that a handler which blocks does not hold up the I/O thread
+	@Test
+	public void testBlockingHandler() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		SocketServer server = WireProtocolTest.startServer(new FramedNetworkHandler() {
+			public void handle(Socket client) throws IOException {
+				try {
+					KVMessage request = new KVMessage(WireProtocol.receive(client));
+					if (request.getKey().equals("block")) {
+						release.await();
+					}
+					KVMessage.sendMessage(client, new KVMessage("resp", request.getKey(), null));
+				} catch (KVException e) {
+					KVMessage.sendMessage(client, e.getMsg());
+				} catch (InterruptedException e) {
+					WireProtocol.closeQuietly(client);
+				}
+			}
+		}, 1);
+		final Socket blocked = new Socket(server.getHostname(), server.getPort());
+		Thread blockedClient = new Thread() {
+			public void run() {
+				try {
+					WireProtocolTest.echo(blocked, "block");
+				} catch (Exception e) {
+					// checked by the assertion below
+				}
+			}
+		};
+		blockedClient.start();
+
+		Socket fast = new Socket(server.getHostname(), server.getPort());
+		fast.setSoTimeout(5000);
+		assertEquals("key", WireProtocolTest.echo(fast, "key"));
+		release.countDown();
+		blockedClient.join(5000);
+		assertFalse(blockedClient.isAlive());
+		server.server.close();
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Fixed-size table of read/write locks indexed by key hash
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed array of read/write locks shared by all keys. Each key maps to one
+ * stripe by its hash, so the memory used for locking does not grow with the
+ * number of distinct keys and looking up a lock never takes a global monitor.
+ *
+ * Two different keys may share a stripe. Callers must therefore never try to
+ * upgrade a read lock to a write lock, and must take the locks of several keys
+ * in a fixed order (see {@link #getAll(Collection)}).
+ */
+public class StripedLock {
+	public static final int DEFAULT_STRIPES = 1024;
+
+	private final ReentrantReadWriteLock[] stripes;
+	private final int mask;
+
+	public StripedLock() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param stripes number of locks in the table, rounded up to a power of two
+	 */
+	public StripedLock(int stripes) {
+		if (stripes <= 0) {
+			throw new IllegalArgumentException("StripedLock needs at least one stripe");
+		}
+		int size = 1;
+		while (size < stripes) {
+			size <<= 1;
+		}
+		this.stripes = new ReentrantReadWriteLock[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new ReentrantReadWriteLock();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * @param key
+	 * @return the index of the stripe guarding this key
+	 */
+	public int stripeFor(Object key) {
+		int h = key.hashCode();
+		// spread the high bits down, as HashMap does, since we only keep the low ones
+		h ^= (h >>> 16);
+		return h & mask;
+	}
+
+	/**
+	 * @param key
+	 * @return the lock guarding this key
+	 */
+	public ReentrantReadWriteLock get(Object key) {
+		return stripes[stripeFor(key)];
+	}
+
+	/**
+	 * @param keys
+	 * @return the locks guarding these keys, each stripe once, in the order 
+	 * in which they must be taken
+	 */
+	public List<ReentrantReadWriteLock> getAll(Collection<?> keys) {
+		TreeSet<Integer> indexes = new TreeSet<Integer>();
+		for (Object key : keys) {
+			indexes.add(stripeFor(key));
+		}
+		List<ReentrantReadWriteLock> locks = new ArrayList<ReentrantReadWriteLock>(indexes.size());
+		for (int index : indexes) {
+			locks.add(stripes[index]);
+		}
+		return locks;
+	}
+
+	/**
+	 * @return the number of stripes in the table
+	 */
+	public int size() {
+		return stripes.length;
+	}
+}
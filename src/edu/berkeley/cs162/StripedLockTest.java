@@ -0,0 +1,59 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.junit.Test;
+
+public class StripedLockTest {
+
+	// tests that the number of stripes is rounded up to a power of two
+	@Test
+	public void testSize() {
+		assertEquals(1, new StripedLock(1).size());
+		assertEquals(16, new StripedLock(10).size());
+		assertEquals(StripedLock.DEFAULT_STRIPES, new StripedLock().size());
+	}
+
+	// tests that a key always maps to the same lock
+	@Test
+	public void testSameKeySameLock() {
+		StripedLock locks = new StripedLock(64);
+		assertSame(locks.get("key"), locks.get(new String("key")));
+	}
+
+	// tests that the table does not grow with the number of keys
+	@Test
+	public void testBoundedStripes() {
+		StripedLock locks = new StripedLock(8);
+		for (int i = 0; i < 100000; i++) {
+			int stripe = locks.stripeFor("key" + i);
+			assertTrue(stripe >= 0 && stripe < 8);
+		}
+	}
+
+	// tests that the locks of several keys come back once each, in stripe order
+	@Test
+	public void testGetAllOrdered() {
+		StripedLock locks = new StripedLock(4);
+		List<String> keys = Arrays.asList("a", "b", "c", "d", "e", "f", "a");
+		List<ReentrantReadWriteLock> all = locks.getAll(keys);
+		int last = -1;
+		for (ReentrantReadWriteLock lock : all) {
+			int stripe = -1;
+			for (String key : keys) {
+				if (locks.get(key) == lock) {
+					stripe = locks.stripeFor(key);
+				}
+			}
+			assertTrue(stripe > last);
+			last = stripe;
+		}
+		for (String key : keys) {
+			assertTrue(all.contains(locks.get(key)));
+		}
+	}
+}
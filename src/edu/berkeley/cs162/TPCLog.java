@@ -29,17 +29,86 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
 
+/**
+ * The log is an append-only file: a magic number followed by one record per
+ * log entry. Each record is 
+ * 
+ *   [int payload length][int CRC32 of payload][payload]
+ * 
+ * where the payload holds the fields of the TPCMessage. Appending a record 
+ * costs the size of that record only, and a crash while appending can only 
+ * damage the last record; {@link #loadFromDisk()} stops at the first record 
+ * that is incomplete or fails its checksum and the next append cuts it off.
+ * 
+ * Logs written by older versions (one serialized ArrayList) are still read, 
+ * and are converted to the new format on the first append.
+ * 
+ * With {@link ForcePolicy#GROUP} concurrent appenders share one write and one
+ * force(): the first appender to find no flush in progress becomes the leader,
+ * waits up to the configured window for more records, and writes everything 
+ * queued so far. Every appender still returns only once its own record is on
+ * disk.
+ * 
+ * If a write or force() fails, the log can no longer tell which of its 
+ * records reached the disk. It then refuses every later append, so the slave 
+ * stops voting ready and acknowledging decisions until it is restarted and 
+ * recovers from what is on disk.
+ * 
+ * {@link #checkpoint()} bounds recovery time: it writes a snapshot of the 
+ * KeyServer to logPath.snapshot and rotates the log so that it only keeps
+ * the ready records still waiting for a decision and the records appended 
+ * while the snapshot was written. Periodic checkpoints (see 
+ * {@link #setCheckpointInterval(int)}) run on a background thread, so 
+ * decisions are only held back while the KeyServer is copied in memory. 
+ * The new log starts with a
+ * "checkpoint" record carrying the generation of its snapshot; if the slave
+ * dies between writing the snapshot and rotating the log, the generations 
+ * differ and recovery skips the records the snapshot already covers.
+ */
 public class TPCLog<K extends Serializable, V extends Serializable> {
 
+	/**
+	 * When appended records are forced to stable storage
+	 */
+	public enum ForcePolicy {
+		/** force() after every record; appendAndFlush returns once it is durable */
+		ALWAYS,
+		/** leave writeback to the operating system; only for tests and benchmarks */
+		NEVER,
+		/** batch concurrent appends into one force(), see {@link TPCLog#setGroupCommit(long, int)} */
+		GROUP
+	}
+
+	// "TPCL"
+	private static final int MAGIC = 0x5450434C;
+	private static final int HEADER_SIZE = 4;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+	private static final String CHECKPOINT = "checkpoint";
+
 	//originally: private String logPath = null;
 	private String logPath = null;
 	private KeyServer<K, V> keyServer = null;
@@ -47,9 +116,51 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
 	// Log entries
 	private ArrayList<KVMessage> entries = null;
 
-	// Keeps track of the interrupted 2PC operation (There can be at most one, 
-	// i.e., when the last 2PC operation before crashing was in READY state)
+	// Keeps track of the interrupted 2PC operations, i.e., the ones that were 
+	// in READY state when the slave crashed; the last one is also kept on its own
 	private KVMessage interruptedTpcOperation = null;
+	private ArrayList<KVMessage> interruptedTpcOperations = new ArrayList<KVMessage>();
+	// op ids of the operations whose ready and commit records are both in 
+	// the replayed log, in log order
+	private ArrayList<String> committedTpcOperations = new ArrayList<String>();
+
+	private ForcePolicy forcePolicy = ForcePolicy.ALWAYS;
+	private FileChannel channel = null;
+	// length of the well-formed prefix of the file, as found by the last load
+	private long validLength = -1;
+
+	// group commit: records queued for the next batch, and sequence numbers of
+	// the last queued and the last durable record
+	private long groupCommitDelay = 0;
+	private int groupCommitBytes = 0;
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private long appendedSeq = 0;
+	private long durableSeq = 0;
+	private boolean flushing = false;
+	// set once a write or force() has failed
+	private boolean failed = false;
+
+	// checkpoints: generation of the last snapshot (0 if none) and of the 
+	// current log file, and the number of records appended since the last one
+	private long generation = 0;
+	private long logGeneration = 0;
+	private String lastAppliedTpcOpId = null;
+	private int checkpointInterval = 0;
+	private int recordsSinceCheckpoint = 0;
+
+	// decisions that are logged but not yet applied to the KeyServer; a 
+	// checkpoint waits for them so that the snapshot includes their effects
+	private final Object applyMonitor = new Object();
+	private int applying = 0;
+	private boolean checkpointing = false;
+
+	// periodic checkpoints run on their own thread, so that the thread that
+	// applies a decision never writes a snapshot; checkpoints are serialized
+	// by checkpointLock
+	private final Object checkpointLock = new Object();
+	private final Object checkpointMonitor = new Object();
+	private Thread checkpointer = null;
+	private boolean checkpointDue = false;
 
 	public String logPath() {
 		return logPath;
@@ -60,7 +171,7 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
 		this.keyServer = keyServer;
 	}
 
-	public ArrayList<KVMessage> getEntries() {
+	public synchronized ArrayList<KVMessage> getEntries() {
 		return entries;
 	}
 
@@ -68,34 +179,192 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
 		return (entries.size() == 0);
 	}
 
-	public void appendAndFlush(KVMessage entry) {
-		// implement me
-		//		System.out.println("Entries currently has " + entries.size());
-		//		System.out.println(entry);
-		entries.add(entry);
-		this.flushToDisk();
+	/**
+	 * Appends a record and returns once it is on disk (unless the force 
+	 * policy is NEVER)
+	 * @param entry
+	 * @return false if the record may not be on disk, in which case the 
+	 * caller must act as if it had not been logged
+	 */
+	public boolean appendAndFlush(KVMessage entry) {
+		byte[] record = null;
+		try {
+			record = encodeRecord((TPCMessage) entry);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		long sequence;
+		synchronized (this) {
+			if (failed) {
+				return false;
+			}
+			try {
+				openChannel();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			if (forcePolicy != ForcePolicy.GROUP) {
+				try {
+					writeFully(channel, record);
+					if (forcePolicy == ForcePolicy.ALWAYS) {
+						channel.force(false);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed = true;
+					return false;
+				}
+				entries.add(entry);
+				recordsSinceCheckpoint++;
+				return true;
+			}
+			entries.add(entry);
+			recordsSinceCheckpoint++;
+			pending.write(record, 0, record.length);
+			sequence = ++appendedSeq;
+			if (pending.size() >= groupCommitBytes) {
+				// wake up a leader waiting for its window to fill
+				notifyAll();
+			}
+		}
+		return awaitDurable(sequence);
+	}
+
+	/**
+	 * Blocks until the record with the given sequence number has been forced, 
+	 * flushing a batch itself whenever no other thread is doing so.
+	 * @return false if the batch holding the record failed to be written
+	 */
+	private boolean awaitDurable(long sequence) {
+		boolean interrupted = false;
+		boolean durable;
+		while (true) {
+			byte[] batch;
+			long batchSeq;
+			FileChannel out;
+			synchronized (this) {
+				while (durableSeq < sequence && flushing && !failed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (durableSeq >= sequence) {
+					durable = true;
+					break;
+				}
+				if (failed) {
+					// the batch holding this record, or an earlier one, failed
+					durable = false;
+					break;
+				}
+
+				// become the leader for the next batch
+				flushing = true;
+				long deadline = System.currentTimeMillis() + groupCommitDelay;
+				long remaining = groupCommitDelay;
+				while (pending.size() < groupCommitBytes && remaining > 0 && !interrupted) {
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+					remaining = deadline - System.currentTimeMillis();
+				}
+				batch = pending.toByteArray();
+				pending.reset();
+				batchSeq = appendedSeq;
+				out = channel;
+			}
+
+			boolean written = true;
+			try {
+				writeFully(out, batch);
+				out.force(false);
+			} catch (IOException e) {
+				e.printStackTrace();
+				written = false;
+			}
+
+			synchronized (this) {
+				if (written) {
+					durableSeq = batchSeq;
+				} else {
+					failed = true;
+				}
+				flushing = false;
+				notifyAll();
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return durable;
+	}
+
+	public synchronized void setForcePolicy(ForcePolicy forcePolicy) {
+		this.forcePolicy = forcePolicy;
+	}
+
+	/**
+	 * Switches the log to group commit. 
+	 * @param maxDelayMillis how long the leader of a batch waits for more 
+	 * records; with 0 a batch holds whatever was appended while the previous
+	 * one was being forced
+	 * @param maxBatchBytes the leader stops waiting once this much is queued
+	 */
+	public synchronized void setGroupCommit(long maxDelayMillis, int maxBatchBytes) {
+		this.groupCommitDelay = maxDelayMillis;
+		this.groupCommitBytes = maxBatchBytes;
+		this.forcePolicy = ForcePolicy.GROUP;
 	}
 
 	/**
 	 * Load log from persistent storage
 	 */
-	@SuppressWarnings("unchecked")
-	public void loadFromDisk() {
-		ObjectInputStream inputStream = null;
+	public synchronized void loadFromDisk() {
+		entries = new ArrayList<KVMessage>();
+		validLength = -1;
+		logGeneration = 0;
+		DataInputStream inputStream = null;
 
 		try {
-			inputStream = new ObjectInputStream(new FileInputStream(logPath));			
-			entries = (ArrayList<KVMessage>) inputStream.readObject();
+			inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(logPath)));
+			int magic;
+			try {
+				magic = inputStream.readInt();
+			} catch (EOFException e) {
+				// empty or torn before the header was complete
+				validLength = 0;
+				return;
+			}
+			if (magic != MAGIC) {
+				inputStream.close();
+				inputStream = null;
+				entries = loadLegacy();
+				return;
+			}
+			validLength = HEADER_SIZE;
+			while (true) {
+				TPCMessage record = readRecord(inputStream);
+				if (record == null) {
+					break;
+				}
+				if (CHECKPOINT.equals(record.getMsgType()) && entries.isEmpty()) {
+					logGeneration = Long.parseLong(record.getTpcOpId());
+					continue;
+				}
+				entries.add(record);
+			}
 		} catch (FileNotFoundException e){
-			// do nothing
-		} catch (Exception e) {
+			// do nothing, if log never existed, there are no entries
+		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
-			// If log never existed, there are no entries
-			if (entries == null) {
-				entries = new ArrayList<KVMessage>();
-			}
-
 			try {
 				if (inputStream != null) {
 					inputStream.close();
@@ -107,21 +376,400 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
 	}
 
 	/**
-	 * Writes log to persistent storage
+	 * Writes log to persistent storage. Records are written as they are 
+	 * appended, so this only has to force them out of the OS cache.
+	 */
+	public synchronized void flushToDisk() {
+		try {
+			if (channel != null) {
+				channel.force(false);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Forces and closes the log file. The next append reopens it.
+	 */
+	public synchronized void close() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			drainPending();
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		channel = null;
+	}
+
+	/**
+	 * Waits for a group commit in progress and writes and forces the records 
+	 * queued for the next one. The caller holds the monitor of this log.
+	 */
+	private void drainPending() throws IOException {
+		while (flushing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		if (failed) {
+			return;
+		}
+		try {
+			// records queued for a group commit whose leader has not started yet
+			if (pending.size() > 0) {
+				writeFully(channel, pending.toByteArray());
+				pending.reset();
+			}
+			channel.force(false);
+			durableSeq = appendedSeq;
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		} finally {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Marks the start of logging and applying a decision. Checkpoints wait 
+	 * until every such decision has been applied; this waits only while a 
+	 * checkpoint copies the KeyServer in memory, not while it writes.
+	 */
+	public void beginApply() {
+		synchronized (applyMonitor) {
+			while (checkpointing) {
+				try {
+					applyMonitor.wait();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+			applying++;
+		}
+	}
+
+	/**
+	 * Marks the end of applying a decision, and starts a checkpoint in the 
+	 * background if enough records were appended since the last one. The 
+	 * decision does not have to be applied by the thread that called 
+	 * {@link #beginApply()}.
+	 */
+	public void endApply() {
+		synchronized (applyMonitor) {
+			applying--;
+			applyMonitor.notifyAll();
+		}
+		maybeCheckpoint();
+	}
+
+	/**
+	 * Take a checkpoint every so many appended records
+	 * @param records 0 to disable periodic checkpoints
+	 */
+	public synchronized void setCheckpointInterval(int records) {
+		this.checkpointInterval = records;
+	}
+
+	private void maybeCheckpoint() {
+		synchronized (this) {
+			if (checkpointInterval <= 0 || recordsSinceCheckpoint < checkpointInterval) {
+				return;
+			}
+		}
+		synchronized (checkpointMonitor) {
+			if (checkpointDue) {
+				return;
+			}
+			checkpointDue = true;
+			if (checkpointer == null) {
+				checkpointer = new Thread(new checkpointRunnable(), "tpclog-checkpoint");
+				checkpointer.setDaemon(true);
+				checkpointer.start();
+			}
+			checkpointMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Takes the checkpoints asked for by maybeCheckpoint(), one at a time
+	 */
+	class checkpointRunnable implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				synchronized (checkpointMonitor) {
+					while (!checkpointDue) {
+						try {
+							checkpointMonitor.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+				checkpoint();
+				synchronized (checkpointMonitor) {
+					checkpointDue = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the KeyServer and rotates the log so that only the 
+	 * ready records of undecided 2PC operations, and the records appended 
+	 * since the snapshot was taken, are kept. Decisions are held back only 
+	 * while the KeyServer is copied in memory; the snapshot is written while
+	 * they go on.
+	 */
+	public void checkpoint() {
+		synchronized (checkpointLock) {
+			Hashtable<K, V> data;
+			ArrayList<KVMessage> undecided;
+			int covered;
+			long nextGeneration;
+
+			synchronized (applyMonitor) {
+				checkpointing = true;
+				while (applying > 0) {
+					try {
+						applyMonitor.wait();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			try {
+				synchronized (this) {
+					if (failed) {
+						// the snapshot would cover records that may not be on disk
+						return;
+					}
+					openChannel();
+					drainPending();
+
+					undecided = new ArrayList<KVMessage>(pairRecords(entries, false).values());
+					String lastApplied = lastCommitted(entries);
+					if (lastApplied != null) {
+						lastAppliedTpcOpId = lastApplied;
+					}
+					covered = entries.size();
+					nextGeneration = generation + 1;
+					data = keyServer.snapshot();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			} catch (KVException e) {
+				e.printStackTrace();
+				return;
+			} finally {
+				synchronized (applyMonitor) {
+					checkpointing = false;
+					applyMonitor.notifyAll();
+				}
+			}
+
+			try {
+				writeSnapshot(nextGeneration, covered, data, undecided);
+				synchronized (this) {
+					if (failed) {
+						// recovery falls back to the snapshot plus this log
+						return;
+					}
+					generation = nextGeneration;
+					drainPending();
+					rotate(undecided, covered);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private String snapshotPath() {
+		return logPath + ".snapshot";
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file and renames it into place
+	 * @param generation
+	 * @param covered number of records of the current log the snapshot includes
+	 * @param data
+	 * @param undecided
 	 */
-	public void flushToDisk() {
-		ObjectOutputStream outputStream = null;
+	private void writeSnapshot(long generation, int covered, Hashtable<K, V> data, 
+			ArrayList<KVMessage> undecided) throws IOException {
+		File temp = new File(snapshotPath() + ".tmp");
+		FileOutputStream fileStream = new FileOutputStream(temp);
+		try {
+			ObjectOutputStream outputStream = new ObjectOutputStream(fileStream);
+			outputStream.writeLong(generation);
+			outputStream.writeInt(covered);
+			outputStream.writeObject(lastAppliedTpcOpId);
+			outputStream.writeObject(data);
+			outputStream.writeObject(undecided);
+			outputStream.flush();
+			fileStream.getFD().sync();
+		} finally {
+			fileStream.close();
+		}
+		replace(temp, new File(snapshotPath()));
+	}
 
+	/**
+	 * Replaces the log with one that holds a checkpoint record for the current
+	 * generation, the given records, and the records appended after the 
+	 * snapshot was taken
+	 * @param undecided
+	 * @param covered number of records of the current log the snapshot includes
+	 */
+	private void rotate(ArrayList<KVMessage> undecided, int covered) throws IOException {
+		ArrayList<KVMessage> records = new ArrayList<KVMessage>(undecided);
+		records.addAll(entries.subList(covered, entries.size()));
+		File temp = new File(logPath + ".tmp");
+		FileChannel rewrite = new RandomAccessFile(temp, "rw").getChannel();
 		try {
-			outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
-			outputStream.writeObject(entries);
+			rewrite.truncate(0);
+			writeFully(rewrite, header());
+			writeFully(rewrite, encodeRecord(new TPCMessage(CHECKPOINT, null, null, null, Long.toString(generation))));
+			for (KVMessage record : records) {
+				writeFully(rewrite, encodeRecord((TPCMessage) record));
+			}
+			rewrite.force(true);
+		} finally {
+			rewrite.close();
+		}
+		channel.close();
+		channel = null;
+		replace(temp, new File(logPath));
+
+		channel = new RandomAccessFile(logPath, "rw").getChannel();
+		validLength = channel.size();
+		channel.position(validLength);
+		entries = records;
+		logGeneration = generation;
+		recordsSinceCheckpoint = records.size() - undecided.size();
+	}
+
+	private static void replace(File temp, File target) throws IOException {
+		if (!temp.renameTo(target)) {
+			target.delete();
+			if (!temp.renameTo(target)) {
+				throw new IOException("Could not replace " + target.getPath());
+			}
+		}
+	}
+
+	/**
+	 * @return the op id of the last committed operation in the last snapshot
+	 */
+	public synchronized String getLastAppliedTpcOpId() {
+		return lastAppliedTpcOpId;
+	}
+
+	/**
+	 * Reads the record at the current position of the stream and advances
+	 * validLength past it.
+	 * @return the record, or null at the end of the log or at a torn record
+	 */
+	private TPCMessage readRecord(DataInputStream inputStream) throws IOException {
+		int length;
+		int checksum;
+		byte[] payload;
+		try {
+			length = inputStream.readInt();
+			checksum = inputStream.readInt();
+			if (length < 0 || length > MAX_RECORD_SIZE) {
+				return null;
+			}
+			payload = new byte[length];
+			inputStream.readFully(payload);
+		} catch (EOFException e) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		if ((int) crc.getValue() != checksum) {
+			return null;
+		}
+		TPCMessage record = decodeRecord(payload);
+		validLength += RECORD_HEADER_SIZE + length;
+		return record;
+	}
+
+	private static byte[] encodeRecord(TPCMessage entry) throws IOException {
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		writeField(payload, entry.getMsgType());
+		writeField(payload, entry.getKey());
+		writeField(payload, entry.getValue());
+		writeField(payload, entry.getMessage());
+		writeField(payload, entry.getTpcOpId());
+		payload.flush();
+
+		byte[] body = payloadBytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+		record.putInt(body.length);
+		record.putInt((int) crc.getValue());
+		record.put(body);
+		return record.array();
+	}
+
+	private static TPCMessage decodeRecord(byte[] payload) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+		String msgType = readField(input);
+		String key = readField(input);
+		String value = readField(input);
+		String message = readField(input);
+		String tpcOpId = readField(input);
+		return new TPCMessage(msgType, key, value, message, tpcOpId);
+	}
+
+	// fields are written as a length (-1 for null) followed by UTF-8 bytes
+	private static void writeField(DataOutputStream output, String field) throws IOException {
+		if (field == null) {
+			output.writeInt(-1);
+			return;
+		}
+		byte[] bytes = field.getBytes("UTF-8");
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readField(DataInputStream input) throws IOException {
+		int length = input.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Reads a log written as a single serialized ArrayList
+	 */
+	@SuppressWarnings("unchecked")
+	private ArrayList<KVMessage> loadLegacy() {
+		ObjectInputStream inputStream = null;
+		try {
+			inputStream = new ObjectInputStream(new FileInputStream(logPath));
+			return (ArrayList<KVMessage>) inputStream.readObject();
 		} catch (Exception e) {
 			e.printStackTrace();
+			return new ArrayList<KVMessage>();
 		} finally {
 			try {
-				if (outputStream != null) {
-					outputStream.flush();
-					outputStream.close();
+				if (inputStream != null) {
+					inputStream.close();
 				}
 			} catch (IOException e) {				
 				e.printStackTrace();
@@ -130,57 +778,92 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
 	}
 
 	/**
-	 * Load log and rebuild by iterating over log entries 
+	 * Opens the log for appending if it is not open yet. A torn record left at
+	 * the end by a crash is cut off, and a log in the old format (or one that 
+	 * was never loaded) is rewritten from the in-memory entries.
+	 */
+	private void openChannel() throws IOException {
+		if (channel != null) {
+			return;
+		}
+		File file = new File(logPath);
+		if (validLength < 0 && file.length() > 0) {
+			// not loaded in the new format: rewrite everything we know about
+			File temp = new File(logPath + ".tmp");
+			FileChannel rewrite = new RandomAccessFile(temp, "rw").getChannel();
+			try {
+				rewrite.truncate(0);
+				writeFully(rewrite, header());
+				for (int i = 0; i < entries.size(); i++) {
+					writeFully(rewrite, encodeRecord((TPCMessage) entries.get(i)));
+				}
+				rewrite.force(true);
+			} finally {
+				rewrite.close();
+			}
+			replace(temp, file);
+		}
+
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		if (channel.size() < HEADER_SIZE) {
+			channel.truncate(0);
+			writeFully(channel, header());
+		} else if (validLength >= HEADER_SIZE && channel.size() > validLength) {
+			channel.truncate(validLength);
+		}
+		channel.position(channel.size());
+	}
+
+	private static byte[] header() {
+		return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).array();
+	}
+
+	private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Load log and rebuild by iterating over log entries. Several 2PC operations
+	 * may be in flight on a slave at once, so their records can interleave; a
+	 * decision is matched to its ready record by TPC op id, not by position.
 	 * @throws KVException
 	 */
-	public void rebuildKeyServer() throws KVException {
-		// implement me
+	@SuppressWarnings("unchecked")
+	public synchronized void rebuildKeyServer() throws KVException {
 		this.loadFromDisk();
-		int x = 0; //just a counter
-		while (x< entries.size()) { //execute each operation in entries
-			TPCMessage msg = (TPCMessage) entries.get(x);
-
-			//check if there is no following abort / commit tpc message (interrupted) 
-			if (entries.size()-1 <= x || entries.get(x+1) == null) {
-				interruptedTpcOperation = entries.get(x); 
-				x++;
-			} else {
-				interruptedTpcOperation = null;
-
-				//execute message in log
-				TPCMessage nextMsg = (TPCMessage) entries.get(x+1);
-				if (msg.getMessage().equals("putreq")) {
-					if (msg.getTpcOpId().equals(nextMsg.getTpcOpId())) {
-						if (nextMsg.getMsgType().equals("commit")) {
-							try {
-								keyServer.put((K)msg.getKey(), (V)msg.getValue());
-								x+=2;
-							} catch (KVException e) {
-								throw new KVException (new KVMessage ("Error with KV Message put" + e));
-							}
-						} else if (nextMsg.getMsgType().equals("abort")){
-							x+=2;//do nothing
-						}
-					} else {//TPCOpID does not match
-						throw new KVException (new KVMessage ("Error-- TPCOpID does not match!"));
-					}
-				}
-				else if (msg.getMessage().equals("delreq")) {
-					if (msg.getTpcOpId().equals(nextMsg.getTpcOpId())) {
-						if (nextMsg.getMsgType().equals("commit")) {
-							try {
-								keyServer.del((K)msg.getKey());
-								x+=2;
-							} catch (KVException e) {
-								throw new KVException (new KVMessage ("Error with KV Message del" + e));
-							}
-						} else if (nextMsg.getMsgType().equals("abort")) {
-							x+=2;//do nothing
-						}
-					} else { //TPCOpID does not match
-						throw new KVException (new KVMessage ("Error-- TPCOpID does not match!"));
-					}
+
+		// start from the last snapshot, if there is one, and replay only the 
+		// records written after it
+		ArrayList<KVMessage> tail = entries;
+		ObjectInputStream snapshot = null;
+		try {
+			snapshot = new ObjectInputStream(new FileInputStream(snapshotPath()));
+			generation = snapshot.readLong();
+			int covered = snapshot.readInt();
+			lastAppliedTpcOpId = (String) snapshot.readObject();
+			Hashtable<K, V> data = (Hashtable<K, V>) snapshot.readObject();
+			ArrayList<KVMessage> undecided = (ArrayList<KVMessage>) snapshot.readObject();
+			keyServer.restore(data);
+			if (logGeneration != generation) {
+				// died before the log was rotated: the log still holds what 
+				// the snapshot covers
+				tail = new ArrayList<KVMessage>(undecided);
+				tail.addAll(entries.subList(Math.min(covered, entries.size()), entries.size()));
+			}
+		} catch (FileNotFoundException e) {
+			// no checkpoint yet, replay the whole log
+		} catch (Exception e) {
+			throw new KVException(new KVMessage("Error reading TPCLog snapshot " + e));
+		} finally {
+			try {
+				if (snapshot != null) {
+					snapshot.close();
 				}
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
 
@@ -192,28 +875,115 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
 		 * ready for del --> commit
 		 * ready for del --> interrupted (call get intrruptedtpcop)
 		 */
+		interruptedTpcOperations = new ArrayList<KVMessage>(pairRecords(tail, true).values());
+		if (interruptedTpcOperations.isEmpty()) {
+			interruptedTpcOperation = null;
+		} else {
+			interruptedTpcOperation = interruptedTpcOperations.get(interruptedTpcOperations.size() - 1);
+		}
+		committedTpcOperations = committed(tail);
+		recordsSinceCheckpoint = entries.size();
+	}
 
-		/* Old, Simplified stuff:
-		for (int x = 0; x < entries.size(); x++) {
-			try {
-				TPCMessage msg = entries.get(x);
-				if ((msg.getMsgType().equals("get"))) {
-					keyServer.get((K) msg.getKey());
-				}
-				if ((msg.getMsgType().equals("put"))) { //if message is abort, don't do anything
-					keyServer.put((K)msg.getKey(), (V)msg.getValue());
-				}
-				if ((msg.getMsgType().equals("delete"))) {
-					keyServer.del((K)msg.getKey());
+	/**
+	 * Matches every decision to its ready record. Several 2PC operations may be
+	 * in flight on a slave at once, so their records can interleave; a decision 
+	 * is matched by TPC op id, not by position.
+	 * @param records
+	 * @param redo whether to apply committed operations to the KeyServer
+	 * @return ready records that have not seen their decision yet, in log order
+	 * @throws KVException
+	 */
+	private LinkedHashMap<String, TPCMessage> pairRecords(ArrayList<KVMessage> records, boolean redo) throws KVException {
+		LinkedHashMap<String, TPCMessage> pending = new LinkedHashMap<String, TPCMessage>();
+		for (KVMessage entry : records) {
+			TPCMessage msg = (TPCMessage) entry;
+			if ("ready".equals(msg.getMsgType())) {
+				pending.put(msg.getTpcOpId(), msg);
+			} else if ("commit".equals(msg.getMsgType())) {
+				TPCMessage ready = pending.remove(msg.getTpcOpId());
+				// no ready record means this slave voted abort, so there is nothing to redo
+				if (ready != null && redo) {
+					redo(ready);
 				}
+			} else if ("abort".equals(msg.getMsgType())) {
+				pending.remove(msg.getTpcOpId());
+			}
+		}
+		return pending;
+	}
 
-				if ((msg.getMsgType().equals("abort"))) {
-					// don't do anything
-				}
-			} catch (Exception e) {
-				throw new KVException (new KVMessage ("Error with KVMessage " + e));
+	/**
+	 * @param records
+	 * @return the op ids of the commit records that follow a ready record of 
+	 * the same operation, in log order
+	 */
+	private static ArrayList<String> committed(ArrayList<KVMessage> records) {
+		HashSet<String> ready = new HashSet<String>();
+		ArrayList<String> committed = new ArrayList<String>();
+		for (KVMessage entry : records) {
+			TPCMessage msg = (TPCMessage) entry;
+			if ("ready".equals(msg.getMsgType())) {
+				ready.add(msg.getTpcOpId());
+			} else if ("commit".equals(msg.getMsgType()) && ready.remove(msg.getTpcOpId())) {
+				committed.add(msg.getTpcOpId());
 			}
-		}*/
+		}
+		return committed;
+	}
+
+	/**
+	 * @param records
+	 * @return the op id of the last commit record, or null if there is none
+	 */
+	private static String lastCommitted(ArrayList<KVMessage> records) {
+		for (int i = records.size() - 1; i >= 0; i--) {
+			if ("commit".equals(records.get(i).getMsgType())) {
+				return ((TPCMessage) records.get(i)).getTpcOpId();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Apply a committed operation to the KeyServer
+	 * @param ready the ready record of the operation
+	 * @throws KVException
+	 */
+	@SuppressWarnings("unchecked")
+	private void redo(TPCMessage ready) throws KVException {
+		if (ready.getMessage().equals("putreq")) {
+			try {
+				keyServer.put((K) decodeLogged(ready.getKey()), (V) decodeLogged(ready.getValue()));
+			} catch (KVException e) {
+				throw new KVException (new KVMessage ("Error with KV Message put" + e));
+			}
+		} else if (ready.getMessage().equals("delreq")) {
+			try {
+				keyServer.del((K) decodeLogged(ready.getKey()));
+			} catch (KVException e) {
+				throw new KVException (new KVMessage ("Error with KV Message del" + e));
+			}
+		} else if (ready.getMessage().equals(TPCMessage.MULTI_REQ)) {
+			// the requests of a multireq are applied in order, as when committed
+			for (TPCMessage mutation : TPCMessage.decodeBatch(ready.getValue(), ready.getTpcOpId())) {
+				redo(new TPCMessage("ready", mutation.getKey(), mutation.getValue(), 
+						mutation.getMsgType(), ready.getTpcOpId()));
+			}
+		}
+	}
+
+	/**
+	 * TPCMasterHandler logs keys and values as they arrive on the wire, i.e. 
+	 * marshalled by {@link TPCMessage#encodeObject(Object)}; anything that does 
+	 * not decode was logged as-is.
+	 */
+	private Object decodeLogged(String logged) {
+		try {
+			return TPCMessage.decodeObject(logged);
+		} catch (KVException e) {
+			return logged;
+		}
 	}
 
 	/**
@@ -226,6 +996,23 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
 		return logEntry; 
 	}
 
+	/**
+	 * 
+	 * @return Ready records of all the interrupted 2PC operations, in log order
+	 */
+	public ArrayList<KVMessage> getInterruptedTpcOperations() {
+		return interruptedTpcOperations;
+	}
+
+	/**
+	 * 
+	 * @return Op ids of the 2PC operations this slave committed, as far back 
+	 * as the replayed log goes, in log order
+	 */
+	public ArrayList<String> getCommittedTpcOperations() {
+		return committedTpcOperations;
+	}
+
 	/**
 	 * 
 	 * @return True if TPCLog contains an interrupted 2PC operation
@@ -2,6 +2,9 @@ package edu.berkeley.cs162;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.util.ArrayList;
 
 import org.junit.Test;
@@ -207,6 +210,231 @@ public class TPCLogTest {
 		//verify that log hasInterruptedTpcOperation
 		//assertTrue(log2.hasInterruptedTpcOperation());		
 	}
+	
+	//test that a record torn by a crash is dropped and cut off by the next append
+	@Test
+	public void testTornTail() throws Exception {
+		KeyServer<String, String> server = new KeyServer<String, String>(10);
+		double someRando = Math.random();
+		TPCLog<String, String> log = new TPCLog<String, String> ("logPath" + someRando, server);
+		
+		TPCMessage put1 = new TPCMessage ("ready", "key1", "value1", "putreq", "1");
+		log.appendAndFlush(put1);
+		TPCMessage commitPut1 = new TPCMessage ("commit", "1");
+		log.appendAndFlush(commitPut1);
+		log.close();
+		
+		//half of a record, as if the slave died in the middle of a write
+		RandomAccessFile file = new RandomAccessFile(log.logPath(), "rw");
+		file.seek(file.length());
+		file.writeInt(100);
+		file.writeInt(12345);
+		file.write(new byte[10]);
+		file.close();
+		
+		TPCLog<String, String> log2 = new TPCLog<String, String> (log.logPath(), server);
+		log2.loadFromDisk();
+		assertEquals(2, log2.getEntries().size());
+		assertTrue(((TPCMessage) log2.getEntries().get(0)).equals(put1));
+		assertTrue(((TPCMessage) log2.getEntries().get(1)).equals(commitPut1));
+		
+		TPCMessage put2 = new TPCMessage ("ready", "key2", "value2", "putreq", "2");
+		log2.appendAndFlush(put2);
+		log2.close();
+		
+		TPCLog<String, String> log3 = new TPCLog<String, String> (log.logPath(), server);
+		log3.loadFromDisk();
+		assertEquals(3, log3.getEntries().size());
+		assertTrue(((TPCMessage) log3.getEntries().get(2)).equals(put2));
+		new File(log.logPath()).delete();
+	}
+	
+	//test that concurrent appenders under group commit all get their records on disk, in order
+	@Test
+	public void testGroupCommit() throws Exception {
+		final int threads = 8;
+		final int perThread = 25;
+		double someRando = Math.random();
+		final TPCLog<String, String> log = new TPCLog<String, String> ("logPath" + someRando, null);
+		log.setGroupCommit(2, 4096);
+		
+		Thread[] appenders = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			appenders[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < perThread; i++) {
+						log.appendAndFlush(new TPCMessage("ready", "key" + id, "value" + i, "putreq", id + "-" + i));
+					}
+				}
+			};
+			appenders[t].start();
+		}
+		for (Thread appender : appenders) {
+			appender.join();
+		}
+		
+		//every record must be durable without close()
+		TPCLog<String, String> log2 = new TPCLog<String, String> (log.logPath(), null);
+		log2.loadFromDisk();
+		assertEquals(threads * perThread, log2.getEntries().size());
+		int[] next = new int[threads];
+		for (KVMessage entry : log2.getEntries()) {
+			TPCMessage record = (TPCMessage) entry;
+			int id = Integer.parseInt(record.getKey().substring(3));
+			assertEquals("value" + next[id], record.getValue());
+			next[id]++;
+		}
+		log.close();
+		new File(log.logPath()).delete();
+	}
+	
+	//test that recovery starts from the last checkpoint and replays only the tail of the log
+	@Test
+	public void testCheckpoint() throws Exception {
+		KeyServer<String, String> server = new KeyServer<String, String>(10);
+		double someRando = Math.random();
+		TPCLog<String, String> log = new TPCLog<String, String> ("logPath" + someRando, server);
+		
+		//committed and applied before the checkpoint
+		log.appendAndFlush(new TPCMessage ("ready", "key1", "value1", "putreq", "1"));
+		log.beginApply();
+		log.appendAndFlush(new TPCMessage ("commit", "1"));
+		server.put("key1", "value1");
+		log.endApply();
+		
+		//still undecided at the checkpoint
+		TPCMessage put2 = new TPCMessage ("ready", "key2", "value2", "putreq", "2");
+		log.appendAndFlush(put2);
+		byte[] beforeRotation = Files.readAllBytes(new File(log.logPath()).toPath());
+		log.checkpoint();
+		assertEquals(1, log.getEntries().size());
+		assertEquals("1", log.getLastAppliedTpcOpId());
+		
+		//written after the checkpoint
+		log.appendAndFlush(new TPCMessage ("ready", "key3", "value3", "putreq", "3"));
+		log.appendAndFlush(new TPCMessage ("commit", "3"));
+		log.close();
+		
+		KeyServer<String, String> server2 = new KeyServer<String, String>(10);
+		TPCLog<String, String> log2 = new TPCLog<String, String> (log.logPath(), server2);
+		log2.rebuildKeyServer();
+		assertEquals(3, log2.getEntries().size());
+		assertEquals("value1", server2.get("key1"));
+		assertEquals("value3", server2.get("key3"));
+		assertEquals(1, log2.getInterruptedTpcOperations().size());
+		assertTrue(((TPCMessage) log2.getInterruptedTpcOperations().get(0)).equals(put2));
+		
+		//a slave that died after writing the snapshot but before rotating the log
+		Files.write(new File(log.logPath()).toPath(), beforeRotation);
+		KeyServer<String, String> server3 = new KeyServer<String, String>(10);
+		TPCLog<String, String> log3 = new TPCLog<String, String> (log.logPath(), server3);
+		log3.rebuildKeyServer();
+		assertEquals("value1", server3.get("key1"));
+		assertEquals(1, log3.getInterruptedTpcOperations().size());
+		assertTrue(((TPCMessage) log3.getInterruptedTpcOperations().get(0)).equals(put2));
+		
+		new File(log.logPath()).delete();
+		new File(log.logPath() + ".snapshot").delete();
+	}
+	
+	//test that a periodic checkpoint runs in the background and keeps the records it did not cover
+	@Test
+	public void testBackgroundCheckpoint() throws Exception {
+		KeyServer<String, String> server = new KeyServer<String, String>(10);
+		double someRando = Math.random();
+		TPCLog<String, String> log = new TPCLog<String, String> ("logPath" + someRando, server);
+		log.setCheckpointInterval(2);
+		
+		log.appendAndFlush(new TPCMessage ("ready", "key1", "value1", "putreq", "1"));
+		log.beginApply();
+		log.appendAndFlush(new TPCMessage ("commit", "1"));
+		server.put("key1", "value1");
+		log.endApply();
+		
+		File snapshot = new File(log.logPath() + ".snapshot");
+		for (int i = 0; i < 50 && !snapshot.exists(); i++) {
+			Thread.sleep(100);
+		}
+		assertTrue(snapshot.exists());
+		log.appendAndFlush(new TPCMessage ("ready", "key2", "value2", "putreq", "2"));
+		log.appendAndFlush(new TPCMessage ("commit", "2"));
+		log.close();
+		
+		KeyServer<String, String> server2 = new KeyServer<String, String>(10);
+		TPCLog<String, String> log2 = new TPCLog<String, String> (log.logPath(), server2);
+		log2.rebuildKeyServer();
+		assertEquals("value1", server2.get("key1"));
+		assertEquals("value2", server2.get("key2"));
+		assertEquals(0, log2.getInterruptedTpcOperations().size());
+		
+		new File(log.logPath()).delete();
+		snapshot.delete();
+	}
+	
+	//test that the requests of a committed multireq are replayed in order
+	@Test
+	public void testMultiRequest() throws Exception {
+		KeyServer<String, String> server = new KeyServer<String, String>(10);
+		double someRando = Math.random();
+		TPCLog<String, String> log = new TPCLog<String, String> ("logPath" + someRando, server);
+		
+		ArrayList<TPCMessage> batch = new ArrayList<TPCMessage>();
+		batch.add(new TPCMessage("putreq", "key1", "value1", "1"));
+		batch.add(new TPCMessage("putreq", "key2", "value2", "1"));
+		batch.add(new TPCMessage("delreq", "key1", "1", true));
+		String value = TPCMessage.encodeBatch(batch);
+		log.appendAndFlush(new TPCMessage ("ready", null, value, TPCMessage.MULTI_REQ, "1"));
+		log.appendAndFlush(new TPCMessage ("commit", "1"));
+		log.appendAndFlush(new TPCMessage ("ready", null, value, TPCMessage.MULTI_REQ, "2"));
+		log.close();
+		
+		KeyServer<String, String> server2 = new KeyServer<String, String>(10);
+		TPCLog<String, String> log2 = new TPCLog<String, String> (log.logPath(), server2);
+		log2.rebuildKeyServer();
+		assertEquals("value2", server2.get("key2"));
+		try {
+			server2.get("key1");
+			fail();
+		} catch (KVException e) {
+			//deleted after it was put
+		}
+		assertEquals(1, log2.getInterruptedTpcOperations().size());
+		assertEquals(3, TPCMessage.decodeBatch(
+				log2.getInterruptedTpcOperations().get(0).getValue(), "2").size());
+		
+		new File(log.logPath()).delete();
+	}
+	
+	//test that appends report a disk that fails, to every appender of a group commit
+	@Test
+	public void testFailedAppend() throws Exception {
+		if (!new File("/dev/full").exists()) {
+			//needs a device that fails every write
+			return;
+		}
+		KeyServer<String, String> server = new KeyServer<String, String>(10);
+		TPCLog<String, String> log = new TPCLog<String, String> ("/dev/full", server);
+		assertFalse(log.appendAndFlush(new TPCMessage ("ready", "key1", "value1", "putreq", "1")));
+		assertFalse(log.appendAndFlush(new TPCMessage ("ready", "key1", "value1", "putreq", "1")));
+		
+		final TPCLog<String, String> group = new TPCLog<String, String> ("/dev/full", server);
+		group.setGroupCommit(50, 1024);
+		final boolean[] appended = new boolean[4];
+		Thread[] appenders = new Thread[appended.length];
+		for (int i = 0; i < appenders.length; i++) {
+			final int id = i;
+			appenders[i] = new Thread() {
+				public void run() {
+					appended[id] = group.appendAndFlush(new TPCMessage ("commit", "" + id));
+				}
+			};
+			appenders[i].start();
+		}
+		for (int i = 0; i < appenders.length; i++) {
+			appenders[i].join(5000);
+			assertFalse(appenders[i].isAlive());
+			assertFalse(appended[i]);
+		}
+	}
 }
-
-
@@ -38,13 +38,18 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.Hashtable;
-import java.util.SortedMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
-import java.util.TreeSet;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.crypto.KeyGenerator;
@@ -60,21 +65,10 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 	 */
 	private class TPCRegistrationHandler implements NetworkHandler {
 
-		private ThreadPool threadpool = null;
-
-		public TPCRegistrationHandler() {
-			// Call the other constructor
-			this(1);	
-		}
-
-		public TPCRegistrationHandler(int connections) {
-			threadpool = new ThreadPool(connections);	
-		}
-
 		@Override
 		public void handle(Socket client) throws IOException {
 			try {
-				threadpool.addToQueue(new registrationRunnable(client));
+				submit(Lane.CONTROL, new registrationRunnable(client));
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
@@ -91,9 +85,10 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 				SlaveInfo newSlave = null;
 				TPCMessage registration = null;
 
-				// read registration message from SlaveServer
+				// read registration message from SlaveServer, remembering its 
+				// format so that an XML-only slave gets an XML reply
 				try {
-					registration = new TPCMessage(client.getInputStream());
+					registration = new TPCMessage(WireProtocol.receive(client));
 					newSlave = new SlaveInfo(registration.getMessage());
 				} catch (KVException e) {
 					System.err.println("error reading registration message");
@@ -102,7 +97,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 				}
 
 				addToConsistentHash(newSlave);
-				if (consistentHash.size() >= listOfSlaves.length)
+				if (registeredSlaveCount() >= listOfSlaves.length)
 					synchronized(TPCMaster.this){
 						TPCMaster.this.notifyAll();
 					}
@@ -126,9 +121,11 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 		// Port which SlaveServer is listening to
 		private int port = -1;
 
-		// Variables to be used to maintain connection with this SlaveServer
-		private KVClient<K, V> kvClient = null;
-		private Socket kvSocket = null;
+		// Long-lived connections to this SlaveServer, shared by all requests
+		private ConnectionPool connections = null;
+
+		// GETs sent to this SlaveServer that have not been answered yet
+		private final AtomicInteger outstandingReads = new AtomicInteger();
 
 		/**
 		 * 
@@ -156,23 +153,28 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 			this.slaveID = slaveID;
 			this.port = port;
 			this.hostName = hostName;
-
+			this.connections = new ConnectionPool(hostName, port, 
+					MAX_CONNECTIONS_PER_SLAVE, MAX_IDLE_CONNECTIONS_PER_SLAVE);
 		}
 
 		public long getSlaveID() {
 			return slaveID;
 		}
 
-		public KVClient<K, V> getKvClient() {
-			return kvClient;
-		}
-
-		public Socket getKvSocket() {
-			return kvSocket;
+		/**
+		 * @return a connection to this SlaveServer, to be handed back with
+		 * WireProtocol.recycle() (which TPCMessage.sendReceive() does)
+		 * @throws IOException
+		 */
+		public Socket connect() throws IOException {
+			return connections.borrow();
 		}
 
-		public void setKvSocket(Socket kvSocket) {
-			this.kvSocket = kvSocket;
+		/**
+		 * Closes the idle connections, e.g. when the SlaveServer re-registers
+		 */
+		public void closeConnections() {
+			connections.close();
 		}
 
 		public String getHostName() {
@@ -191,6 +193,12 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 
 	// Timeout value used during 2PC operations
 	private static final int TIMEOUT_MILLISECONDS = 0;
+	// how long to wait before resending a decision whose ack did not arrive
+	private static final int RESEND_MILLISECONDS = 100;
+
+	// Bounds on the connection pool of each SlaveServer
+	private static final int MAX_CONNECTIONS_PER_SLAVE = 32;
+	private static final int MAX_IDLE_CONNECTIONS_PER_SLAVE = 16;
 
 	// Cache stored in the Master/Coordinator Server
 	private KVCache<K, V> masterCache = new KVCache<K, V>(1000);
@@ -198,38 +206,100 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 	// Registration server that uses TPCRegistrationHandler
 	private SocketServer regServer = null;
 
-	// ID of the next 2PC operation
-	private Long tpcOpId = 0L;
+	// ID of the last 2PC operation handed out
+	private AtomicLong tpcOpId = new AtomicLong(0L);
+
+	// Ring of tokens, each SlaveServer owning virtualNodes * weight of them.
+	// Lookups read the current snapshot without locking; registrations 
+	// build a new one.
+	private volatile HashRing<SlaveInfo> consistentHash = HashRing.<SlaveInfo>empty();
+
+	// Number of SlaveServers that store each key, and how many of them must
+	// acknowledge a commit before the client is answered
+	public static final int DEFAULT_REPLICAS = 2;
+	private volatile int replicationFactor = DEFAULT_REPLICAS;
+	private volatile int writeQuorum = DEFAULT_REPLICAS;
 
-	private SortedMap<Long, SlaveInfo> consistentHash = new TreeMap<Long, SlaveInfo>();
+	// Commit protocol options, see setCommitProtocol()
+	private volatile boolean onePhaseCommit = true;
+	private volatile boolean presumedAbort = true;
+	private volatile boolean replyOnDecision = false;
+
+	// Window in which writes to the same replicas are sent as one multireq,
+	// see setWriteBatching(); 0 sends every write on its own
+	public static final int NO_BATCHING = 0;
+	private volatile int batchWindow = NO_BATCHING;
+	private volatile int maxBatch = 1;
+	// batches still taking writes, by the IDs of their replicas; guarded by itself
+	private final HashMap<String, WriteBatch> openBatches = new HashMap<String, WriteBatch>();
+
+	// Tokens per unit of weight; 1 places each SlaveServer at its ID only
+	public static final int DEFAULT_VIRTUAL_NODES = 1;
+	private volatile int virtualNodes = DEFAULT_VIRTUAL_NODES;
+
+	// Places keys on the ring; StringKeyHash is the original placement
+	private volatile KeyHash keyHash = new StringKeyHash();
+
+	// Weights of SlaveServers that own more than one share of the ring
+	private ConcurrentHashMap<Long, Integer> slaveWeights = new ConcurrentHashMap<Long, Integer>();
 
 	private SocketServer clientServer = null;
 
-	private ThreadPool threadpool = null;
+	/**
+	 * Execution lanes of the coordinator. Each lane has its own ThreadPool,
+	 * sized and bounded independently, so that a burst of writes stalled on
+	 * slave votes cannot hold up cache-miss GETs.
+	 */
+	public enum Lane {
+		// GETs sent to the slaves; when full, a GET is answered with ThreadPool.BUSY
+		READ,
+		// the phases of 2PC operations; when full, writers wait for room, since
+		// an operation that has started must get through both phases
+		TPC,
+		// registrations and ignoreNext requests
+		CONTROL,
+		// the second GETs of hedged reads; when full, a GET is not hedged
+		HEDGE
+	}
+
+	private static final int DEFAULT_READ_THREADS = 10;
+	private static final int DEFAULT_HEDGE_THREADS = 10;
+	private static final int DEFAULT_TPC_THREADS = 10;
+	private static final int DEFAULT_CONTROL_THREADS = 2;
+	private static final int DEFAULT_LANE_CAPACITY = 1000;
+
+	private final EnumMap<Lane, ThreadPool> lanes = new EnumMap<Lane, ThreadPool>(Lane.class);
+
+	/**
+	 * Which of the two replicas of a key a cache-miss GET asks first. The 
+	 * other one is asked if the first does not have the key.
+	 */
+	public enum ReadRouting {
+		// always the first replica on the ring, then its successor
+		PRIMARY_FIRST,
+		// the two replicas in turn
+		ROUND_ROBIN,
+		// the replica with fewer GETs in flight, in turn on a tie
+		LEAST_OUTSTANDING
+	}
+
+	// hedge delay that turns hedging off
+	public static final int NO_HEDGING = 0;
+
+	private volatile ReadRouting readRouting = ReadRouting.LEAST_OUTSTANDING;
+	private volatile int hedgeDelay = NO_HEDGING;
+	// turn counter for choosing between two replicas
+	private AtomicLong readTurn = new AtomicLong(0L);
 
-	private Hashtable<String, ReentrantReadWriteLock> accessLocks = 
-			new Hashtable<String, ReentrantReadWriteLock>();
+	// Per-key locks, striped over the encoded key
+	private StripedLock accessLocks = new StripedLock();
 
-	String abortMessage = "";
-	String getReturnValue;
-	boolean getFinished = false;
+	// Fetches from the replicas in flight, by encoded key
+	private SingleFlight<String, V> cacheMisses = new SingleFlight<String, V>();
 
-	private Long currentTpcOpId = -1L;
-	private Integer finishedCount = 0;
-	private Integer finishedCount2 = 0;
-	private Integer allDone = 0;
-	
-	private ReentrantLock transactionLock = new ReentrantLock();
-	private boolean canCommit = false;
-	private ReentrantLock canCommitLock = new ReentrantLock();
 	private enum EState {
 		NOSTATE, INIT, ABORT, COMMIT
 	}
-	private EState TPCState = EState.NOSTATE;
-	private ReentrantLock TPCStateLock = new ReentrantLock();
-	//added by Doug
-	private ReentrantReadWriteLock consistantHashLock = new ReentrantReadWriteLock();
-
 	public String[] listOfSlaves;
 
 
@@ -244,10 +314,12 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 		listOfSlaves = slaves;
 		// Create registration server
 		regServer = new SocketServer(InetAddress.getLocalHost().getHostAddress(), 9090);
-		regServer.addHandler(new TPCRegistrationHandler(1));
+		regServer.addHandler(new TPCRegistrationHandler());
 
-		// delayed start ThreadPool
-		threadpool = new ThreadPool(10); //TODO: how many threads?
+		setLane(Lane.READ, DEFAULT_READ_THREADS, DEFAULT_LANE_CAPACITY);
+		setLane(Lane.TPC, DEFAULT_TPC_THREADS, DEFAULT_LANE_CAPACITY);
+		setLane(Lane.CONTROL, DEFAULT_CONTROL_THREADS, ThreadPool.UNBOUNDED);
+		setLane(Lane.HEDGE, DEFAULT_HEDGE_THREADS, DEFAULT_HEDGE_THREADS);
 		KeyGenerator keygen = KeyGenerator.getInstance("DESede");
 		masterKey = keygen.generateKey();
 	}
@@ -256,6 +328,93 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 		return masterKey;
 	}
 
+	/**
+	 * Resizes a lane. Must be called before run() and before any request is
+	 * handled.
+	 * @param lane
+	 * @param threads number of workers
+	 * @param capacity number of tasks the lane may hold queued or running, 
+	 * or ThreadPool.UNBOUNDED
+	 */
+	public void setLane(Lane lane, int threads, int capacity) {
+		ThreadPool pool;
+		switch (lane) {
+		case READ:
+		case HEDGE:
+			pool = new ThreadPool(threads, capacity, 
+					ThreadPool.RejectionPolicy.FAIL, ThreadPool.Scheduling.WORK_STEALING);
+			break;
+		case TPC:
+			// every write hands off two runnables per phase, so the workers keep
+			// their own deques rather than all contending on one queue
+			pool = new ThreadPool(threads, capacity, 
+					ThreadPool.RejectionPolicy.BLOCK, ThreadPool.Scheduling.WORK_STEALING);
+			break;
+		default:
+			pool = new ThreadPool(threads, capacity, ThreadPool.RejectionPolicy.BLOCK);
+			break;
+		}
+		ThreadPool old = lanes.put(lane, pool);
+		if (old != null) {
+			old.shutdown();
+		}
+	}
+
+	/**
+	 * @param routing how a cache-miss GET chooses the replica it asks first
+	 */
+	public void setReadRouting(ReadRouting routing) {
+		this.readRouting = routing;
+	}
+
+	/**
+	 * Turns on hedged GETs: if the replica asked first has not answered 
+	 * within the delay, the other replica is asked as well, and the first 
+	 * value to come back is used. This bounds the latency added by one slow 
+	 * SlaveServer (e.g. one replaying its log) at the cost of extra GETs.
+	 * The second replica is asked from the HEDGE lane; a GET that finds the 
+	 * lane full is not hedged.
+	 * @param milliseconds delay before the second replica is asked, or 
+	 * NO_HEDGING
+	 */
+	public void setHedgeDelay(int milliseconds) {
+		this.hedgeDelay = Math.max(milliseconds, NO_HEDGING);
+	}
+
+	/**
+	 * @param primary first replica of a key
+	 * @param successor second replica of the key
+	 * @return whether a GET should ask the successor before the primary
+	 */
+	private boolean readFromSuccessorFirst(SlaveInfo primary, SlaveInfo successor) {
+		if (primary == successor) {
+			return false;
+		}
+		switch (readRouting) {
+		case PRIMARY_FIRST:
+			return false;
+		case ROUND_ROBIN:
+			return (readTurn.getAndIncrement() & 1) == 1;
+		default:
+			int primaryReads = primary.outstandingReads.get();
+			int successorReads = successor.outstandingReads.get();
+			if (primaryReads != successorReads) {
+				return successorReads < primaryReads;
+			}
+			return (readTurn.getAndIncrement() & 1) == 1;
+		}
+	}
+
+	/**
+	 * @param lane
+	 * @param task
+	 * @throws InterruptedException
+	 * @throws RejectedExecutionException if the lane is full and turns tasks away
+	 */
+	private void submit(Lane lane, Runnable task) throws InterruptedException {
+		lanes.get(lane).addToQueue(task);
+	}
+
 	/**
 	 * Calculates tpcOpId to be used for an operation. In this implementation
 	 * it is a long variable that increases by one for each 2PC operation. 
@@ -263,8 +422,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 	 * @return 
 	 */
 	private String getNextTpcOpId() {
-		tpcOpId++;
-		return tpcOpId.toString();		
+		return Long.toString(tpcOpId.incrementAndGet());
 	}
 
 	/**
@@ -290,24 +448,6 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 
 	}
 
-	/**
-	 * Converts Strings to 64-bit longs
-	 * Borrowed from http://stackoverflow.com/questions/1660501/what-is-a-good-64bit-hash-function-in-java-for-textual-strings
-	 * Adapted from String.hashCode()
-	 * @param string String to hash to 64-bit
-	 * @return
-	 */
-	private long hashTo64bit(String string) {
-		// Take a large prime
-		long h = 1125899906842597L; 
-		int len = string.length();
-
-		for (int i = 0; i < len; i++) {
-			h = 31*h + string.charAt(i);
-		}
-		return h;
-	}
-
 	/**
 	 * Compares two longs as if they were unsigned (Java doesn't have unsigned data types except for char)
 	 * Borrowed from http://www.javamex.com/java_equivalents/unsigned_arithmetic.shtml
@@ -323,6 +463,106 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 		return isLessThanUnsigned(n1, n2) || n1 == n2;
 	}	
 
+	/**
+	 * Sets the number of tokens each SlaveServer gets on the ring. With a 
+	 * single token a SlaveServer owns the arc that ends at its ID, so 
+	 * hand-picked IDs can leave one SlaveServer most of the keys; many 
+	 * tokens at hashed positions even this out. Must be called before the 
+	 * SlaveServers register, since moving tokens moves keys.
+	 * @param tokens tokens per unit of weight, at least 1
+	 */
+	public void setVirtualNodes(int tokens) {
+		if (tokens < 1) {
+			throw new IllegalArgumentException("A SlaveServer needs at least one token");
+		}
+		this.virtualNodes = tokens;
+	}
+
+	/**
+	 * Sets how many SlaveServers store each key, and how many of them must 
+	 * acknowledge a commit before the client gets its answer. Every replica 
+	 * still has to vote to commit, and the key stays locked until all of 
+	 * them have acknowledged, so later operations on the key never see a 
+	 * replica that is behind; a smaller quorum only answers the client 
+	 * sooner, trading durability for latency. Must be called before any data
+	 * is stored, since it moves keys.
+	 * @param replicas SlaveServers per key, at least 1
+	 * @param writeQuorum acknowledgements needed, between 1 and replicas
+	 */
+	public void setReplication(int replicas, int writeQuorum) {
+		if (replicas < 1 || writeQuorum < 1 || writeQuorum > replicas) {
+			throw new IllegalArgumentException("Need 1 <= writeQuorum <= replicas");
+		}
+		this.replicationFactor = replicas;
+		this.writeQuorum = writeQuorum;
+	}
+
+	/**
+	 * Chooses the optimizations of the commit protocol.
+	 * @param onePhase a key with a single replica is written in one round 
+	 * trip: the request carries the decision, and the SlaveServer logs, 
+	 * applies and acknowledges it at once (a SlaveServer that does not know 
+	 * this answers ready, and gets the usual decision)
+	 * @param presumedAbort replicas that voted abort are not sent the abort 
+	 * decision, since they kept no state, and the client learns of an abort 
+	 * before the other replicas have acknowledged it
+	 * @param replyOnDecision the client is told of a commit as soon as every
+	 * replica has voted ready, i.e. has logged the operation, instead of once 
+	 * the write quorum has acknowledged the decision. The decision is then 
+	 * only held in this master's memory until it is delivered.
+	 */
+	public void setCommitProtocol(boolean onePhase, boolean presumedAbort, boolean replyOnDecision) {
+		this.onePhaseCommit = onePhase;
+		this.presumedAbort = presumedAbort;
+		this.replyOnDecision = replyOnDecision;
+	}
+
+	/**
+	 * Groups writes into batches. A write waits up to windowMillis for 
+	 * others whose keys have the same replicas, and all of them are then 
+	 * sent as a single 2PC operation that each replica logs and applies as 
+	 * a whole, so a burst of writes costs one round of messages and log 
+	 * syncs instead of one per write. Every client still gets its own 
+	 * answer. If the replicas refuse some writes of a batch, only those 
+	 * fail, with the replicas' reasons, and the others are sent again as a 
+	 * smaller batch, so one bad write does not fail the others. If a replica 
+	 * refuses the batch as a whole (ignoreNext, a timeout), every write of 
+	 * it fails with that error.
+	 * @param windowMillis how long the first write of a batch waits, or 
+	 * NO_BATCHING
+	 * @param maxWrites a batch is sent at once when it has this many writes
+	 */
+	public void setWriteBatching(int windowMillis, int maxWrites) {
+		if (windowMillis < 0 || maxWrites < 1) {
+			throw new IllegalArgumentException("Need a window of at least 0 and batches of at least 1");
+		}
+		this.batchWindow = windowMillis;
+		this.maxBatch = maxWrites;
+	}
+
+	/**
+	 * Changes how keys are placed on the ring, e.g. to a Murmur3KeyHash. 
+	 * Every key moves, so this must be called before any data is stored.
+	 * @param hash
+	 */
+	public void setKeyHash(KeyHash hash) {
+		this.keyHash = hash;
+	}
+
+	/**
+	 * Gives a SlaveServer a larger share of the ring: it gets weight times as
+	 * many tokens as a SlaveServer of weight 1. Must be called before that 
+	 * SlaveServer registers.
+	 * @param slaveID
+	 * @param weight at least 1
+	 */
+	public void setSlaveWeight(long slaveID, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("A SlaveServer needs a weight of at least 1");
+		}
+		slaveWeights.put(slaveID, weight);
+	}
+
 	/** 
 	 * Add the SlaveInfo to the consistent hash table
 	 * @param newSlave
@@ -330,64 +570,313 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 	public synchronized void addToConsistentHash(SlaveInfo newSlave) {
 
 		Long x = newSlave.getSlaveID();
-		consistantHashLock.writeLock().lock();
-		consistentHash.put(x, newSlave);
-		consistantHashLock.writeLock().unlock();
+		Integer weight = slaveWeights.get(x);
+		int tokens = virtualNodes * ((weight == null) ? 1 : weight);
+		// registrations are serialized by this method, so nothing is lost
+		// between reading the snapshot and publishing the next one
+		HashRing<SlaveInfo> ring = consistentHash;
+		SlaveInfo oldSlave = ring.member(x);
+		consistentHash = ring.withMember(x, newSlave, tokens);
+		if (oldSlave != null) {
+			// the SlaveServer restarted, possibly on another port
+			oldSlave.closeConnections();
+		}
 	}
 
 	/**
-	 * Find first/primary replica location
-	 * @param key
-	 * @return
+	 * @return the number of distinct SlaveServers that have registered
 	 */
-	private SlaveInfo findFirstReplica(K key) {
-		// 64-bit hash of the key
-		long hashedKey = hashTo64bit(key.toString());
+	private int registeredSlaveCount() {
+		return consistentHash.memberCount();
+	}
+
+	/**
+	 * Find the replica locations of a key in one pass over the ring: the
+	 * first/primary replica owns the key's position, and each further replica
+	 * is the owner of the next token that belongs to another SlaveServer, so 
+	 * that the replicas are on different machines
+	 * @param hashedKey position of the key on the ring
+	 * @return the replicas in ring order; fewer than asked for if fewer 
+	 * SlaveServers have registered
+	 */
+	private List<SlaveInfo> findReplicas(long hashedKey) {
+		return consistentHash.replicas(hashedKey, replicationFactor);
+	}
+
+	/**
+	 * Coordinator state of a single 2PC operation. The participant runnables of
+	 * an operation report their votes and acknowledgements here instead of in 
+	 * fields shared by the whole master, so operations on different keys can be 
+	 * in flight at the same time.
+	 */
+	private class TPCOperation {
+		private TPCMessage message;
+		// the putreqs and delreqs the operation applies, in order
+		private final List<TPCMessage> mutations;
+		// the request sent in the first phase
+		private TPCMessage prepare;
+		// the first-phase requests of participants that store only some of 
+		// the keys, by slave ID
+		private final Map<Long, TPCMessage> shares = new HashMap<Long, TPCMessage>();
+		private final boolean onePhase;
+		private EState state = EState.INIT;
+		private String abortMessage = "";
+		private int votes = 0;
+		private int acks = 0;
+		// participants that voted abort, and so hold no state for the operation
+		private List<SlaveInfo> unprepared = new ArrayList<SlaveInfo>();
+		// the reasons the requests of a multireq were refused, by position; 
+		// null once the operation was refused as a whole
+		private Map<Integer, String> refusedRequests = new TreeMap<Integer, String>();
+
+		/**
+		 * @param message
+		 * @param mutations the message itself, or the requests of a multireq
+		 * @param onePhase whether the prepare carries the commit decision
+		 */
+		public TPCOperation(TPCMessage message, List<TPCMessage> mutations, boolean onePhase) {
+			this.message = message;
+			this.mutations = mutations;
+			this.onePhase = onePhase;
+			// built afresh, so nothing the client put in the message field is 
+			// passed on to the SlaveServers
+			this.prepare = new TPCMessage(message.getMsgType(), message.getKey(), message.getValue(), 
+					onePhase ? TPCMessage.ONE_PHASE : null, message.getTpcOpId());
+		}
+
+		public TPCMessage getMessage() {
+			return message;
+		}
+
+		/**
+		 * @param message a multireq
+		 * @param mutations the requests of the multireq
+		 * @param shares for each participant, by slave ID, the value field 
+		 * of a multireq holding the requests on the keys it stores
+		 * @param onePhase whether the prepare carries the commit decision
+		 */
+		public TPCOperation(TPCMessage message, List<TPCMessage> mutations, Map<Long, String> shares, 
+				boolean onePhase) {
+			this(message, mutations, onePhase);
+			for (Map.Entry<Long, String> share : shares.entrySet()) {
+				this.shares.put(share.getKey(), new TPCMessage(message.getMsgType(), null, share.getValue(), 
+						onePhase ? TPCMessage.ONE_PHASE : null, message.getTpcOpId()));
+			}
+		}
 
-		consistantHashLock.readLock().lock();
-		if (consistentHash.isEmpty()) { return null; }
-		Long x = ((TreeMap<Long, SlaveInfo>) consistentHash).ceilingKey(hashedKey);
-		if (x == null) {
+		public List<TPCMessage> getMutations() {
+			return mutations;
+		}
 
-			SlaveInfo temp = consistentHash.get(
-					((TreeMap<Long, SlaveInfo>) consistentHash).ceilingKey(consistentHash.firstKey()) );
-			consistantHashLock.readLock().unlock();
-			return temp;
+		/**
+		 * @param participant
+		 * @return the request sent to the participant in the first phase
+		 */
+		public TPCMessage getPrepare(SlaveInfo participant) {
+			TPCMessage share = shares.get(participant.getSlaveID());
+			return (share == null) ? prepare : share;
+		}
+
+		public boolean isOnePhase() {
+			return onePhase;
+		}
+
+		/**
+		 * Record an abort vote of a participant that kept no state
+		 * @param participant
+		 * @param error
+		 */
+		public synchronized void refuse(SlaveInfo participant, String error) {
+			unprepared.add(participant);
+			vote(error);
+		}
+
+		/**
+		 * Record an abort vote of a participant that kept no state, and the
+		 * requests of the multireq it refused
+		 * @param participant
+		 * @param error
+		 * @param requests the reason each refused request was refused, by 
+		 * position; empty if the participant refused the whole operation
+		 */
+		public synchronized void refuse(SlaveInfo participant, String error, Map<Integer, String> requests) {
+			Map<Integer, String> refused = refusedRequests;
+			refuse(participant, error);
+			if (refused == null || requests.isEmpty()) {
+				return;
+			}
+			for (Map.Entry<Integer, String> request : requests.entrySet()) {
+				String reason = "@" + participant.getSlaveID() + "=>" + request.getValue();
+				String earlier = refused.get(request.getKey());
+				refused.put(request.getKey(), (earlier == null) ? reason : earlier + "\n" + reason);
+			}
+			refusedRequests = refused;
+		}
+
+		/**
+		 * @return the reason each refused request of a multireq was refused, 
+		 * by position, once the votes are in; null if a participant refused
+		 * or failed to prepare the operation as a whole
+		 */
+		public synchronized Map<Integer, String> getRefusedRequests() {
+			return refusedRequests;
+		}
+
+		/**
+		 * @param participants
+		 * @return the participants that need the decision
+		 */
+		public synchronized List<SlaveInfo> awaitingDecision(List<SlaveInfo> participants) {
+			List<SlaveInfo> waiting = new ArrayList<SlaveInfo>(participants);
+			if (state == EState.ABORT && presumedAbort) {
+				waiting.removeAll(unprepared);
+			}
+			return waiting;
+		}
+
+		public synchronized int getAcks() {
+			return acks;
+		}
+
+		public synchronized EState getState() {
+			return state;
+		}
+
+		public synchronized String getAbortMessage() {
+			return abortMessage;
+		}
+
+		/**
+		 * Record the phase-1 reply of one participant
+		 * @param error null for a ready vote, otherwise the reason for aborting
+		 */
+		public synchronized void vote(String error) {
+			if (error != null) {
+				refusedRequests = null;
+				if (abortMessage.equals("")){
+					abortMessage += error;
+				} else {
+					abortMessage += "\n" + error;
+				}
+				state = EState.ABORT;
+			}
+			votes++;
+			notifyAll();
+		}
+
+		/**
+		 * Wait for every participant to vote, then decide
+		 * @param participants
+		 */
+		public synchronized void awaitVotes(int participants) {
+			while (votes < participants) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// this should not happen
+					e.printStackTrace();
+					TPCMaster.exit();
+				}
+			}
+			if (state == EState.INIT) {
+				state = EState.COMMIT;
+			}
+		}
+
+		public synchronized void ack() {
+			acks++;
+			notifyAll();
+		}
+
+		public synchronized void awaitAcks(int participants) {
+			while (acks < participants) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// this should not happen
+					e.printStackTrace();
+					TPCMaster.exit();
+				}
+			}
 		}
-		SlaveInfo temp = consistentHash.get(x);
-		consistantHashLock.readLock().unlock();
-		return temp;
 	}
 
 	/**
-	 * Find the successor of firstReplica to put the second replica
-	 * @param firstReplica
-	 * @return
+	 * Hears the outcome of a 2PC operation as soon as it is known, while the
+	 * decision may still be on its way to some replicas (e.g. to answer the 
+	 * client sooner)
 	 */
-	private SlaveInfo findSuccessor(SlaveInfo firstReplica) {
-		consistantHashLock.readLock().lock();
-		if (consistentHash.isEmpty()) return null;
-		SlaveInfo temp = consistentHash.get(
-				((TreeMap<Long, SlaveInfo>) consistentHash).ceilingKey(firstReplica.getSlaveID() + 1) );
-		if (temp == null) {
-			return consistentHash.get(
-					((TreeMap<Long, SlaveInfo>) consistentHash).ceilingKey(consistentHash.firstKey()) );
-		}
-		consistantHashLock.readLock().unlock();
-		return temp;
+	public interface Outcome {
+		void committed();
+		void aborted(KVException reason);
 	}
 
 	/**
-	 * Synchronized method to perform 2PC operations one after another
+	 * Perform a 2PC operation. Operations on different keys run concurrently,
+	 * while operations on the same key are serialized by the key's write lock.
 	 * 
 	 * @param msg
 	 * @param isPutReq
 	 * @return True if the TPC operation has succeeded
 	 * @throws KVException
 	 */
-	public synchronized boolean performTPCOperation(KVMessage msg, boolean isPutReq) throws KVException {
-		transactionLock.lock();
+	public boolean performTPCOperation(KVMessage msg, boolean isPutReq) throws KVException {
+		final KVException[] abort = new KVException[1];
+		boolean committed = performTPCOperation(msg, isPutReq, new Outcome() {
+			public void committed() {
+			}
 
+			public void aborted(KVException reason) {
+				abort[0] = reason;
+			}
+		});
+		if (!committed) {
+			throw abort[0];
+		}
+		return true;
+	}
+
+	/**
+	 * Perform a 2PC operation on every replica of the key in parallel, and 
+	 * return once every replica has acknowledged the decision. The key stays
+	 * locked until then, so later operations on it never see a replica that
+	 * is behind. With write batching, the operation may be carried out 
+	 * together with other writes to the same replicas; see runBatch() for 
+	 * what happens when such a batch aborts.
+	 * 
+	 * @param msg
+	 * @param isPutReq
+	 * @param outcome told whether the operation committed, once the client 
+	 * may be answered: after the votes if the decision is all that is needed,
+	 * after the write quorum has acknowledged a commit otherwise
+	 * @return True if the TPC operation has succeeded
+	 * @throws KVException if the operation failed before it started, in 
+	 * which case outcome is not told
+	 */
+	public boolean performTPCOperation(KVMessage msg, boolean isPutReq, Outcome outcome) throws KVException {
+		if (batchWindow == NO_BATCHING) {
+			return performSingle(msg, outcome);
+		}
+		PendingWrite write = new PendingWrite(msg, outcome);
+		WriteBatch batch = joinBatch(findReplicas(keyHash.hash(msg.getKey())), write);
+		if (batch != null) {
+			// this write opened the batch, so it sends it
+			if (batch.writes.size() == 1) {
+				return performSingle(msg, outcome);
+			}
+			runBatch(batch);
+		}
+		return write.awaitResult();
+	}
+
+	/**
+	 * Perform a 2PC operation for one write
+	 * @param msg
+	 * @param outcome
+	 * @return True if the TPC operation has succeeded
+	 * @throws KVException
+	 */
+	private boolean performSingle(KVMessage msg, Outcome outcome) throws KVException {
 		// get the next TPC Op ID
 		String TPCOpId = getNextTpcOpId();
 
@@ -396,80 +885,374 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 
 		// get the accessLock
 		ReentrantReadWriteLock accessLock = accessLocks.get(TPCmess.getKey());
-		if (accessLock == null) {
-			accessLocks.put(TPCmess.getKey(), new ReentrantReadWriteLock());
-			accessLock = accessLocks.get(TPCmess.getKey());
-		}
 		accessLock.writeLock().lock();
+		try {
+			// one processTPCOpRunnable per phase for each slaveServer that is storing the key
+			List<SlaveInfo> participants = findReplicas(keyHash.hash(TPCmess.getKey()));
 
-		// Set TPCState to INIT
-		TPCStateLock.lock();
-		TPCState = EState.INIT;
-		TPCStateLock.unlock();
-
-		// add two processTPCOpRunnables to threadpool, one for each slaveServer thats storing the key
-		SlaveInfo firstReplica = findFirstReplica((K)KVMessage.decodeObject(TPCmess.getKey()));
-		SlaveInfo successor = findSuccessor(firstReplica);
-		
+			TPCOperation operation = new TPCOperation(TPCmess, Collections.singletonList(TPCmess), 
+					onePhaseCommit && participants.size() == 1);
+			return runTPCOperation(operation, participants, outcome);
+		} finally {
+			accessLock.writeLock().unlock();
+		}
+	}
 
-		Runnable firstReplicaRunnable = new processTPCOpRunnable<K,V>(TPCmess, firstReplica);
-		Runnable successorRunnable = new processTPCOpRunnable<K,V>(TPCmess, successor);
+	/**
+	 * Perform a transaction of several puts and deletes as one 2PC operation.
+	 * Every SlaveServer that stores one of the keys takes part, and is sent 
+	 * a multireq with the requests on the keys it stores, so the requests 
+	 * are applied everywhere or nowhere. The keys are locked in stripe 
+	 * order, so transactions with overlapping keys cannot deadlock.
+	 * 
+	 * @param msg a txnreq, whose value field holds the requests
+	 * @param outcome told whether the transaction committed, as for 
+	 * performTPCOperation()
+	 * @return True if the transaction has committed
+	 * @throws KVException if the transaction failed before it started, in 
+	 * which case outcome is not told
+	 */
+	public boolean performTransaction(KVMessage msg, Outcome outcome) throws KVException {
+		// Sanity Check
+		if (!"txnreq".equals(msg.getMsgType())){
+			throw new KVException(new KVMessage("performTransaction called without a txnreq"));
+		}
+		String TPCOpId = getNextTpcOpId();
+		List<TPCMessage> mutations = TPCMessage.decodeBatch(msg.getValue(), TPCOpId);
+		if (mutations.isEmpty()) {
+			throw new KVException(new KVMessage("Empty transaction"));
+		}
+		List<String> keys = new ArrayList<String>(mutations.size());
+		for (TPCMessage mutation : mutations) {
+			keys.add(mutation.getKey());
+		}
 
+		List<ReentrantReadWriteLock> locks = accessLocks.getAll(keys);
+		for (ReentrantReadWriteLock lock : locks) {
+			lock.writeLock().lock();
+		}
 		try {
-			threadpool.addToQueue(firstReplicaRunnable);
-			threadpool.addToQueue(successorRunnable);
-		} catch (InterruptedException e) {
-			// should not happen
-			e.printStackTrace();
-			TPCMaster.exit();
+			// the union of the replicas of all the keys, and each one's share
+			// of the requests, in transaction order
+			LinkedHashMap<Long, SlaveInfo> participants = new LinkedHashMap<Long, SlaveInfo>();
+			HashMap<Long, List<TPCMessage>> requests = new HashMap<Long, List<TPCMessage>>();
+			for (TPCMessage mutation : mutations) {
+				for (SlaveInfo replica : findReplicas(keyHash.hash(mutation.getKey()))) {
+					List<TPCMessage> share = requests.get(replica.getSlaveID());
+					if (share == null) {
+						share = new ArrayList<TPCMessage>();
+						requests.put(replica.getSlaveID(), share);
+						participants.put(replica.getSlaveID(), replica);
+					}
+					share.add(mutation);
+				}
+			}
+			HashMap<Long, String> shares = new HashMap<Long, String>();
+			for (Map.Entry<Long, List<TPCMessage>> share : requests.entrySet()) {
+				shares.put(share.getKey(), TPCMessage.encodeBatch(share.getValue()));
+			}
+
+			TPCMessage TPCmess = new TPCMessage(TPCMessage.MULTI_REQ, null, msg.getValue(), null, TPCOpId);
+			TPCOperation operation = new TPCOperation(TPCmess, mutations, shares, 
+					onePhaseCommit && participants.size() == 1);
+			return runTPCOperation(operation, new ArrayList<SlaveInfo>(participants.values()), outcome);
+		} finally {
+			for (int i = locks.size() - 1; i >= 0; i--) {
+				locks.get(i).writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Run both phases of an operation whose keys are locked by the caller
+	 * @param operation
+	 * @param participants
+	 * @param outcome
+	 * @return True if the TPC operation has succeeded
+	 * @throws KVException
+	 */
+	private boolean runTPCOperation(TPCOperation operation, List<SlaveInfo> participants, Outcome outcome) 
+			throws KVException {
+		// first phase: collect the votes; the coordinating thread does the waiting,
+		// so workers never block on each other
+		runPhase(operation, participants);
+		operation.awaitVotes(participants.size());
+
+		// second phase: disseminate the decision until every participant 
+		// that needs it acks; a one-phase commit already has its ack
+		List<SlaveInfo> waiting = operation.awaitingDecision(participants);
+		if (operation.getAcks() < waiting.size()) {
+			runPhase(operation, waiting);
+		}
+
+		if (operation.getState() != EState.COMMIT) {
+			KVException reason = new KVException(new KVMessage(operation.getAbortMessage()));
+			if (!presumedAbort) {
+				operation.awaitAcks(waiting.size());
+			}
+			// return the error messages of the replicas that aborted
+			outcome.aborted(reason);
+			operation.awaitAcks(waiting.size());
+			return false;
+		}
+		for (TPCMessage mutation : operation.getMutations()) {
+			if (mutation.getMsgType().equals("putreq")){
+				masterCache.put((K) TPCMessage.decodeObject(mutation.getKey()), 
+						(V)mutation.getValue());
+			} else {
+				masterCache.del((K) TPCMessage.decodeObject(mutation.getKey()));
+			}
+		}
+		if (!replyOnDecision) {
+			// the commit is durable once the quorum has it
+			operation.awaitAcks(Math.min(writeQuorum, waiting.size()));
+		}
+		outcome.committed();
+		// keep the key locked until every replica has caught up
+		operation.awaitAcks(waiting.size());
+		return true;
+	}
+
+	/**
+	 * A write waiting in a batch, and whether the batch committed it. The
+	 * write's outcome has been told by the time it is finished.
+	 */
+	private static class PendingWrite {
+		final KVMessage msg;
+		final Outcome outcome;
+		private Boolean committed = null;
+		// why the batch could not be carried out at all
+		private KVException failure = null;
+
+		PendingWrite(KVMessage msg, Outcome outcome) {
+			this.msg = msg;
+			this.outcome = outcome;
+		}
+
+		synchronized void finish(boolean committed) {
+			if (this.committed == null) {
+				this.committed = committed;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Finish a write whose outcome has not been told
+		 * @param failure
+		 */
+		synchronized void fail(KVException failure) {
+			if (this.committed == null) {
+				this.failure = failure;
+				this.committed = false;
+				notifyAll();
+			}
 		}
-				
-		synchronized(currentTpcOpId){
-			while (allDone < 2){
+
+		/**
+		 * @return whether the write committed
+		 * @throws KVException if the batch failed before it started
+		 */
+		synchronized boolean awaitResult() throws KVException {
+			while (committed == null) {
 				try {
-					currentTpcOpId.wait();
+					wait();
 				} catch (InterruptedException e) {
 					// this should not happen
 					e.printStackTrace();
 					TPCMaster.exit();
 				}
 			}
-			finishedCount = 0;
-			finishedCount2 = 0;
-			allDone = 0;
+			if (failure != null) {
+				throw failure;
+			}
+			return committed;
 		}
+	}
 
-		boolean success = (TPCState == EState.COMMIT);
-//		TPCStateLock.lock();
-//		TPCState = EState.NOSTATE;
-//		TPCStateLock.unlock();
-		if (success) {
-			if (TPCmess.getMsgType().equals("putreq")){
-				masterCache.put((K) TPCMessage.decodeObject(TPCmess.getKey()), 
-						(V)TPCmess.getValue());
-			} else {
-				masterCache.del((K) TPCMessage.decodeObject(TPCmess.getKey()));
+	/**
+	 * Writes to the same replicas that are sent as one 2PC operation
+	 */
+	private class WriteBatch {
+		final List<SlaveInfo> participants;
+		// in arrival order, which is the order they are applied in
+		final List<PendingWrite> writes = new ArrayList<PendingWrite>();
+
+		WriteBatch(List<SlaveInfo> participants) {
+			this.participants = participants;
+		}
+	}
+
+	/**
+	 * Add a write to the open batch for its replicas. The first write opens 
+	 * the batch and waits until the window has passed or the batch is full.
+	 * @param participants replicas of the write's key
+	 * @param write
+	 * @return the batch, closed, if this write opened it and must send it; 
+	 * null if the write joined a batch that another write sends
+	 */
+	private WriteBatch joinBatch(List<SlaveInfo> participants, PendingWrite write) {
+		StringBuilder ids = new StringBuilder();
+		for (SlaveInfo participant : participants) {
+			ids.append(participant.getSlaveID()).append(' ');
+		}
+		String replicaSet = ids.toString();
+		synchronized (openBatches) {
+			WriteBatch batch = openBatches.get(replicaSet);
+			if (batch != null) {
+				batch.writes.add(write);
+				if (batch.writes.size() >= maxBatch) {
+					// full, so send it now
+					openBatches.remove(replicaSet);
+					openBatches.notifyAll();
+				}
+				return null;
+			}
+			batch = new WriteBatch(participants);
+			batch.writes.add(write);
+			openBatches.put(replicaSet, batch);
+			long deadline = System.currentTimeMillis() + batchWindow;
+			long remaining;
+			while (openBatches.get(replicaSet) == batch 
+					&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					openBatches.wait(remaining);
+				} catch (InterruptedException e) {
+					// this should not happen
+					e.printStackTrace();
+					TPCMaster.exit();
+				}
+			}
+			if (openBatches.get(replicaSet) == batch) {
+				openBatches.remove(replicaSet);
+			}
+			return batch;
+		}
+	}
+
+	/**
+	 * Send the writes of a closed batch as one multireq. Their keys are 
+	 * locked in stripe order, so batches and single writes cannot deadlock.
+	 * Each write is finished, committed or not, before this returns.
+	 * 
+	 * If the replicas refuse some of the writes (e.g. a delete of a missing 
+	 * key), only those writes fail, with the replicas' reasons, and the 
+	 * others are sent again as one smaller batch. If a replica refuses the 
+	 * multireq as a whole (ignoreNext, a timeout, a log that cannot be 
+	 * written), every write fails with that error, just as a single write 
+	 * would; none is sent again, so an ignoreNext reaches the clients.
+	 * @param batch
+	 */
+	private void runBatch(WriteBatch batch) {
+		List<PendingWrite> writes = batch.writes;
+		try {
+			while (!writes.isEmpty()) {
+				writes = runBatchOnce(batch.participants, writes);
+			}
+		} catch (KVException e) {
+			for (PendingWrite write : writes) {
+				write.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Send some writes of a batch as one multireq
+	 * @param participants
+	 * @param writes
+	 * @return the writes that must be sent again, which are not finished yet
+	 * @throws KVException if the batch failed before it started; the writes
+	 * are not finished then
+	 */
+	private List<PendingWrite> runBatchOnce(List<SlaveInfo> participants, final List<PendingWrite> writes) 
+			throws KVException {
+		String TPCOpId = getNextTpcOpId();
+		List<TPCMessage> mutations = new ArrayList<TPCMessage>(writes.size());
+		List<String> keys = new ArrayList<String>(writes.size());
+		for (PendingWrite write : writes) {
+			TPCMessage mutation = new TPCMessage(write.msg, TPCOpId);
+			mutations.add(mutation);
+			keys.add(mutation.getKey());
+		}
+
+		final List<PendingWrite> retry = new ArrayList<PendingWrite>();
+		List<ReentrantReadWriteLock> locks = accessLocks.getAll(keys);
+		for (ReentrantReadWriteLock lock : locks) {
+			lock.writeLock().lock();
+		}
+		try {
+			TPCMessage TPCmess = new TPCMessage(TPCMessage.MULTI_REQ, null, 
+					TPCMessage.encodeBatch(mutations), null, TPCOpId);
+			final TPCOperation operation = new TPCOperation(TPCmess, mutations, 
+					onePhaseCommit && participants.size() == 1);
+			boolean committed = runTPCOperation(operation, participants, new Outcome() {
+				public void committed() {
+					for (PendingWrite write : writes) {
+						write.outcome.committed();
+					}
+				}
+
+				public void aborted(KVException reason) {
+					Map<Integer, String> refused = operation.getRefusedRequests();
+					for (int i = 0; i < writes.size(); i++) {
+						PendingWrite write = writes.get(i);
+						if (refused == null) {
+							write.outcome.aborted(reason);
+						} else if (refused.containsKey(i)) {
+							write.outcome.aborted(new KVException(new KVMessage(refused.get(i))));
+						} else {
+							// refused only because it shared the multireq
+							retry.add(write);
+						}
+					}
+					if (retry.size() == writes.size()) {
+						// the refused requests were none of these writes
+						for (PendingWrite write : writes) {
+							write.outcome.aborted(reason);
+						}
+						retry.clear();
+					}
+				}
+			});
+			for (PendingWrite write : writes) {
+				if (!retry.contains(write)) {
+					write.finish(committed);
+				}
+			}
+		} finally {
+			for (int i = locks.size() - 1; i >= 0; i--) {
+				locks.get(i).writeLock().unlock();
+			}
+		}
+		return retry;
+	}
+
+	/**
+	 * Hand the current phase of an operation to the TPC lane, one runnable per
+	 * participant, so that all participants are contacted in parallel
+	 * @param operation
+	 * @param participants
+	 */
+	private void runPhase(TPCOperation operation, List<SlaveInfo> participants) {
+		for (SlaveInfo participant : participants) {
+			try {
+				submit(Lane.TPC, new processTPCOpRunnable<K,V>(operation, participant));
+			} catch (InterruptedException e) {
+				// should not happen
+				e.printStackTrace();
+				TPCMaster.exit();
 			}
-		} else {
-			// find the replica that aborted and return its error message
-			String temp = abortMessage;
-			abortMessage = "";
-			accessLock.writeLock().unlock();
-			transactionLock.unlock();
-			throw new KVException(new KVMessage(temp));
 		}
-		accessLock.writeLock().unlock();
-		transactionLock.unlock();
-		return success;
 	}
 
 	/**
 	 * Perform GET operation in the following manner:
-	 * - Try to GET from first/primary replica
-	 * - If primary succeeded, return Value
-	 * - If primary failed, try to GET from the other replica
-	 * - If secondary succeeded, return Value
-	 * - If secondary failed, return KVExceptions from both replicas
+	 * - Try to GET from one replica, chosen by the ReadRouting
+	 * - If it succeeded, return Value
+	 * - If it failed, try to GET from the other replica
+	 * - If the other succeeded, return Value
+	 * - If the other failed, return KVExceptions from both replicas
+	 * With a hedge delay, the other replica is also asked when the first has
+	 * not answered in time, and the first Value to come back is returned.
 	 * 
 	 * @param msg Message containing Key to get
 	 * @return Value corresponding to the Key
@@ -484,68 +1267,80 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 
 		// get the accessLock
 		ReentrantReadWriteLock accessLock = accessLocks.get(msg.getKey());
-		if (accessLock == null) {
-			accessLocks.put(msg.getKey(), new ReentrantReadWriteLock());
-			accessLock = accessLocks.get(msg.getKey());
-		}
 		accessLock.readLock().lock();
 
 		// try the cache first
 		V value = masterCache.get((K) KVMessage.decodeObject(msg.getKey()));
 
 		if (value == null) {
-			SlaveInfo firstReplica = findFirstReplica((K)KVMessage.decodeObject(msg.getKey()));
-			SlaveInfo successor = findSuccessor(firstReplica);
-			Runnable tempGetRunnable = new getRunnable<K,V>(msg, firstReplica, successor, value);
+			// concurrent misses on this key share one fetch from the replicas; 
+			// every caller holds the key's read lock, so no write can change 
+			// the key while they wait for it
+			final KVMessage request = msg;
 			try {
-				threadpool.addToQueue(tempGetRunnable);
-			} catch (InterruptedException e) {
-				// should not happen
-				e.printStackTrace();
-				TPCMaster.exit();
-			}
-
-			// sleep until threads are finished
-			synchronized(currentTpcOpId){
-				while (getFinished == false){
-					try {
-						currentTpcOpId.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-						TPCMaster.exit();
+				value = cacheMisses.get(msg.getKey(), new SingleFlight.Loader<V>() {
+					public V load() throws KVException {
+						return fetchFromReplicas(request);
 					}
-				}
-				getFinished = false;
-			}
-
-			if (!abortMessage.equals("")) {
-				// abortMessage is not the empty string, meaning get did not return a correct value
-				String temp = abortMessage;
-				abortMessage = "";
-				accessLock.readLock().unlock();
-				throw new KVException(new KVMessage(temp));
-			} else { // get should have returned an good value
-				value = (V) getReturnValue;
-
-				// put into cache
-				accessLock.writeLock().lock();
-				masterCache.put((K) KVMessage.decodeObject(msg.getKey()), value);
-				accessLock.writeLock().unlock();
+				});
+			} finally {
 				accessLock.readLock().unlock();
-				return value;
 			}
+			return value;
 		}
 		accessLock.readLock().unlock();
 		return value;
 	}
 
+	/**
+	 * Fetches a key the master cache does not have from its replicas, and 
+	 * caches it. Called with the key's read lock held.
+	 * @param msg the get request
+	 * @return the value
+	 * @throws KVException if neither replica has the value, or the read lane is full
+	 */
+	private V fetchFromReplicas(KVMessage msg) throws KVException {
+		// any replica has every committed value, since writers hold the key
+		// until all replicas acknowledge; ask the first two
+		List<SlaveInfo> replicas = findReplicas(keyHash.hash(msg.getKey()));
+		SlaveInfo successor = (replicas.size() > 1) ? replicas.get(1) : replicas.get(0);
+		getRunnable<K,V> tempGetRunnable = new getRunnable<K,V>(msg, replicas.get(0), successor, null);
+		try {
+			submit(Lane.READ, tempGetRunnable);
+		} catch (InterruptedException e) {
+			// should not happen
+			e.printStackTrace();
+			TPCMaster.exit();
+		} catch (RejectedExecutionException e) {
+			// too many GETs waiting on the slaves already
+			throw new KVException(new KVMessage(e.getMessage()));
+		}
+
+		// sleep until the runnable is finished
+		tempGetRunnable.awaitResult();
+
+		if (tempGetRunnable.abortMessage != null) {
+			// get did not return a correct value
+			throw new KVException(new KVMessage(tempGetRunnable.abortMessage));
+		}
+		// get should have returned an good value
+		V value = (V) tempGetRunnable.getReturnValue;
+
+		// put into cache; the read lock already keeps writers of this key out,
+		// and a read lock cannot be upgraded to the write lock
+		masterCache.put((K) KVMessage.decodeObject(msg.getKey()), value);
+		return value;
+	}
+
 	/**
 	 * Perform GET operation in the following manner:
-	 * - Try to GET from first/primary replica
-	 * - If primary succeeded, return Value
-	 * - If primary failed, try to GET from the other replica
-	 * - If secondary succeeded, return Value
-	 * - If secondary failed, return KVExceptions from both replicas
+	 * - Try to GET from one replica, chosen by the ReadRouting
+	 * - If it succeeded, return Value
+	 * - If it failed, try to GET from the other replica
+	 * - If the other succeeded, return Value
+	 * - If the other failed, return KVExceptions from both replicas
+	 * With a hedge delay, the other replica is also asked when the first has
+	 * not answered in time, and the first Value to come back is returned.
 	 * 
 	 * @param msg Message containing Key to get
 	 * @return Value corresponding to the Key
@@ -555,6 +1350,10 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 		KVMessage message;
 		SlaveInfo slaveServer;
 		SlaveInfo successor;
+		// result of this get, handed back to the thread waiting in handleGet
+		String getReturnValue = null;
+		String abortMessage = null;
+		boolean getFinished = false;
 
 		public getRunnable (KVMessage msg, SlaveInfo firstReplica, SlaveInfo successor, V value){
 			this.message = msg;
@@ -562,70 +1361,231 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 			this.successor = successor;
 		}
 
+		private synchronized void finish() {
+			getFinished = true;
+			notifyAll();
+		}
+
+		public synchronized void awaitResult() {
+			while (getFinished == false){
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					TPCMaster.exit();
+				}
+			}
+		}
+
+		/**
+		 * One GET sent to one replica. It runs at most once, on whichever 
+		 * thread claims it first; its answer is published under the lock of
+		 * the enclosing getRunnable.
+		 */
+		class replicaRead implements Runnable {
+			final SlaveInfo slave;
+			final TPCMessage request;
+			boolean started = false;
+			boolean done = false;
+			TPCMessage answer = null;
+
+			replicaRead(SlaveInfo slave, TPCMessage request) {
+				this.slave = slave;
+				this.request = request;
+			}
+
+			@Override
+			public void run() {
+				synchronized (getRunnable.this) {
+					if (started) {
+						return;
+					}
+					started = true;
+				}
+				TPCMessage slaveAnswer = null;
+				slave.outstandingReads.incrementAndGet();
+				try {
+					slaveAnswer = sendReceiveSlaveGET(slave, request);
+				} finally {
+					slave.outstandingReads.decrementAndGet();
+				}
+				if (slaveAnswer.getValue() == null && slaveAnswer.getMessage() == null) {
+					// this should not happen
+					System.err.println("getreq: slave didn't have a value or a message");
+					TPCMaster.exit();
+				}
+				synchronized (getRunnable.this) {
+					answer = slaveAnswer;
+					done = true;
+					getRunnable.this.notifyAll();
+				}
+			}
+
+			// called with the getRunnable lock held
+			boolean hasValue() {
+				return done && answer.getValue() != null;
+			}
+		}
+
 		@Override
 		public void run(){
-			TPCMessage slaveAnswer = null;
-
 			// convert message to a TPCMessage
-			TPCMessage tpcMessage = new TPCMessage(message, tpcOpId.toString());
+			TPCMessage tpcMessage = new TPCMessage(message, Long.toString(tpcOpId.get()));
 			// make sure I don't accidentally use the KVMessage again;
 			message = null;
 
-			slaveAnswer = sendReceiveSlaveGET(slaveServer, tpcMessage);
+			replicaRead primary = new replicaRead(slaveServer, tpcMessage);
+			replicaRead secondary = new replicaRead(successor, tpcMessage);
+			replicaRead first = primary;
+			replicaRead second = secondary;
+			if (readFromSuccessorFirst(slaveServer, successor)) {
+				first = secondary;
+				second = primary;
+			}
 
-			if (slaveAnswer.getValue() != null){ // first slave sent back a good put response
-				getReturnValue = slaveAnswer.getValue();
-				// do housekeeping before returning
-				synchronized(currentTpcOpId){
-					// do housekeeping before returning
-					getFinished = true;
-					currentTpcOpId.notifyAll();
+			int delay = hedgeDelay;
+			if (delay != NO_HEDGING) {
+				// the hedge may answer while this thread still waits on a slow
+				// first replica; a full lane just means this GET is not hedged
+				lanes.get(Lane.HEDGE).offer(new hedgeRunnable(primary, secondary, first, second, delay));
+			}
+			first.run();
+			synchronized (this) {
+				if (getFinished) {
+					// a hedge already answered
+					return;
 				}
-				return;
-			} else if (slaveAnswer.getMessage() != null){ // slave sent back an error message
-				message = slaveAnswer;
-
-				// contact Successor
-				slaveAnswer = sendReceiveSlaveGET(successor, tpcMessage);
-
-				if (slaveAnswer.getValue() != null){ // successor slave sent back a good put response
-					getReturnValue = slaveAnswer.getValue();
-					// do housekeeping before returning
-					synchronized(currentTpcOpId){
-						// do housekeeping before returning
-						getFinished = true;
-						currentTpcOpId.notifyAll();
-					}
+				if (first.hasValue() || second.hasValue()) {
+					report(primary, secondary);
 					return;
-				} else if (slaveAnswer.getMessage() != null){ // successor slave sent back an error message
-					// set message to incorporate BOTH error messages
-					abortMessage = "@"+slaveServer.getSlaveID()+"=>"+message.getMessage()+"\n@"+successor.getSlaveID()+"=>"+slaveAnswer.getMessage();
-					synchronized(currentTpcOpId){
-						// do housekeeping before returning
-						getFinished = true;
-						currentTpcOpId.notifyAll();
+				}
+			}
+			// the first replica failed, so the other one has to answer; this
+			// does nothing if a hedge already asked it
+			second.run();
+			synchronized (this) {
+				while (!second.done) {
+					awaitChange(0);
+				}
+				if (!getFinished) {
+					report(primary, secondary);
+				}
+			}
+		}
+
+		/**
+		 * Asks the second replica if the first has not answered within the 
+		 * hedge delay, and answers the GET if the second has the value
+		 */
+		class hedgeRunnable implements Runnable {
+			final replicaRead primary;
+			final replicaRead secondary;
+			final replicaRead first;
+			final replicaRead second;
+			final int delay;
+
+			hedgeRunnable(replicaRead primary, replicaRead secondary, replicaRead first, 
+					replicaRead second, int delay) {
+				this.primary = primary;
+				this.secondary = secondary;
+				this.first = first;
+				this.second = second;
+				this.delay = delay;
+			}
+
+			@Override
+			public void run() {
+				synchronized (getRunnable.this) {
+					awaitAnswer(first, second, delay);
+					if (first.done) {
+						return;
+					}
+				}
+				second.run();
+				synchronized (getRunnable.this) {
+					if (second.hasValue() && !getFinished) {
+						report(primary, secondary);
 					}
-					return;
-				} else {
-					// this should not happen
-					System.err.println("getreq: successor slave didn't have a value or a message");
-					TPCMaster.exit();
 				}
-			} else{
-				// this should not happen
-				System.err.println("getreq: first slave didn't have a value or a message");
+			}
+		}
+
+		/**
+		 * Waits until either replica has returned a value or the first one
+		 * has answered at all
+		 * @param timeout milliseconds, or 0 to wait as long as it takes
+		 */
+		private synchronized void awaitAnswer(replicaRead first, replicaRead second, int timeout) {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (!first.done && !second.hasValue()) {
+				long left = 0;
+				if (timeout > 0) {
+					left = deadline - System.currentTimeMillis();
+					if (left <= 0) {
+						return;
+					}
+				}
+				awaitChange(left);
+			}
+		}
+
+		// called with the lock held
+		private void awaitChange(long timeout) {
+			try {
+				wait(timeout);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 				TPCMaster.exit();
 			}
+		}
 
+		/**
+		 * Hands the result back to handleGet. Called with the lock held. A
+		 * failure lists the messages of both replicas in ring order.
+		 */
+		private void report(replicaRead primary, replicaRead secondary) {
+			if (primary.hasValue()) {
+				getReturnValue = primary.answer.getValue();
+			} else if (secondary.hasValue()) {
+				getReturnValue = secondary.answer.getValue();
+			} else {
+				// set message to incorporate BOTH error messages
+				abortMessage = "@"+slaveServer.getSlaveID()+"=>"+primary.answer.getMessage()+"\n@"+successor.getSlaveID()+"=>"+secondary.answer.getMessage();
+			}
+			// do housekeeping before returning
+			finish();
 		}
 
 		public TPCMessage sendReceiveSlaveGET(SlaveInfo slave, TPCMessage getRequest){
 			TPCMessage slaveAnswer = null;
+			// a GET changes nothing, so one whose reply was lost is sent again
+			for (int attempt = 0; slaveAnswer == null; attempt++) {
+				try {
+					slaveAnswer = TPCMessage.sendReceive(connectForGET(slave), getRequest);
+				} catch (SocketTimeoutException e) {
+					// as specified by Piazza post 876, GETS don't timeout, so 
+					// this means the connection broke
+					if (attempt > 0) {
+						System.err.println("Get request lost its reply twice");
+						e.printStackTrace();
+						TPCMaster.exit();
+					}
+				}
+			}
 
+			// Sanity Check
+			if (!"resp".equals(slaveAnswer.getMsgType())){
+				System.err.println("getRunnable got a bad response:");
+				TPCMaster.exit();
+			}	
+			return slaveAnswer;
+		}
+
+		private Socket connectForGET(SlaveInfo slave) {
 			// create new slave Socket
 			Socket firstSlave = null;
 			try {
-				firstSlave = new Socket(slaveServer.hostName, slaveServer.port);
+				firstSlave = slave.connect();
 			} catch (UnknownHostException e) {
 				// should not happen
 				e.printStackTrace();
@@ -646,162 +1606,72 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 				TPCMaster.exit();
 			}
 
-			// send the get request to slave
-//			System.out.println("Sending to Slave " + slave.getSlaveID() + ":");
-//			try {
-//				System.out.println(getRequest.toXML()+"\n");
-//			} catch (KVException e) {
-//				e.printStackTrace();
-//				TPCMaster.exit();
-//			}
-			TPCMessage.sendMessage(firstSlave, getRequest);
-
-			// receive a response from slave
-			// Correctness Constraint: slaveAnswer is either an error message or a get response
-			try {
-				slaveAnswer = TPCMessage.receiveMessage(firstSlave);
-//				System.out.println("Received from Slave"+ slave.getSlaveID() + ":");
-//				try {
-//					System.out.println(slaveAnswer.toXML()+"\n");
-//				} catch (KVException e) {
-//					e.printStackTrace();
-//					TPCMaster.exit();
-//				}
-			} catch (SocketTimeoutException e) {
-				// as specified by Piazza post 876, GETS don't timeout, so this should never happen
-				System.err.println("Get request should not have timed out");
-				e.printStackTrace();
-				TPCMaster.exit();
-			}
-
-			// Sanity Check
-			if (!"resp".equals(slaveAnswer.getMsgType())){
-				System.err.println("getRunnable got a bad response:");
-//				try {
-//					System.out.println(slaveAnswer.toXML());
-//				} catch (KVException e) {
-//					e.printStackTrace();
-//				}
-				TPCMaster.exit();
-			}	
-			return slaveAnswer;
+			return firstSlave;
 		}
 	}
 
 	class processTPCOpRunnable<K extends Serializable, V extends Serializable>implements Runnable {
+		TPCOperation operation;
 		TPCMessage message;
-		TPCMessage response;
 		SlaveInfo slaveServerInfo;
 
-		public processTPCOpRunnable(TPCMessage msg, SlaveInfo slaveServerInfo){
-			this.message = msg;
+		public processTPCOpRunnable(TPCOperation operation, SlaveInfo slaveServerInfo){
+			this.operation = operation;
+			this.message = operation.getMessage();
 			this.slaveServerInfo = slaveServerInfo;
 		}
 		
 		@Override
 		public void run() {
 			while (true) {
-				switch (TPCState) {
+				switch (operation.getState()) {
 
 				// send the appropriate message to client 
 				case INIT:
-					//synch
-					synchronized(currentTpcOpId){
-						if (finishedCount == 0){
-							finishedCount++;
-							while(finishedCount < 2){
-								try {
-									currentTpcOpId.wait();
-								} catch (InterruptedException e) {
-									e.printStackTrace();
-									TPCMaster.exit();
-								}
-							}
-						} else if (finishedCount == 1){
-							finishedCount++;
-							currentTpcOpId.notifyAll();
-						} else {
-							// this case should not happen
-							System.err.println("synching got to else case");
-							TPCMaster.exit();
-						}
-					}
-
 					// Sanity Check
-					if (!"putreq".equals(message.getMsgType()) && !"delreq".equals(message.getMsgType())){
-						System.err.println("INIT did not get a putreq or delreq");
+					if (!"putreq".equals(message.getMsgType()) && !"delreq".equals(message.getMsgType())
+							&& !TPCMessage.MULTI_REQ.equals(message.getMsgType())){
+						System.err.println("INIT did not get a putreq, delreq or multireq");
 						TPCMaster.exit();
 					}
 
 					TPCMessage slaveResponse = null;
 					try {
-						slaveResponse = sendReceiveSlaveTPC(slaveServerInfo, message);
+						slaveResponse = sendReceiveSlaveTPC(slaveServerInfo, operation.getPrepare(slaveServerInfo));
 					} catch (SocketTimeoutException e1) {
-						// if timeout, this is equivalent to receiving an abort message
-						
-						if (abortMessage.equals("")){
-							abortMessage += "Timeout Error: SlaveServer "+slaveServerInfo.getSlaveID()+"has timed out during the first phase of 2PC";
-						} else {
-							abortMessage += "\nTimeout Error: SlaveServer "+slaveServerInfo.getSlaveID()+"has timed out during the first phase of 2PC";
+						if (operation.isOnePhase()) {
+							// the slave may have committed already, so ask again 
+							// rather than presume an abort
+							break;
 						}
-						
-						TPCStateLock.lock();
-						TPCState = EState.ABORT;
-						TPCStateLock.unlock();
-						break;
+						// if timeout, this is equivalent to receiving an abort message; the
+						// slave may still have prepared, so it does get the decision
+						operation.vote("Timeout Error: SlaveServer "+slaveServerInfo.getSlaveID()+"has timed out during the first phase of 2PC");
+						return;
 					}
 
 					// Sanity Check
-					if (!slaveResponse.getMsgType().equals("ready") && !slaveResponse.getMsgType().equals("abort")){
+					if (!slaveResponse.getMsgType().equals("ready") && !slaveResponse.getMsgType().equals("abort")
+							&& !(operation.isOnePhase() && slaveResponse.getMsgType().equals("ack"))){
 						System.err.println("getRunnable got a bad response");
 						TPCMaster.exit();
 					}
 
 					if (slaveResponse.getMsgType().equals("abort")){
-						if (abortMessage.equals("")){
-							abortMessage += "@"+slaveServerInfo.getSlaveID()+"=>"+slaveResponse.getMessage();
-						} else {
-							abortMessage += "\n@"+slaveServerInfo.getSlaveID()+"=>"+slaveResponse.getMessage();
-						}
-						TPCStateLock.lock();
-						TPCState = EState.ABORT;
-						TPCStateLock.unlock();
+						operation.refuse(slaveServerInfo, "@"+slaveServerInfo.getSlaveID()+"=>"+slaveResponse.getMessage(), 
+								TPCMessage.decodeRefused(slaveResponse.getValue()));
+					} else if ("ack".equals(slaveResponse.getMsgType())){
+						// a one-phase commit: the slave has already committed
+						operation.vote(null);
+						operation.ack();
 					} else if ("ready".equals(slaveResponse.getMsgType())){
-						if (TPCState != EState.ABORT){
-							TPCStateLock.lock();
-							TPCState = EState.COMMIT;
-							TPCStateLock.unlock();
-						}
+						operation.vote(null);
 					} else {
 						// this should not happen
 						System.err.println("Coordinator did not get a ready or abort response");
 						TPCMaster.exit();
 					}
-
-					//synch
-					synchronized(currentTpcOpId){
-						if (finishedCount2 == 0){
-							finishedCount2++;
-							while(finishedCount2 < 2){
-								try {
-									currentTpcOpId.wait();
-								} catch (InterruptedException e) {
-									e.printStackTrace();
-									TPCMaster.exit();
-								}
-							}
-						} else if (finishedCount2 == 1){
-							finishedCount2++;
-							currentTpcOpId.notifyAll();
-						} else {
-							// this case should not happen
-							System.err.println("synching got to else case");
-							TPCMaster.exit();
-						}
-					}
-
-					//Neither lock should be held now
-					break;
+					return;
 
 				case ABORT:
 					TPCMessage abortMessage = new TPCMessage("abort", message.getTpcOpId());
@@ -816,15 +1686,12 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 						}
 						// it is an ack, so we're done.
 					} catch (SocketTimeoutException e) {
-						// if timeout, then resend
+						// if timeout (or the connection broke), then resend
 						// this ONLY breaks out of the switch, not the while loop
+						pauseBeforeResend();
 						break;
 					}
-					
-					synchronized(currentTpcOpId){
-						allDone++;
-						currentTpcOpId.notifyAll();
-					}
+					operation.ack();
 					return;
 				case COMMIT:
 					TPCMessage commitMessage = new TPCMessage("commit", message.getTpcOpId());
@@ -832,8 +1699,9 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 					try {
 						commitAck = sendReceiveSlaveTPC(slaveServerInfo, commitMessage);
 					} catch (SocketTimeoutException e) {
-						// if timeout, then resend
+						// if timeout (or the connection broke), then resend
 						// this ONLY breaks out of the switch, not the while loop
+						pauseBeforeResend();
 						break;
 					}
 					if (!"ack".equals(commitAck.getMsgType())){
@@ -841,14 +1709,28 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 						System.exit(1);
 					}
 					// it is an ack, so we do housekeeping and finish
-					synchronized(currentTpcOpId){
-						allDone++;
-						currentTpcOpId.notifyAll();
-					}
+					operation.ack();
+					return;
+				default:
+					// this should not happen
+					System.err.println("processTPCOpRunnable got to the default case");
+					TPCMaster.exit();
 					return;
 				}
 			}
 		}
+		/**
+		 * Keeps a slave that drops every decision (say, because it cannot log
+		 * them) from being flooded with resends
+		 */
+		private void pauseBeforeResend() {
+			try {
+				Thread.sleep(RESEND_MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
 		public TPCMessage sendReceiveSlaveTPC(SlaveInfo slave, TPCMessage opRequest) throws SocketTimeoutException{
 			TPCMessage slaveResponse = null;
 			// send the request to the slaveServer
@@ -856,7 +1738,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 			// create new slave Socket
 			Socket slaveSocket = null;
 			try {
-				slaveSocket = new Socket(slaveServerInfo.hostName, slaveServerInfo.port);
+				slaveSocket = slaveServerInfo.connect();
 			} catch (UnknownHostException e) {
 				// should not happen
 				e.printStackTrace();
@@ -907,7 +1789,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 
 		// get SlaveID
 		Long slaveServerID = Long.decode(inputMessage.getMessage());
-		SlaveInfo slave = consistentHash.get(slaveServerID);
+		SlaveInfo slave = consistentHash.member(slaveServerID);
 		if (slave == null){
 			throw new KVException(new KVMessage("IgnoreNext Error: Invalid SlaveServerID"));
 		}
@@ -915,9 +1797,9 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 		// convert to a TPCMessage
 		TPCMessage tpcMessage = new TPCMessage (inputMessage, "-1");
 
-		// add ignoreRunnable to threadpool
+		// add ignoreRunnable to the control lane
 		try {
-			threadpool.addToQueue(new ignoreRunnable<K,V>(tpcMessage, slave, client));
+			submit(Lane.CONTROL, new ignoreRunnable<K,V>(tpcMessage, slave, client));
 		} catch (InterruptedException e) {
 			// should not happen
 			e.printStackTrace();
@@ -943,7 +1825,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 			// create connection to slaveServer
 			Socket slaveServer = null;
 			try {
-				slaveServer = new Socket(slaveServerInfo.hostName, slaveServerInfo.port);
+				slaveServer = slaveServerInfo.connect();
 			} catch (UnknownHostException e) {
 				// should not happen
 				e.printStackTrace();
@@ -959,25 +1841,16 @@ public class TPCMaster<K extends Serializable, V extends Serializable>  {
 			try {
 				slaveResponse = TPCMessage.sendReceive(slaveServer, message);
 			} catch (SocketTimeoutException e) {
-				// should not timeout on ignoreNext call
-				e.printStackTrace();
-				TPCMaster.exit();
+				// ignoreNext does not time out, so the connection broke; it 
+				// may or may not have reached the slave, so it is not resent
+				KVMessage.sendMessage(client, new KVMessage("Network Error: Could not receive data"));
+				return;
 			}
 
 			// send back to client
 			KVMessage clientResponse = new KVMessage(slaveResponse.getMessage());
+			// both sockets are handed back (or closed) by sendReceive and sendMessage
 			KVMessage.sendMessage(client, clientResponse);
-
-			// close ports
-			try {
-				client.close();
-				slaveServer.close();
-			} catch (IOException e) {
-				// this should not happen
-				e.printStackTrace();
-				TPCMaster.exit();
-			}
-
 		}
 	}
 
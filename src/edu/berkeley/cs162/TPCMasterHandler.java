@@ -32,8 +32,19 @@ package edu.berkeley.cs162;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.Socket;
-import java.util.Hashtable;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.xml.bind.DatatypeConverter;
@@ -42,24 +53,72 @@ import javax.xml.bind.DatatypeConverter;
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
  *
+ * The participant keeps the state of every 2PC operation it has voted on, 
+ * keyed by TPC op id, so the master can have prepares for several operations
+ * outstanding on one slave. A key can be held by only one prepared operation 
+ * at a time; a prepare on a key that is already held votes abort.
+ *
+ * A one-phase prepare is committed as soon as it is logged. The slave 
+ * remembers the op ids it committed this way, so that a prepare the master 
+ * sends again after losing the reply is acknowledged, not applied twice.
+ *
+ * A multireq carries several putreqs and delreqs batched by the master. It 
+ * holds all of their keys, is logged as one ready record, and is applied as 
+ * a whole or not at all. Its abort names every request that was refused 
+ * (see {@link TPCMessage#encodeRefused(Map)}), so that the master can send 
+ * the others again without them.
  */
-public class TPCMasterHandler<K extends Serializable, V extends Serializable> implements NetworkHandler {
+public class TPCMasterHandler<K extends Serializable, V extends Serializable> implements FramedNetworkHandler {
+	// most pool workers that help apply one committed multireq
+	private static final int MAX_APPLY_HELPERS = 3;
+	// most committed one-phase operations remembered for resent prepares
+	private static final int MAX_COMMITTED_ONE_PHASE = 1024;
+
 	private KeyServer<K, V> keyserver = null;
 	private ThreadPool threadpool = null;
 	private TPCLog<K, V> tpcLog = null;
 
-	private boolean ignoreNext = false;
+	private AtomicBoolean ignoreNext = new AtomicBoolean(false);
 	private long SlaveID = -1;
 
-	private Hashtable<K, ReentrantReadWriteLock> accessLocks = 
-			new Hashtable<K, ReentrantReadWriteLock>();
-	private ReentrantLock transactionLock = new ReentrantLock();
+	private StripedLock accessLocks = new StripedLock();
 	private enum EState {
-		NOSTATE, PUT_WAIT, DEL_WAIT, ABORT, COMMIT
+		NOSTATE, PUT_WAIT, DEL_WAIT, MULTI_WAIT, ABORT, COMMIT
+	}
+
+	/**
+	 * Participant state of one 2PC operation, from the ready vote until the 
+	 * decision has been applied and acknowledged
+	 */
+	private class Transaction {
+		// we have to save the request or else we won't know what to put or delete
+		// if we get a commit!
+		private TPCMessage request;
+		private volatile EState state;
+
+		public Transaction(TPCMessage request, EState state) {
+			this.request = request;
+			this.state = state;
+		}
 	}
-	private EState TPCState = EState.NOSTATE;
-	private ReentrantLock TPCStateLock = new ReentrantLock();
-	private TPCMessage putDelMessage;
+
+	// 2PC operations this slave has voted ready on, keyed by TPC op id
+	private ConcurrentHashMap<String, Transaction> transactions = 
+			new ConcurrentHashMap<String, Transaction>();
+	// Keys held by a prepared 2PC operation, mapped to the TPC op id holding them
+	private ConcurrentHashMap<String, String> preparedKeys = 
+			new ConcurrentHashMap<String, String>();
+	// Recently committed one-phase operations, oldest first, guarded by itself. 
+	// The master sends a one-phase prepare again when its reply is lost, and 
+	// by then the operation may be committed and forgotten by transactions
+	private LinkedHashMap<String, Boolean> committedOnePhase = new LinkedHashMap<String, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_COMMITTED_ONE_PHASE;
+		}
+	};
 
 
 	public TPCMasterHandler(KeyServer<K, V> keyserver) {
@@ -67,8 +126,17 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 	}
 
 	public TPCMasterHandler(KeyServer<K, V> keyserver, int connections) {
+		this(keyserver, new ThreadPool(connections));
+	}
+
+	/**
+	 * @param keyserver
+	 * @param threadpool runs the requests; if it is bounded with the FAIL 
+	 * policy, requests that do not fit are answered with ThreadPool.BUSY
+	 */
+	public TPCMasterHandler(KeyServer<K, V> keyserver, ThreadPool threadpool) {
 		this.keyserver = keyserver;
-		threadpool = new ThreadPool(connections);	
+		this.threadpool = threadpool;
 	}
 
 	@Override
@@ -78,209 +146,249 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 		 master.setSoTimeout(0);
 
 		TPCMessage inputMessage = TPCMessage.receiveMessage(master);
-//		System.out.println("Received from Master at Slave " + SlaveID + ":");
-//		try {
-//			System.out.println(inputMessage.toXML()+"\n");
-//		} catch (KVException e) {
-//			e.printStackTrace();
-//			TPCMaster.exit();
-//		}
-		
-		if (inputMessage.getMsgType().equals("putreq")) {
-			tpcLog.appendAndFlush(new TPCMessage("ready", inputMessage.getKey(), inputMessage.getValue(), "putreq", inputMessage.getTpcOpId()));
-		}
-		if (inputMessage.getMsgType().equals("delreq")) {
-			tpcLog.appendAndFlush(new TPCMessage("ready", inputMessage.getKey(), "delreq", inputMessage.getTpcOpId()));
-		}
-		if (inputMessage.getMsgType().equals("commit")) {
-			tpcLog.appendAndFlush(new TPCMessage("commit", inputMessage.getTpcOpId()));
-		}
-		if (inputMessage.getMsgType().equals("abort")) {
-			tpcLog.appendAndFlush(new TPCMessage("abort", inputMessage.getTpcOpId()));
-		}
-		
-		
-		switch (TPCState) {
-
-		case NOSTATE:
-			// we have to save the message or else we won't know what to put or delete
-			// if we get a commit!
-			putDelMessage = inputMessage;
+		String msgType = inputMessage.getMsgType();
 
-			if (inputMessage.getMsgType().equals("getreq")){
-				try {
-					threadpool.addToQueue(new getRunnable((K)TPCMessage.decodeObject(inputMessage.getKey()), keyserver, master, inputMessage.getTpcOpId()));
-				} catch (InterruptedException e) {
-					sendMessage(master, new TPCMessage(new KVMessage("Unknown Error: Get Request failed -- InterruptedException from the threadpool"), "-1"));
-					break;
-				} catch (KVException e){
-					sendMessage(master, new TPCMessage(e.getMsg(), "-1"));
-					break;
-				}
-			} else if (inputMessage.getMsgType().equals("putreq")){
-				if (ignoreNext == true){
-					TPCMessage abortMsg = new TPCMessage("abort", "IgnoreNext Error: SlaveServer "+SlaveID+" has ignored this 2PC request during the first phase", inputMessage.getTpcOpId(), false);
-					sendMessage(master, abortMsg);
-					ignoreNext = false;
-					TPCStateLock.lock();
-					TPCState = EState.PUT_WAIT;
-					TPCStateLock.unlock();
-					break;
+		if (msgType.equals("getreq")){
+			// GETs do not take part in 2PC
+			try {
+				threadpool.addToQueue(new getRunnable((K)TPCMessage.decodeObject(inputMessage.getKey()), keyserver, master, inputMessage.getTpcOpId()));
+			} catch (InterruptedException e) {
+				sendMessage(master, new TPCMessage(new KVMessage("Unknown Error: Get Request failed -- InterruptedException from the threadpool"), "-1"));
+			} catch (RejectedExecutionException e) {
+				sendMessage(master, new TPCMessage(new KVMessage(e.getMessage()), "-1"));
+			} catch (KVException e){
+				sendMessage(master, new TPCMessage(e.getMsg(), "-1"));
+			}
+		} else if (msgType.equals("putreq") || msgType.equals("delreq") || msgType.equals(TPCMessage.MULTI_REQ)){
+			if (TPCMessage.ONE_PHASE.equals(inputMessage.getMessage()) && isCommitted(inputMessage.getTpcOpId())) {
+				if (transactions.containsKey(inputMessage.getTpcOpId())) {
+					// still being applied, so the master must ask again later
+					WireProtocol.closeQuietly(master);
+				} else {
+					// a resent prepare whose commit has been applied already
+					sendMessage(master, new TPCMessage("ack", inputMessage.getTpcOpId()));
 				}
-				try {
+				return;
+			}
+			if (ignoreNext.compareAndSet(true, false)){
+				TPCMessage abortMsg = new TPCMessage("abort", "IgnoreNext Error: SlaveServer "+SlaveID+" has ignored this 2PC request during the first phase", inputMessage.getTpcOpId(), false);
+				sendMessage(master, abortMsg);
+				return;
+			}
+			try {
+				if (msgType.equals("putreq")){
 					threadpool.addToQueue(new putRunnable<K,V>(
 							(K)TPCMessage.decodeObject(inputMessage.getKey()), 
 							(V)TPCMessage.decodeObject(inputMessage.getValue()), 
 							keyserver, master, inputMessage.getTpcOpId(), inputMessage));
-					break;
-				} catch (InterruptedException e) {
-					// send Abort response
-					TPCMessage abortMsg = new TPCMessage("abort", "Unknown Error: InterruptedException from the threadpool", inputMessage.getTpcOpId(), false);
-					sendMessage(master, abortMsg);
-					TPCStateLock.lock();
-					TPCState = EState.PUT_WAIT;
-					TPCStateLock.unlock();
-					break;
-				} catch (KVException e){
-					// send Abort response
-					TPCMessage abortMsg = new TPCMessage("abort", e.getMsg().getMessage(), inputMessage.getTpcOpId(), false);
-					sendMessage(master, abortMsg);
-					TPCStateLock.lock();
-					TPCState = EState.PUT_WAIT;
-					TPCStateLock.unlock();
-					break;
-				}
-			} else if (inputMessage.getMsgType().equals("delreq")){
-				if (ignoreNext == true){
-					TPCMessage abortMsg = new TPCMessage("abort", "IgnoreNext Error: SlaveServer "+SlaveID+" has ignored this 2PC request during the first phase", inputMessage.getTpcOpId(), false);
-					sendMessage(master, abortMsg);
-					ignoreNext = false;
-					TPCStateLock.lock();
-					TPCState = EState.DEL_WAIT;
-					TPCStateLock.unlock();
-					break;
-				}
-				try {
+				} else if (msgType.equals("delreq")){
 					threadpool.addToQueue(new delRunnable<K,V>(
 							(K)TPCMessage.decodeObject(inputMessage.getKey()), 
 							keyserver, master, inputMessage.getTpcOpId(), inputMessage));
-					break;
-				} catch (InterruptedException e) {
-					// send Abort response
-					TPCMessage abortMsg = new TPCMessage("abort", "Unknown Error: InterruptedException from the threadpool", inputMessage.getTpcOpId(), false);
-					sendMessage(master, abortMsg);
-					TPCStateLock.lock();
-					TPCState = EState.DEL_WAIT;
-					TPCStateLock.unlock();
-					break;
-				} catch (KVException e){
-					// send Abort response
-					TPCMessage abortMsg = new TPCMessage("abort", e.getMsg().getMessage(), inputMessage.getTpcOpId(), false);
-					sendMessage(master, abortMsg);
-					TPCStateLock.lock();
-					TPCState = EState.DEL_WAIT;
-					TPCStateLock.unlock();
-					break;
+				} else {
+					threadpool.addToQueue(new multiRunnable(master, inputMessage.getTpcOpId(), inputMessage));
 				}
-			} else if (inputMessage.getMsgType().equals("ignoreNext")){
-				ignoreNext = true;
-				TPCMessage response = new TPCMessage(new KVMessage("Success"), "-1");
-				sendMessage(master, response);
-				return;
-			} else {
-				// this should not happen.
-				System.err.println("TPCMasterHandler in NOSTATE, but didn't get a getreq, putreq, or delreq");
-				TPCMaster.exit();
-				break;
+			} catch (InterruptedException e) {
+				// send Abort response
+				TPCMessage abortMsg = new TPCMessage("abort", "Unknown Error: InterruptedException from the threadpool", inputMessage.getTpcOpId(), false);
+				sendMessage(master, abortMsg);
+			} catch (RejectedExecutionException e) {
+				// too busy to take part, so vote abort
+				TPCMessage abortMsg = new TPCMessage("abort", e.getMessage(), inputMessage.getTpcOpId(), false);
+				sendMessage(master, abortMsg);
+			} catch (KVException e){
+				// send Abort response
+				TPCMessage abortMsg = new TPCMessage("abort", e.getMsg().getMessage(), inputMessage.getTpcOpId(), false);
+				sendMessage(master, abortMsg);
 			}
-			break;
+		} else if (msgType.equals("commit") || msgType.equals("abort")){
+			handleDecision(master, inputMessage);
+		} else if (msgType.equals("ignoreNext")){
+			ignoreNext.set(true);
+			TPCMessage response = new TPCMessage(new KVMessage("Success"), "-1");
+			sendMessage(master, response);
+		} else {
+			// this should not happen.
+			System.err.println("TPCMasterHandler didn't get a getreq, putreq, delreq, commit, abort or ignoreNext");
+			TPCMaster.exit();
+		}
+	}
 
-		case PUT_WAIT: 
-			// Sanity Check... make sure the message is a commit or abort message
-			if (!inputMessage.getMsgType().equals("commit") && !inputMessage.getMsgType().equals("abort")){
-				System.err.println("TPCMasterHandler in PUT_WAIT, but didn't get a commit or abort");
-				TPCMaster.exit();
-			}
+	/**
+	 * Log the global decision for a 2PC operation and hand it to the runnable 
+	 * of the original request
+	 * @param master
+	 * @param decision commit or abort message
+	 * @throws IOException
+	 */
+	private void handleDecision(Socket master, TPCMessage decision) throws IOException {
+		String tpcOpId = decision.getTpcOpId();
+		if (transactions.get(tpcOpId) == null && decision.getMsgType().equals("abort")) {
+			// this slave voted abort, so there is nothing to undo, and no ready
+			// record for the abort to close: recovery presumes the abort
+			sendMessage(master, new TPCMessage("ack", tpcOpId));
+			return;
+		}
+		// a checkpoint must not fall between logging the decision and applying it
+		tpcLog.beginApply();
+		if (!tpcLog.appendAndFlush(new TPCMessage(decision.getMsgType(), tpcOpId))) {
+			// without the decision on disk this slave could lose it in a 
+			// crash, so it must not let the master forget the operation: 
+			// the master sends the decision again
+			tpcLog.endApply();
+			System.err.println("Decision for " + tpcOpId + " could not be logged");
+			WireProtocol.closeQuietly(master);
+			return;
+		}
 
-			if (inputMessage.getMsgType().equals("commit")){
-				TPCStateLock.lock();
-				TPCState = EState.COMMIT;
-				TPCStateLock.unlock();
-			} else if (inputMessage.getMsgType().equals("abort")){
-				TPCStateLock.lock();
-				TPCState = EState.ABORT;
-				TPCStateLock.unlock();
-			}
-			
-			// we have to reload the original message or else getKey() and getValue()
-			// will throw NullPointers
-			inputMessage = putDelMessage;
-			
-			//Sanity Check
-			if (!inputMessage.getMsgType().equals("putreq")){
-				// this should not happen
-				System.err.println("failed Sanity Check 1 in TPCMasterHandler");
-				TPCMaster.exit();
-			}
-			
-			try {
-				threadpool.addToQueue(new putRunnable<K,V>(
+		Transaction transaction = transactions.get(tpcOpId);
+		if (transaction == null) {
+			// this slave voted abort (or already finished the operation), 
+			// so there is nothing to undo
+			tpcLog.endApply();
+			sendMessage(master, new TPCMessage("ack", tpcOpId));
+			return;
+		}
+		if (decision.getMsgType().equals("commit")){
+			transaction.state = EState.COMMIT;
+		} else {
+			transaction.state = EState.ABORT;
+		}
+
+		// we have to reload the original message or else getKey() and getValue()
+		// will throw NullPointers
+		TPCMessage inputMessage = transaction.request;
+		Runnable apply = null;
+		try {
+			if (inputMessage.getMsgType().equals("putreq")){
+				apply = new putRunnable<K,V>(
 						(K)TPCMessage.decodeObject(inputMessage.getKey()), 
 						(V)TPCMessage.decodeObject(inputMessage.getValue()), 
-						keyserver, master, inputMessage.getTpcOpId(), inputMessage));
-				break;
-			} catch (InterruptedException e) {
-				System.err.println("PUT_WAIT had an InterruptedException");
-				TPCMaster.exit();
-				return;
-			} catch (KVException e){
-				System.err.println("PUT_WAIT had a KVException: " + e.getMsg().getMessage());
-				TPCMaster.exit();
-				return;
-			}
-		case DEL_WAIT: 
-			// Sanity Check... make sure the message is a commit or abort message
-			if (!inputMessage.getMsgType().equals("commit") && !inputMessage.getMsgType().equals("abort")){
-				System.err.println("TPCMasterHandler in DEL_WAIT, but didn't get a commit or abort");
-			}
-			
-			if (inputMessage.getMsgType().equals("commit")){
-				TPCStateLock.lock();
-				TPCState = EState.COMMIT;
-				TPCStateLock.unlock();
-			} else if (inputMessage.getMsgType().equals("abort")){
-				TPCStateLock.lock();
-				TPCState = EState.ABORT;
-				TPCStateLock.unlock();
+						keyserver, master, tpcOpId, inputMessage);
+			} else if (inputMessage.getMsgType().equals("delreq")){
+				apply = new delRunnable<K,V>(
+						(K)TPCMessage.decodeObject(inputMessage.getKey()), 
+						keyserver, master, tpcOpId, inputMessage);
+			} else {
+				apply = new multiRunnable(master, tpcOpId, inputMessage);
 			}
-			
-			// we have to reload the original message or else getKey()
-			// will throw NullPointer
-			inputMessage = putDelMessage;
-			
-			//Sanity Check
-			if (!inputMessage.getMsgType().equals("delreq")){
-				// this should not happen
-				System.err.println("failed Sanity Check 2 in TPCMasterHandler");
-				TPCMaster.exit();
+			threadpool.addToQueue(apply);
+		} catch (RejectedExecutionException e) {
+			// a logged decision must be applied, busy or not
+			apply.run();
+		} catch (InterruptedException e) {
+			System.err.println("Decision for " + tpcOpId + " had an InterruptedException");
+			TPCMaster.exit();
+		} catch (KVException e){
+			System.err.println("Decision for " + tpcOpId + " had a KVException: " + e.getMsg().getMessage());
+			TPCMaster.exit();
+		}
+	}
+
+	/**
+	 * @param tpcOpId
+	 * @return the state of the 2PC operation, NOSTATE if this slave has not voted ready on it
+	 */
+	private EState stateOf(String tpcOpId) {
+		Transaction transaction = transactions.get(tpcOpId);
+		return (transaction == null) ? EState.NOSTATE : transaction.state;
+	}
+
+	/**
+	 * Hold the key of a request for its 2PC operation
+	 * @param request
+	 * @return false if another prepared 2PC operation already holds the key
+	 */
+	private boolean holdKey(TPCMessage request) {
+		String holder = preparedKeys.putIfAbsent(request.getKey(), request.getTpcOpId());
+		return holder == null || holder.equals(request.getTpcOpId());
+	}
+
+	/**
+	 * Log the ready record of a request, remember the operation and vote ready.
+	 * A one-phase request is committed instead: this slave is its only 
+	 * participant, so its ready vote is the decision.
+	 * @param master
+	 * @param request
+	 * @param readyRecord
+	 * @param waitState
+	 * @return waitState if this slave voted ready; COMMIT if the operation 
+	 * is committed and must now be applied and acknowledged; NOSTATE if the 
+	 * records could not be logged, in which case this slave voted abort and 
+	 * the caller must release the keys
+	 */
+	private EState voteReady(Socket master, TPCMessage request, TPCMessage readyRecord, EState waitState) {
+		if (TPCMessage.ONE_PHASE.equals(request.getMessage())) {
+			// a checkpoint must not fall between logging the commit and applying it
+			tpcLog.beginApply();
+			if (!tpcLog.appendAndFlush(readyRecord) 
+					|| !tpcLog.appendAndFlush(new TPCMessage("commit", request.getTpcOpId()))) {
+				tpcLog.endApply();
+				voteLogError(master, request);
+				return EState.NOSTATE;
 			}
-			
-			try {
-				threadpool.addToQueue(new delRunnable<K,V>(
-						(K)TPCMessage.decodeObject(inputMessage.getKey()), 
-						keyserver, master, inputMessage.getTpcOpId(), inputMessage));
-				break;
-			} catch (InterruptedException e) {
-				System.err.println("DEL_WAIT had an InterruptedException");
-				break;
-			} catch (KVException e){
-				System.err.println("DEL_WAIT had a KVException: " + e.getMsg().getMessage());
-				break;
-			}		
-		default:
-			// this should pretty much never happen
-			System.err.println("TPCMasterHandler -- handle somehow got to the default case");
-			break;
+			transactions.put(request.getTpcOpId(), new Transaction(request, EState.COMMIT));
+			rememberCommitted(request.getTpcOpId());
+			return EState.COMMIT;
+		}
+		if (!tpcLog.appendAndFlush(readyRecord)) {
+			voteLogError(master, request);
+			return EState.NOSTATE;
+		}
+		transactions.put(request.getTpcOpId(), new Transaction(request, waitState));
+		sendMessage(master, new TPCMessage("ready", request.getTpcOpId()));
+		return waitState;
+	}
+
+	/**
+	 * Remember a committed one-phase operation, so that its prepare is not 
+	 * applied again if the master sends it again
+	 * @param tpcOpId
+	 */
+	private void rememberCommitted(String tpcOpId) {
+		synchronized (committedOnePhase) {
+			committedOnePhase.put(tpcOpId, true);
+		}
+	}
+
+	/**
+	 * @param tpcOpId
+	 * @return true if this slave committed the one-phase operation recently
+	 */
+	private boolean isCommitted(String tpcOpId) {
+		synchronized (committedOnePhase) {
+			return committedOnePhase.containsKey(tpcOpId);
+		}
+	}
+
+	/**
+	 * Vote abort on a request whose records could not be logged
+	 * @param master
+	 * @param request
+	 */
+	private void voteLogError(Socket master, TPCMessage request) {
+		TPCMessage abortMessage = new TPCMessage("abort", 
+				"IO Error: SlaveServer " + SlaveID + " could not log the 2PC operation", request.getTpcOpId(), false);
+		sendMessage(master, abortMessage);
+	}
+
+	/**
+	 * Forget a finished 2PC operation and release its key
+	 * @param request
+	 */
+	private void finish(TPCMessage request) {
+		transactions.remove(request.getTpcOpId());
+		preparedKeys.remove(request.getKey(), request.getTpcOpId());
+	}
+
+	/**
+	 * Release the keys of a multireq that were held by holdKey()
+	 * @param mutations
+	 * @param count how many of them, from the start
+	 */
+	private void releaseKeys(List<TPCMessage> mutations, int count) {
+		for (TPCMessage mutation : mutations.subList(0, count)) {
+			preparedKeys.remove(mutation.getKey(), mutation.getTpcOpId());
 		}
 	}
 
@@ -300,10 +408,6 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 		@Override
 		public void run() {
 			ReentrantReadWriteLock accessLock = accessLocks.get(key);
-			if (accessLock == null) {
-				accessLocks.put(key, new ReentrantReadWriteLock());
-				accessLock = accessLocks.get(key);
-			}
 			accessLock.readLock().lock();
 
 			// call get function and send answer to master
@@ -339,12 +443,6 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 //				TPCMaster.exit();
 //			}
 			sendMessage(master, TPCresponse);
-			try {
-				master.close();
-			} catch (IOException e) {
-				// These ones don't send errors, this is a server error
-				e.printStackTrace();
-			}
 			accessLock.readLock().unlock();
 		}
 	}
@@ -368,70 +466,63 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 		}
 		@Override
 		public void run() {
-			transactionLock.lock();
-
-			switch (TPCState) {
+			switch (stateOf(TpcOpID)) {
 			case NOSTATE: 
 				// check to see if putreq will send back an Abort response or a Ready response
 				if (!checkKey(message.getKey())){
 					// send Abort response
 					TPCMessage abortMessage = new TPCMessage("abort", "Over sized key", message.getTpcOpId(), false);
 					sendMessage(master, abortMessage);
-					TPCStateLock.lock();
-					TPCState = EState.PUT_WAIT;
-					TPCStateLock.unlock();
 					break;
 				} else if (!checkValue(message.getValue())){
 					// send Abort response
 					TPCMessage abortMessage = new TPCMessage("abort", "Over sized value", message.getTpcOpId(), false);
 					sendMessage(master, abortMessage);
-					TPCStateLock.lock();
-					TPCState = EState.PUT_WAIT;
-					TPCStateLock.unlock();
+					break;
+				} else if (!holdKey(message)){
+					TPCMessage abortMessage = new TPCMessage("abort", "Key is locked by another 2PC operation", message.getTpcOpId(), false);
+					sendMessage(master, abortMessage);
 					break;
 				} else{
-					TPCMessage readyMessage = new TPCMessage("ready", TpcOpID);
-					sendMessage(master, readyMessage);		
-					TPCStateLock.lock();
-					TPCState = EState.PUT_WAIT;
-					TPCStateLock.unlock();
+					EState vote = voteReady(master, message, new TPCMessage("ready", message.getKey(), message.getValue(), "putreq", TpcOpID), EState.PUT_WAIT);
+					if (vote == EState.COMMIT) {
+						// one-phase commit
+						run();
+					} else if (vote == EState.NOSTATE) {
+						finish(message);
+					}
 					break;
 				}
 			case COMMIT:
+				ReentrantReadWriteLock accessLock = accessLocks.get(key);
+				accessLock.writeLock().lock();
 				try {
 					keyserver.put(key, value);
 				} catch (KVException e) {
 					System.err.println("put COMMIT failed");
 					TPCMaster.exit();
+				} finally {
+					accessLock.writeLock().unlock();
 				}
+				finish(message);
+				tpcLog.endApply();
 				// send acknowledgment
 				TPCMessage ackMessage = new TPCMessage("ack", TpcOpID);
 				sendMessage(master, ackMessage);
-				TPCStateLock.lock();
-				TPCState = EState.NOSTATE;
-				TPCStateLock.unlock();
 				break;	
 			case ABORT:
+				finish(message);
+				tpcLog.endApply();
 				// send acknowledgment
 				ackMessage = new TPCMessage("ack", TpcOpID);
 				sendMessage(master, ackMessage);
-				TPCStateLock.lock();
-				TPCState = EState.NOSTATE;
-				TPCStateLock.unlock();
 				break;
 			default:
 				// this should pretty much should NEVER happen
 				System.err.println("TPCMasterHandler -- putRunnable somehow got to the default case");
+				WireProtocol.closeQuietly(master);
 				break;
 			}
-			// TODO should I still close it here, I close it in handle()
-			try {
-				master.close();
-			} catch (IOException e) {
-				// These ones don't send errors, this is a server error
-				e.printStackTrace();
-			}
-			transactionLock.unlock();
 		}
 	}
 
@@ -453,18 +544,17 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 
 		@Override
 		public void run() {
-			transactionLock.lock();
-
-			switch (TPCState) {
+			switch (stateOf(TpcOpID)) {
 
 			case NOSTATE: 
 				// check to see if delreq will send back an Abort response or a Ready response
 				if (!checkKey(message.getKey())){
 					TPCMessage abortMessage = new TPCMessage("abort", "Over sized value", message.getTpcOpId(), false);
 					sendMessage(master, abortMessage);
-					TPCStateLock.lock();
-					TPCState = EState.DEL_WAIT;
-					TPCStateLock.unlock();
+					break;
+				} else if (!holdKey(message)){
+					TPCMessage abortMessage = new TPCMessage("abort", "Key is locked by another 2PC operation", message.getTpcOpId(), false);
+					sendMessage(master, abortMessage);
 					break;
 				} else {
 					// test to see if key is actually inside the server
@@ -472,19 +562,19 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 						keyserver.get(key);
 					} catch (KVException e) {
 						// this means that key is not inside of keyserver
+						finish(message);
 						TPCMessage abortMessage = new TPCMessage("abort", "Key doesn't exist", message.getTpcOpId(), false);
 						sendMessage(master, abortMessage);
-						TPCStateLock.lock();
-						TPCState = EState.DEL_WAIT;
-						TPCStateLock.unlock();
 						break;
 					}
 
-					TPCMessage readyMessage = new TPCMessage("ready", TpcOpID);
-					sendMessage(master, readyMessage);
-					TPCStateLock.lock();
-					TPCState = EState.DEL_WAIT;
-					TPCStateLock.unlock();
+					EState vote = voteReady(master, message, new TPCMessage("ready", message.getKey(), "delreq", TpcOpID), EState.DEL_WAIT);
+					if (vote == EState.COMMIT) {
+						// one-phase commit
+						run();
+					} else if (vote == EState.NOSTATE) {
+						finish(message);
+					}
 					break;
 				}
 			case COMMIT:
@@ -492,6 +582,8 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 				 * key is definitely in keyserver
 				 * 
 				 */
+				ReentrantReadWriteLock accessLock = accessLocks.get(key);
+				accessLock.writeLock().lock();
 				try {
 					keyserver.del(key);
 				} catch (KVException e) {
@@ -499,35 +591,243 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 					System.err.println("Delete COMMIT failed when it wasn't supposed to");
 					e.printStackTrace();
 					TPCMaster.exit();
+				} finally {
+					accessLock.writeLock().unlock();
 				}
+				finish(message);
+				tpcLog.endApply();
 				// send acknowledgment
 				TPCMessage ackMessage = new TPCMessage("ack", TpcOpID);
 				sendMessage(master, ackMessage);
-				TPCStateLock.lock();
-				TPCState = EState.NOSTATE;
-				TPCStateLock.unlock();
 				break;
 			case ABORT:
+				finish(message);
+				tpcLog.endApply();
 				// send acknowledgment
 				ackMessage = new TPCMessage("ack", TpcOpID);
 				sendMessage(master, ackMessage);
-				TPCStateLock.lock();
-				TPCState = EState.NOSTATE;
-				TPCStateLock.unlock();
 				break;
 			default:
 				// this should pretty much should NEVER happen
 				System.err.println("TPCMasterHandler -- delRunnable somehow got to the default case");
+				WireProtocol.closeQuietly(master);
 				break;
 			}
+		}
+	}
 
-			try {
-				master.close();
-			} catch (IOException e) {
-				// These ones don't send errors, this is a server error
-				e.printStackTrace();
+	class multiRunnable implements Runnable {
+		Socket master;
+		String TpcOpID;
+		TPCMessage message;
+		// the putreqs and delreqs of the multireq, in order
+		List<TPCMessage> mutations;
+
+		public multiRunnable(Socket master, String TpcOpID, TPCMessage message) throws KVException {
+			this.master = master;
+			this.TpcOpID = TpcOpID;
+			this.message = message;
+			this.mutations = TPCMessage.decodeBatch(message.getValue(), TpcOpID);
+		}
+
+		/**
+		 * Hold every key of the multireq and check that all of its requests
+		 * can be applied. Keys are released again if not.
+		 * @param refused filled with the reason each request that cannot be
+		 * applied is refused, by its position in the multireq
+		 * @return null if the multireq can be applied, otherwise why not
+		 */
+		private String prepare(Map<Integer, String> refused) {
+			// whether each key exists once the requests before it are applied
+			Map<String, Boolean> exists = new HashMap<String, Boolean>();
+			String firstError = null;
+			for (int i = 0; i < mutations.size(); i++) {
+				TPCMessage mutation = mutations.get(i);
+				String error = null;
+				if (!checkKey(mutation.getKey())) {
+					error = "Over sized key";
+				} else if (mutation.getMsgType().equals("putreq") && !checkValue(mutation.getValue())) {
+					error = "Over sized value";
+				} else if (!holdKey(mutation)) {
+					error = "Key is locked by another 2PC operation";
+				} else if (mutation.getMsgType().equals("putreq")) {
+					exists.put(mutation.getKey(), true);
+				} else {
+					Boolean present = exists.get(mutation.getKey());
+					if (present == null) {
+						try {
+							keyserver.get((K) TPCMessage.decodeObject(mutation.getKey()));
+							present = true;
+						} catch (KVException e) {
+							present = false;
+						}
+					}
+					if (present) {
+						exists.put(mutation.getKey(), false);
+					} else {
+						error = "Key doesn't exist";
+					}
+				}
+				// go on, so that the master learns every request it must 
+				// leave out when it sends the others again
+				if (error != null) {
+					refused.put(i, error);
+					if (firstError == null) {
+						firstError = error;
+					}
+				}
+			}
+			if (firstError != null) {
+				releaseKeys(mutations, mutations.size());
+			}
+			return firstError;
+		}
+
+		@Override
+		public void run() {
+			switch (stateOf(TpcOpID)) {
+			case NOSTATE:
+				Map<Integer, String> refused = new TreeMap<Integer, String>();
+				String error = prepare(refused);
+				if (error != null) {
+					String requests = null;
+					try {
+						requests = TPCMessage.encodeRefused(refused);
+					} catch (KVException e) {
+						// the master then treats the whole multireq as refused
+					}
+					TPCMessage abortMessage = new TPCMessage("abort", null, requests, error, message.getTpcOpId());
+					sendMessage(master, abortMessage);
+					break;
+				}
+				EState vote = voteReady(master, message, new TPCMessage("ready", null, message.getValue(), 
+						TPCMessage.MULTI_REQ, TpcOpID), EState.MULTI_WAIT);
+				if (vote == EState.COMMIT) {
+					// one-phase commit
+					run();
+				} else if (vote == EState.NOSTATE) {
+					releaseKeys(mutations, mutations.size());
+				}
+				break;
+			case COMMIT:
+				// only requests on the same key depend on each other, so the 
+				// keys are shared out between this thread and a few idle 
+				// workers rather than paying for every store access in turn
+				LinkedHashMap<String, List<TPCMessage>> byKey = new LinkedHashMap<String, List<TPCMessage>>();
+				for (TPCMessage mutation : mutations) {
+					List<TPCMessage> chain = byKey.get(mutation.getKey());
+					if (chain == null) {
+						chain = new ArrayList<TPCMessage>();
+						byKey.put(mutation.getKey(), chain);
+					}
+					chain.add(mutation);
+				}
+				// readers see all of the requests applied or none of them, so 
+				// lock the same stripes as getRunnable, which go by decoded key
+				List<K> keys = new ArrayList<K>(byKey.size());
+				try {
+					for (String key : byKey.keySet()) {
+						keys.add((K) TPCMessage.decodeObject(key));
+					}
+				} catch (KVException e) {
+					// the master encoded these keys itself, so they decode
+					e.printStackTrace();
+					TPCMaster.exit();
+				}
+				List<ReentrantReadWriteLock> locks = accessLocks.getAll(keys);
+				for (ReentrantReadWriteLock lock : locks) {
+					lock.writeLock().lock();
+				}
+				try {
+					applyRunnable applier = new applyRunnable(byKey.values());
+					// only a worker that is free right now helps: this thread 
+					// holds the locks, so it must not wait for room in the pool
+					int helpers = Math.min(MAX_APPLY_HELPERS, byKey.size() - 1);
+					for (int i = 0; i < helpers; i++) {
+						if (!threadpool.offer(applier)) {
+							break;
+						}
+					}
+					// applies every key the helpers have not taken
+					applier.run();
+					applier.await();
+				} catch (InterruptedException e) {
+					// this should not happen
+					e.printStackTrace();
+					TPCMaster.exit();
+				} finally {
+					for (int i = locks.size() - 1; i >= 0; i--) {
+						locks.get(i).writeLock().unlock();
+					}
+				}
+				transactions.remove(TpcOpID);
+				releaseKeys(mutations, mutations.size());
+				tpcLog.endApply();
+				// send acknowledgment
+				TPCMessage ackMessage = new TPCMessage("ack", TpcOpID);
+				sendMessage(master, ackMessage);
+				break;
+			case ABORT:
+				transactions.remove(TpcOpID);
+				releaseKeys(mutations, mutations.size());
+				tpcLog.endApply();
+				// send acknowledgment
+				ackMessage = new TPCMessage("ack", TpcOpID);
+				sendMessage(master, ackMessage);
+				break;
+			default:
+				// this should pretty much should NEVER happen
+				System.err.println("TPCMasterHandler -- multiRunnable somehow got to the default case");
+				WireProtocol.closeQuietly(master);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Applies the requests of a committed multireq, one key at a time and each 
+	 * key's requests in order. Several threads may run the same applyRunnable;
+	 * each takes the next key nobody has taken yet.
+	 */
+	class applyRunnable implements Runnable {
+		Queue<List<TPCMessage>> chains;
+		// keys not applied yet
+		CountDownLatch remaining;
+
+		public applyRunnable(Collection<List<TPCMessage>> chains) {
+			this.chains = new ConcurrentLinkedQueue<List<TPCMessage>>(chains);
+			this.remaining = new CountDownLatch(chains.size());
+		}
+
+		@Override
+		public void run() {
+			List<TPCMessage> mutations;
+			while ((mutations = chains.poll()) != null) {
+				try {
+					for (TPCMessage mutation : mutations) {
+						K key = (K) TPCMessage.decodeObject(mutation.getKey());
+						if (mutation.getMsgType().equals("putreq")) {
+							keyserver.put(key, (V) TPCMessage.decodeObject(mutation.getValue()));
+						} else {
+							keyserver.del(key);
+						}
+					}
+				} catch (KVException e) {
+					// multiRunnable checked that every request can be applied
+					System.err.println("multireq COMMIT failed");
+					e.printStackTrace();
+					TPCMaster.exit();
+				}
+				remaining.countDown();
 			}
-			transactionLock.unlock();
+		}
+
+		/**
+		 * Waits until every key has been applied
+		 * @throws InterruptedException
+		 */
+		public void await() throws InterruptedException {
+			remaining.await();
 		}
 	}
 
@@ -537,6 +837,41 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 	 */
 	public void setTPCLog(TPCLog<K, V> tpcLog) {
 		this.tpcLog  = tpcLog;
+
+		// the log cannot tell one-phase operations apart, so remember every 
+		// committed one; only a one-phase prepare is ever sent again
+		for (String tpcOpId : tpcLog.getCommittedTpcOperations()) {
+			rememberCommitted(tpcOpId);
+		}
+
+		// operations that were prepared before a crash are still waiting for their decision
+		for (KVMessage entry : tpcLog.getInterruptedTpcOperations()) {
+			TPCMessage ready = (TPCMessage) entry;
+			TPCMessage request;
+			EState state;
+			if ("putreq".equals(ready.getMessage())) {
+				request = new TPCMessage("putreq", ready.getKey(), ready.getValue(), ready.getTpcOpId());
+				state = EState.PUT_WAIT;
+			} else if (TPCMessage.MULTI_REQ.equals(ready.getMessage())) {
+				request = new TPCMessage(TPCMessage.MULTI_REQ, null, ready.getValue(), null, ready.getTpcOpId());
+				transactions.put(request.getTpcOpId(), new Transaction(request, EState.MULTI_WAIT));
+				try {
+					for (TPCMessage mutation : TPCMessage.decodeBatch(ready.getValue(), ready.getTpcOpId())) {
+						preparedKeys.put(mutation.getKey(), mutation.getTpcOpId());
+					}
+				} catch (KVException e) {
+					// the record was logged by this class, so it decodes
+					System.err.println("Interrupted multireq " + ready.getTpcOpId() + " could not be decoded");
+					TPCMaster.exit();
+				}
+				continue;
+			} else {
+				request = new TPCMessage("delreq", ready.getKey(), ready.getTpcOpId(), true);
+				state = EState.DEL_WAIT;
+			}
+			transactions.put(request.getTpcOpId(), new Transaction(request, state));
+			preparedKeys.put(request.getKey(), request.getTpcOpId());
+		}
 	}
 
 	private boolean checkKey(String key){	
@@ -0,0 +1,286 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TPCMasterHandlerTest {
+
+	/**
+	 * Starts a SlaveServer's handler with a fresh log
+	 */
+	private SocketServer startSlave(KeyServer<String, String> keyServer, String logPath) throws Exception {
+		TPCLog<String, String> log = new TPCLog<String, String>(logPath, keyServer);
+		TPCMasterHandler<String, String> handler = new TPCMasterHandler<String, String>(keyServer, 4);
+		handler.setTPCLog(log);
+		return WireProtocolTest.startServer(handler, 0);
+	}
+
+	private TPCMessage send(SocketServer server, TPCMessage message) throws Exception {
+		Socket connection = new Socket(server.getHostname(), server.getPort());
+		connection.setSoTimeout(10000);
+		return TPCMessage.sendReceive(connection, message);
+	}
+
+	/**
+	 * Sends a message from a thread of its own
+	 * @return the thread, which leaves the reply in reply
+	 */
+	private Thread sendLater(final SocketServer server, final TPCMessage message, final AtomicReference<TPCMessage> reply) {
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				try {
+					reply.set(send(server, message));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		sender.start();
+		return sender;
+	}
+
+	private TPCMessage multiRequest(List<TPCMessage> batch, String tpcOpId) throws Exception {
+		return new TPCMessage(TPCMessage.MULTI_REQ, null, TPCMessage.encodeBatch(batch), null, tpcOpId);
+	}
+
+	// tests that the abort of a multireq names every request that was refused, and holds none of the keys
+	@Test
+	public void testRefusedRequests() throws Exception {
+		KeyServer<String, String> keyServer = new KeyServer<String, String>(10);
+		String logPath = "logPath" + Math.random();
+		SocketServer server = startSlave(keyServer, logPath);
+
+		List<TPCMessage> batch = new ArrayList<TPCMessage>();
+		batch.add(new TPCMessage("putreq", TPCMessage.encodeObject("key1"), TPCMessage.encodeObject("value1"), "1"));
+		batch.add(new TPCMessage("delreq", TPCMessage.encodeObject("missing"), "1", true));
+		batch.add(new TPCMessage("putreq", TPCMessage.encodeObject("key2"), TPCMessage.encodeObject("value2"), "1"));
+		TPCMessage reply = send(server, multiRequest(batch, "1"));
+		assertEquals("abort", reply.getMsgType());
+		assertEquals("Key doesn't exist", reply.getMessage());
+		Map<Integer, String> refused = TPCMessage.decodeRefused(reply.getValue());
+		assertEquals(1, refused.size());
+		assertEquals("Key doesn't exist", refused.get(1));
+
+		// the other requests go through on their own
+		batch.remove(1);
+		reply = send(server, multiRequest(batch, "2"));
+		assertEquals("ready", reply.getMsgType());
+		reply = send(server, new TPCMessage("commit", null, null, null, "2"));
+		assertEquals("ack", reply.getMsgType());
+		assertEquals("value1", keyServer.get("key1"));
+		assertEquals("value2", keyServer.get("key2"));
+
+		server.server.close();
+		new File(logPath).delete();
+	}
+
+	// tests that an ignored multireq is refused as a whole
+	@Test
+	public void testIgnoreNext() throws Exception {
+		KeyServer<String, String> keyServer = new KeyServer<String, String>(10);
+		String logPath = "logPath" + Math.random();
+		SocketServer server = startSlave(keyServer, logPath);
+
+		TPCMessage reply = send(server, new TPCMessage("ignoreNext", null, null, null, "-1"));
+		assertEquals("Success", reply.getMessage());
+
+		List<TPCMessage> batch = new ArrayList<TPCMessage>();
+		batch.add(new TPCMessage("putreq", TPCMessage.encodeObject("key1"), TPCMessage.encodeObject("value1"), "1"));
+		batch.add(new TPCMessage("putreq", TPCMessage.encodeObject("key2"), TPCMessage.encodeObject("value2"), "1"));
+		reply = send(server, multiRequest(batch, "1"));
+		assertEquals("abort", reply.getMsgType());
+		assertTrue(reply.getMessage().startsWith("IgnoreNext Error"));
+		assertTrue(TPCMessage.decodeRefused(reply.getValue()).isEmpty());
+
+		server.server.close();
+		new File(logPath).delete();
+	}
+
+	// tests that a GET waits until every request of a committed multireq is applied
+	@Test
+	public void testGetDuringMultiCommit() throws Exception {
+		final CountDownLatch applied = new CountDownLatch(1);
+		final CountDownLatch applying = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		// key1 is written, and key2 held back until the test lets it go
+		KeyServer<String, String> keyServer = new KeyServer<String, String>(10) {
+			@Override
+			public boolean put(String key, String value) throws KVException {
+				if (key.equals("key2")) {
+					try {
+						applied.await();
+						applying.countDown();
+						release.await();
+					} catch (InterruptedException e) {
+						throw new KVException(new KVMessage("Unknown Error: interrupted"));
+					}
+				}
+				boolean ret = super.put(key, value);
+				if (key.equals("key1")) {
+					applied.countDown();
+				}
+				return ret;
+			}
+		};
+		String logPath = "logPath" + Math.random();
+		SocketServer server = startSlave(keyServer, logPath);
+
+		List<TPCMessage> batch = new ArrayList<TPCMessage>();
+		batch.add(new TPCMessage("putreq", TPCMessage.encodeObject("key1"), TPCMessage.encodeObject("value1"), "1"));
+		batch.add(new TPCMessage("putreq", TPCMessage.encodeObject("key2"), TPCMessage.encodeObject("value2"), "1"));
+		TPCMessage reply = send(server, multiRequest(batch, "1"));
+		assertEquals("ready", reply.getMsgType());
+
+		AtomicReference<TPCMessage> ack = new AtomicReference<TPCMessage>();
+		Thread committer = sendLater(server, new TPCMessage("commit", null, null, null, "1"), ack);
+		applying.await();
+		AtomicReference<TPCMessage> value = new AtomicReference<TPCMessage>();
+		Thread reader = sendLater(server, new TPCMessage("getreq", TPCMessage.encodeObject("key1")), value);
+		Thread.sleep(200);
+		// key2 is not applied yet, so key1 must not be visible either
+		assertNull(value.get());
+
+		release.countDown();
+		committer.join(10000);
+		reader.join(10000);
+		assertEquals("ack", ack.get().getMsgType());
+		assertEquals("value1", TPCMessage.decodeObject(value.get().getValue()));
+
+		server.server.close();
+		new File(logPath).delete();
+	}
+
+	// tests that a one-phase prepare sent again after it committed is acknowledged, not applied again
+	@Test
+	public void testOnePhaseResend() throws Exception {
+		KeyServer<String, String> keyServer = new KeyServer<String, String>(10);
+		String logPath = "logPath" + Math.random();
+		SocketServer server = startSlave(keyServer, logPath);
+
+		TPCMessage put = new TPCMessage("putreq", TPCMessage.encodeObject("key1"), 
+				TPCMessage.encodeObject("value1"), TPCMessage.ONE_PHASE, "1");
+		assertEquals("ack", send(server, put).getMsgType());
+		TPCMessage delete = new TPCMessage("delreq", TPCMessage.encodeObject("key1"), null, TPCMessage.ONE_PHASE, "2");
+		assertEquals("ack", send(server, delete).getMsgType());
+		// the key is gone now, but the resend must not be refused for it
+		TPCMessage reply = send(server, delete);
+		assertEquals("ack", reply.getMsgType());
+		assertEquals("2", reply.getTpcOpId());
+
+		// nor may the put come back
+		assertEquals("ack", send(server, put).getMsgType());
+		try {
+			keyServer.get("key1");
+			fail("a resent put was applied again");
+		} catch (KVException e) {
+			assertEquals("Does not exist", e.getMsg().getMessage());
+		}
+		server.server.close();
+
+		// a slave that restarts learns the committed operations from its log
+		KeyServer<String, String> restarted = new KeyServer<String, String>(10);
+		TPCLog<String, String> log = new TPCLog<String, String>(logPath, restarted);
+		log.rebuildKeyServer();
+		TPCMasterHandler<String, String> handler = new TPCMasterHandler<String, String>(restarted, 4);
+		handler.setTPCLog(log);
+		server = WireProtocolTest.startServer(handler, 0);
+		assertEquals("ack", send(server, put).getMsgType());
+		assertEquals("ack", send(server, delete).getMsgType());
+		try {
+			restarted.get("key1");
+			fail("a resent put was applied again");
+		} catch (KVException e) {
+			assertEquals("Does not exist", e.getMsg().getMessage());
+		}
+
+		server.server.close();
+		new File(logPath).delete();
+	}
+
+	// tests that prepares on different keys are both voted ready
+	@Test
+	public void testConcurrentPrepares() throws Exception {
+		KeyServer<String, String> keyServer = new KeyServer<String, String>(10);
+		String logPath = "logPath" + Math.random();
+		SocketServer server = startSlave(keyServer, logPath);
+
+		TPCMessage reply = send(server, new TPCMessage("putreq", TPCMessage.encodeObject("key1"), 
+				TPCMessage.encodeObject("value1"), "1"));
+		assertEquals("ready", reply.getMsgType());
+		reply = send(server, new TPCMessage("putreq", TPCMessage.encodeObject("key2"), 
+				TPCMessage.encodeObject("value2"), "2"));
+		assertEquals("ready", reply.getMsgType());
+		assertEquals("2", reply.getTpcOpId());
+
+		server.server.close();
+		new File(logPath).delete();
+	}
+
+	// tests that a prepare on a key held by another prepared operation is voted abort
+	@Test
+	public void testKeyConflict() throws Exception {
+		KeyServer<String, String> keyServer = new KeyServer<String, String>(10);
+		String logPath = "logPath" + Math.random();
+		SocketServer server = startSlave(keyServer, logPath);
+
+		TPCMessage reply = send(server, new TPCMessage("putreq", TPCMessage.encodeObject("key1"), 
+				TPCMessage.encodeObject("value1"), "1"));
+		assertEquals("ready", reply.getMsgType());
+		reply = send(server, new TPCMessage("putreq", TPCMessage.encodeObject("key1"), 
+				TPCMessage.encodeObject("value2"), "2"));
+		assertEquals("abort", reply.getMsgType());
+		assertEquals("Key is locked by another 2PC operation", reply.getMessage());
+
+		// the key is free again once the first operation is decided
+		reply = send(server, new TPCMessage("abort", null, null, null, "1"));
+		assertEquals("ack", reply.getMsgType());
+		reply = send(server, new TPCMessage("putreq", TPCMessage.encodeObject("key1"), 
+				TPCMessage.encodeObject("value3"), "3"));
+		assertEquals("ready", reply.getMsgType());
+
+		server.server.close();
+		new File(logPath).delete();
+	}
+
+	// tests that the decision for one operation leaves another one prepared
+	@Test
+	public void testDecisionLeavesOthersPrepared() throws Exception {
+		KeyServer<String, String> keyServer = new KeyServer<String, String>(10);
+		String logPath = "logPath" + Math.random();
+		SocketServer server = startSlave(keyServer, logPath);
+
+		assertEquals("ready", send(server, new TPCMessage("putreq", TPCMessage.encodeObject("key1"), 
+				TPCMessage.encodeObject("value1"), "1")).getMsgType());
+		assertEquals("ready", send(server, new TPCMessage("putreq", TPCMessage.encodeObject("key2"), 
+				TPCMessage.encodeObject("value2"), "2")).getMsgType());
+
+		assertEquals("ack", send(server, new TPCMessage("commit", null, null, null, "1")).getMsgType());
+		assertEquals("value1", keyServer.get("key1"));
+		try {
+			keyServer.get("key2");
+			fail("an operation was applied before its decision");
+		} catch (KVException e) {
+			assertEquals("Does not exist", e.getMsg().getMessage());
+		}
+		// operation 2 still holds its key
+		TPCMessage reply = send(server, new TPCMessage("putreq", TPCMessage.encodeObject("key2"), 
+				TPCMessage.encodeObject("value3"), "3"));
+		assertEquals("abort", reply.getMsgType());
+		assertEquals("Key is locked by another 2PC operation", reply.getMessage());
+
+		assertEquals("ack", send(server, new TPCMessage("commit", null, null, null, "2")).getMsgType());
+		assertEquals("value2", keyServer.get("key2"));
+
+		server.server.close();
+		new File(logPath).delete();
+	}
+}
@@ -31,38 +31,19 @@ package edu.berkeley.cs162;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.PrintWriter;
 import java.io.Serializable;
-import java.io.StringWriter;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.xml.bind.DatatypeConverter;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
-import org.xml.sax.SAXException;
 
 
 /**
@@ -73,6 +54,14 @@ import org.xml.sax.SAXException;
 public class TPCMessage extends KVMessage implements Serializable {
 	private static final long serialVersionUID = 6473128480951955693L;
 
+	// Message field of a putreq or delreq that carries its own commit decision,
+	// sent when the receiving SlaveServer is the only participant
+	public static final String ONE_PHASE = "onePhase";
+
+	// Message type of a request carrying several putreqs and delreqs that are 
+	// applied together; its value field holds them, see encodeBatch()
+	public static final String MULTI_REQ = "multireq";
+
 	private String msgType = null;
 	private String key = null;
 	private String value = null;
@@ -81,9 +70,6 @@ public class TPCMessage extends KVMessage implements Serializable {
 	private String message = null;
 	private String tpcOpId = null;
 
-	// added by luke
-	Text text;
-
 	/**
 	 *  converts a KVMessage to a TPCMessage
 	 * @param KVMessage inputMessage
@@ -221,76 +207,20 @@ public class TPCMessage extends KVMessage implements Serializable {
 		return (value == null| value.length() == 0 | value.isEmpty());
 	}
 
-	/* Hack for ensuring XML libraries does not close input stream by default.
-	 * Solution from http://weblogs.java.net/blog/kohsuke/archive/2005/07/socket_xml_pitf.html */
-	private class NoCloseInputStream extends FilterInputStream {
-		public NoCloseInputStream(InputStream in) {
-			super(in);
-		}
-
-		public void close() {} // ignore close
-	}
-
-	private static String getTagValue(String sTag, Element eElement) {
-		NodeList nlList = eElement.getElementsByTagName(sTag).item(0).getChildNodes();
-
-		Node nValue = (Node) nlList.item(0);
-
-		return nValue.getNodeValue();
-	}
-
-	public String getElementsTag (String tag, Element x){
-		NodeList nodeList = x.getElementsByTagName(tag);
-		if (nodeList.getLength() != 0){ 
-			return getTagValue(tag, x);
-		} else {
-			return null;
-		}
-	}
-
 	/**
-	 * Sites used:
-	 * http://www.developerfusion.com/code/2064/a-simple-way-to-read-an-xml-file-in-java/
-	 * http://www.mkyong.com/java/how-to-read-xml-file-in-java-dom-parser/
+	 * Parses a message off the stream, in either wire format
 	 * @param input
 	 */	
 	public TPCMessage(InputStream input) throws KVException, SocketTimeoutException{
-		DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder docBuilder;
-		try {
-			docBuilder = docBuilderFactory.newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
-			throw new KVException(new KVMessage("Unknown Error: Invalid parser config"));
-		}
-		Document doc = null;
-		try {
-			doc = docBuilder.parse(new NoCloseInputStream(input));
-		} catch (SocketTimeoutException e){
-			throw e;
-		} catch (SAXException e) {
-			throw new KVException(new KVMessage("XML Error: Received unparseable message"));
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new KVException(new KVMessage("XML Error: Received unparseable message"));
-		}
-
-		doc.getDocumentElement().normalize();
-
-		// messageList should be a NodeList with only ONE Node
-		NodeList typeList = doc.getElementsByTagName("KVMessage");
-
-		Node typeNode = typeList.item(0);
-		Element typeElement = (Element) typeNode;
-
-		msgType = typeElement.getAttribute("type");
-
-		key = getElementsTag("Key", typeElement);
-
-		value = getElementsTag("Value", typeElement);
-
-		message = getElementsTag("Message", typeElement);
+		this(WireProtocol.read(input));
+	}
 
-		tpcOpId = getElementsTag("TPCOpId", typeElement);
+	TPCMessage(MessageFields fields) throws KVException {
+		msgType = fields.msgType;
+		key = fields.key;
+		value = fields.value;
+		message = fields.message;
+		tpcOpId = fields.tpcOpId;
 
 		if (msgType == "putreq" && value == null) throw new KVException (new KVMessage("XML Error: Received unparseable message"));
 	}
@@ -300,97 +230,7 @@ public class TPCMessage extends KVMessage implements Serializable {
 	 * @return the XML String
 	 */
 	public String toXML() throws KVException{
-		String rtn = null;
-		/////////////////////////////
-		//Creating an empty XML Document
-		//We need a Document
-		DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
-		DocumentBuilder docBuilder = null;
-		try {
-			docBuilder = dbfac.newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
-			e.printStackTrace();
-			throw new KVException(new KVMessage("Unknown Error: Error occured duringf XML creation"));
-		}
-		Document doc = docBuilder.newDocument();
-
-		/////////////////////////////
-		//Creating the XML tree
-		//create the root element and add it to the document
-		Element root = doc.createElement("KVMessage");
-		doc.appendChild(root);
-		root.setAttribute("type", msgType);
-
-
-		if (key != null){
-			//create child element, add an attribute, and add to root
-			Element keyElement = doc.createElement("Key");
-			root.appendChild(keyElement);
-			//add a text element to the child
-			text = doc.createTextNode(key);
-			keyElement.appendChild(text);
-		}
-
-		if (value != null){
-			//create child element, add an attribute, and add to root
-			Element valueElement = doc.createElement("Value");
-			root.appendChild(valueElement);
-
-			//add a text element to the child
-			text = doc.createTextNode(value);
-			valueElement.appendChild(text);
-		}
-
-		if (message != null){
-			//create child element, add an attribute, and add to root
-			Element valueElement = doc.createElement("Message");
-			root.appendChild(valueElement);
-
-			//add a text element to the child
-			text = doc.createTextNode(message);
-			valueElement.appendChild(text);
-		}
-
-		if (tpcOpId != null){
-			//create child element, add an attribute, and add to root
-			Element valueElement = doc.createElement("TPCOpId");
-			root.appendChild(valueElement);
-
-			//add a text element to the child
-			text = doc.createTextNode(tpcOpId);
-			valueElement.appendChild(text);
-		}
-		/////////////////////////////
-		//Output the XML
-		//set up a transformer
-		TransformerFactory transfac = TransformerFactory.newInstance();
-		Transformer trans = null;
-		try {
-			trans = transfac.newTransformer();
-		} catch (TransformerConfigurationException e) {
-			e.printStackTrace();
-			throw new KVException(new KVMessage("Unknown Error: Error occured duringf XML creation"));
-		}
-		trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-		trans.setOutputProperty(OutputKeys.INDENT, "yes");
-
-		//create string from xml tree
-		StringWriter sw = new StringWriter();
-		StreamResult result = new StreamResult(sw);
-		DOMSource source = new DOMSource(doc);
-		try {
-			trans.transform(source, result);
-		} catch (TransformerException e) {
-			e.printStackTrace();
-			throw new KVException(new KVMessage("Unknown Error: Error occured duringf XML creation"));
-		}
-		String xmlString = sw.toString();
-		rtn = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xmlString;
-
-		//print xml
-		//System.out.println("Here's the xml:\n\n" + rtn);
-		//KVMessage.delay();
-		return rtn;
+		return XMLCodec.write(msgType, key, value, message, tpcOpId);
 	}
 
 	/**
@@ -435,104 +275,142 @@ public class TPCMessage extends KVMessage implements Serializable {
 		return obj;
 	}
 	
-	public static TPCMessage sendReceive(Socket connection, TPCMessage message) throws SocketTimeoutException {
-		String xmlFile = null;
-		
+	/**
+	 * Encode the putreqs and delreqs of a multireq or txnreq as its value 
+	 * field. Only their types, keys and values are kept.
+	 * @param mutations
+	 * @return
+	 */
+	public static String encodeBatch(List<? extends KVMessage> mutations) throws KVException {
+		ArrayList<String[]> fields = new ArrayList<String[]>(mutations.size());
+		for (KVMessage mutation : mutations) {
+			fields.add(new String[] { mutation.getMsgType(), mutation.getKey(), mutation.getValue() });
+		}
+		return encodeObject(fields);
+	}
+
+	/**
+	 * Encode the requests of a multireq that a SlaveServer refused as the 
+	 * value field of its abort
+	 * @param refused the reason each request was refused, by its position in
+	 * the multireq
+	 * @return
+	 */
+	public static String encodeRefused(Map<Integer, String> refused) throws KVException {
+		return encodeObject(new TreeMap<Integer, String>(refused));
+	}
+
+	/**
+	 * Decode the value field of an abort
+	 * @param value
+	 * @return the reason each refused request was refused, by its position in
+	 * the multireq; empty if the abort did not name any, i.e. the whole 
+	 * operation was refused
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<Integer, String> decodeRefused(String value) {
+		if (value == null) {
+			return new TreeMap<Integer, String>();
+		}
 		try {
-			xmlFile = message.toXML();
+			return (TreeMap<Integer, String>) decodeObject(value);
 		} catch (KVException e) {
-			// this should not happen
-			TPCMaster.exit();
+			return new TreeMap<Integer, String>();
+		} catch (ClassCastException e) {
+			return new TreeMap<Integer, String>();
 		}
-		
-		PrintWriter out = null;
-		InputStream in = null;
-		
+	}
+
+	/**
+	 * Decode the value field of a multireq or txnreq
+	 * @param value
+	 * @param tpcOpId op id of the 2PC operation, given to each of its requests
+	 * @return the putreqs and delreqs, in the order they are applied
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<TPCMessage> decodeBatch(String value, String tpcOpId) throws KVException {
+		if (value == null) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Unable to decode object"));
+		}
+		List<TPCMessage> mutations = new ArrayList<TPCMessage>();
 		try {
-			out = new PrintWriter(connection.getOutputStream(),true);
-		} catch (IOException e) {
-			// this should not happen
-			e.printStackTrace();
-			TPCMaster.exit();
+			for (String[] fields : (ArrayList<String[]>) decodeObject(value)) {
+				if ("putreq".equals(fields[0]) && fields[2] != null) {
+					mutations.add(new TPCMessage("putreq", fields[1], fields[2], tpcOpId));
+				} else if ("delreq".equals(fields[0])) {
+					mutations.add(new TPCMessage("delreq", fields[1], tpcOpId, true));
+				} else {
+					throw new KVException(new KVMessage("resp", "Unknown Error: Unable to decode object"));
+				}
+			}
+		} catch (ClassCastException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Unable to decode object"));
 		}
-		out.println(xmlFile);
-		
+		return mutations;
+	}
+
+	/**
+	 * Sends a message and waits for the reply. The message is never sent twice
+	 * once it may have reached the server: if the connection breaks, this 
+	 * reports a timeout, and the caller decides whether to send it again.
+	 * @param connection
+	 * @param message
+	 * @return the reply
+	 * @throws SocketTimeoutException if no reply came, or the connection broke
+	 */
+	public static TPCMessage sendReceive(Socket connection, TPCMessage message) throws SocketTimeoutException {
+		MessageFields request = MessageFields.of(message);
 		try {
-			connection.shutdownOutput();
+			WireProtocol.send(connection, request);
 		} catch (IOException e) {
-			// this should not happen
-			e.printStackTrace();
-			TPCMaster.exit();
+			WireProtocol.closeQuietly(connection);
+			throw new SocketTimeoutException("Could not send the request: " + e.getMessage());
 		}
 		
 		try {
-			in = connection.getInputStream();
-			message = new TPCMessage(in);
-			in.close();
+			message = new TPCMessage(WireProtocol.receiveReply(connection, request));
 		} catch (SocketTimeoutException e) {
+			// a late reply must not be read as the answer to the next request
+			WireProtocol.closeQuietly(connection);
 			throw e;
 		} catch (IOException e) {
-			// this should not happen
-			e.printStackTrace();
-			TPCMaster.exit();
+			// the server may or may not have acted on the request
+			WireProtocol.closeQuietly(connection);
+			throw new SocketTimeoutException("Lost the reply: " + e.getMessage());
 		} catch (KVException e) {
 			// this should not happen
 			e.printStackTrace();
 			TPCMaster.exit();
 		}
 
-		out.close();
-		try {
-			connection.close();
-		} catch (IOException e) {
-			// this should not happen
-			e.printStackTrace();
-			TPCMaster.exit();
-		}
+		WireProtocol.recycle(connection);
 		return message;
 	}
 
-	/** utility function that sends a TPCMessage across a socket
+	/** utility function that sends a TPCMessage reply across a socket, and then 
+	 * hands the connection back to its SocketServer (which closes it unless 
+	 * it can carry another request)
 	 * @param socket
 	 * @param message
 	 */
 	public static void sendMessage(Socket connection, TPCMessage message){
-		String xmlFile = null;
-		try {
-			xmlFile = message.toXML();
-		} catch (KVException e) {
-			// should NOT ever throw exception here
-			e.printStackTrace();
-		}
-		PrintWriter out = null;
-		try {
-			out = new PrintWriter(connection.getOutputStream(),true);
-		} catch (IOException e) {
-			// should NOT ever throw exception here
-			e.printStackTrace();
-		}
-		out.println(xmlFile);
-		
 		try {
-			connection.shutdownOutput();
+			WireProtocol.send(connection, MessageFields.of(message));
 		} catch (IOException e) {
 			// should NOT ever throw exception here
 			e.printStackTrace();
 		}
-		//out.close();
+		SocketServer.release(connection);
 	}
 	
 	/** utility function that receives a TPCMessage across a socket
 	 * @param socket
 	 */
 	public static TPCMessage receiveMessage(Socket connection) throws SocketTimeoutException{
-		InputStream in = null;
 		TPCMessage rtn = null;
 		
 		try {
-			in = connection.getInputStream();
-			rtn = new TPCMessage(in);
-			//in.close();
+			rtn = new TPCMessage(WireProtocol.receive(connection));
 		} catch (SocketTimeoutException e){
 			throw e;
 		} catch (IOException e) {
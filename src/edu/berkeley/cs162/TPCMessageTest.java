@@ -1,12 +1,15 @@
 package edu.berkeley.cs162;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.naming.directory.BasicAttribute;
 
@@ -461,4 +464,45 @@ public class TPCMessageTest {
 		assertEquals(x, xml);
 	} 	
 
+	@Test //tests that a message survives a trip through XML, markup characters included
+	public void TestXMLRoundTrip() {
+		TPCMessage test = new TPCMessage("ready", "<key & \"quoted\">", "a\nb > c", "putreq", "7");
+		TPCMessage parsed = null;
+		try {
+			parsed = new TPCMessage(new ByteArrayInputStream(test.toXML().getBytes("UTF-8")));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+		assertTrue(test.equals(parsed));
+		
+		try {
+			new TPCMessage(new ByteArrayInputStream("<KVMessage type=\"resp\"><Key>".getBytes("UTF-8")));
+			fail();
+		} catch (KVException e) {
+			assertEquals("XML Error: Received unparseable message", e.getMsg().getMessage());
+		} catch (Exception e) {
+			fail();
+		}
+	}
+
+	@Test //tests that the requests of a txnreq come back in order, with the op id of the 2PC operation
+	public void TestBatchRoundTrip() throws KVException {
+		List<KVMessage> batch = new ArrayList<KVMessage>();
+		batch.add(new KVMessage("putreq", "key1", "value1"));
+		batch.add(new KVMessage("delreq", "key2"));
+		List<TPCMessage> decoded = TPCMessage.decodeBatch(TPCMessage.encodeBatch(batch), "9");
+		assertEquals(2, decoded.size());
+		assertTrue(decoded.get(0).equals(new TPCMessage("putreq", "key1", "value1", "9")));
+		assertTrue(decoded.get(1).equals(new TPCMessage("delreq", "key2", "9", true)));
+		
+		List<KVMessage> bad = new ArrayList<KVMessage>();
+		bad.add(new KVMessage("getreq", "key1"));
+		try {
+			TPCMessage.decodeBatch(TPCMessage.encodeBatch(bad), "9");
+			fail();
+		} catch (KVException e) {
+			//only puts and deletes can be batched
+		}
+	}
 }
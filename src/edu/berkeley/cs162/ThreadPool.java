@@ -29,42 +29,160 @@
  */
 package edu.berkeley.cs162;
 
-import java.util.LinkedList;
-
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * A fixed set of worker threads taking tasks from a blocking queue. The 
+ * queue may be bounded, and the RejectionPolicy says what addToQueue() does 
+ * when it is full, so that an overloaded server slows its callers down or 
+ * turns requests away instead of queueing without limit.
+ *
+ * With THREAD_PER_TASK there is no queue; the bound then limits the number 
+ * of tasks running at once.
+ *
+ * With Scheduling.WORK_STEALING the workers do not share one queue either:
+ * each has a deque of its own, a task added by a worker goes on that 
+ * worker's deque, tasks added from outside are spread over several queues,
+ * and a worker that runs out steals from the others (this is what 
+ * ForkJoinPool does, so the mode is built on one). Handing off a task then 
+ * does not contend on a single lock however many workers there are. The 
+ * bound limits the tasks queued or running, as with THREAD_PER_TASK.
+ */
 public class ThreadPool {
+	/**
+	 * Pool size that runs every task on a thread of its own instead of 
+	 * queueing it (a virtual thread where the JVM has them, see {@link Threads})
+	 */
+	public static final int THREAD_PER_TASK = -1;
+
+	/**
+	 * Capacity of a pool that never turns tasks away
+	 */
+	public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+	/**
+	 * Message of the RejectedExecutionException thrown by a full FAIL pool;
+	 * handlers send it back as the error of the request they could not queue
+	 */
+	public static final String BUSY = "Server Error: Server busy, try again later";
+
+	/**
+	 * What addToQueue() does when the pool is full
+	 */
+	public enum RejectionPolicy {
+		// run the task on the calling thread
+		CALLER_RUNS,
+		// wait until there is room
+		BLOCK,
+		// throw a RejectedExecutionException with message BUSY
+		FAIL
+	}
+
+	/**
+	 * How the workers of a fixed-size pool get their tasks
+	 */
+	public enum Scheduling {
+		// one queue shared by all workers
+		SHARED_QUEUE,
+		// a deque per worker, with idle workers stealing from busy ones
+		WORK_STEALING
+	}
+
 	/**
 	 * Set of threads in the threadpool
 	 */
 	protected Thread threads[];
-	protected LinkedList<Runnable> tasks;
+	protected BlockingQueue<Runnable> tasks;
 	protected int size;
 
+	private final int capacity;
+	private final RejectionPolicy policy;
+	// with WORK_STEALING, the pool that runs the tasks
+	private final ForkJoinPool stealing;
+	// with THREAD_PER_TASK or WORK_STEALING and a bound, one permit per task
+	private final Semaphore slots;
+	// tasks handed to their own thread or to the ForkJoinPool that have not 
+	// finished, guarded by this
+	private int running = 0;
+	private volatile boolean shutdown = false;
+	// workers blocked waiting for a task, guarded by itself; shutdown() 
+	// interrupts them, and no other worker
+	private final Set<Thread> idleWorkers = new HashSet<Thread>();
+
 	/**
 	 * Initialize the number of threads required in the threadpool. 
 	 * 
-	 * @param size  How many threads in the thread pool.
+	 * @param size  How many threads in the thread pool, or THREAD_PER_TASK.
 	 */
 	public ThreadPool(int size)
 	{
-		// implement me
-		this.size = size;
-		tasks = new LinkedList<Runnable>();
-		threads = new Thread[size];
-		for (int i=0;i<size;i++) {
-			threads[i] = new WorkerThread(this);
-			threads[i].start();
-		}
+		this(size, UNBOUNDED, RejectionPolicy.BLOCK);
+	}
+
+	/**
+	 * @param size how many threads in the thread pool, or THREAD_PER_TASK
+	 * @param capacity how many tasks may wait in the queue (or run at once, 
+	 * with THREAD_PER_TASK), or UNBOUNDED
+	 * @param policy what to do with a task when the pool is full
+	 */
+	public ThreadPool(int size, int capacity, RejectionPolicy policy)
+	{
+		this(size, capacity, policy, Scheduling.SHARED_QUEUE, true);
+	}
+
+	/**
+	 * @param size how many threads in the thread pool (THREAD_PER_TASK only 
+	 * goes with SHARED_QUEUE, where it means there is no queue at all)
+	 * @param capacity how many tasks may be queued or running, or UNBOUNDED
+	 * @param policy what to do with a task when the pool is full
+	 * @param scheduling how the workers get their tasks
+	 */
+	public ThreadPool(int size, int capacity, RejectionPolicy policy, Scheduling scheduling)
+	{
+		this(size, capacity, policy, scheduling, true);
 	}
 	
 	// this constructor allows for a delayed start
 	public ThreadPool(int size, boolean start) {
+		this(size, UNBOUNDED, RejectionPolicy.BLOCK, Scheduling.SHARED_QUEUE, false);
+	}
+
+	private ThreadPool(int size, int capacity, RejectionPolicy policy, Scheduling scheduling, boolean start) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("ThreadPool needs room for at least one task");
+		}
+		boolean stealing = (scheduling == Scheduling.WORK_STEALING);
+		if (stealing && size <= 0) {
+			throw new IllegalArgumentException("A work-stealing ThreadPool needs at least one thread");
+		}
+		boolean queued = (size != THREAD_PER_TASK && !stealing);
 		this.size = size;
-		tasks = new LinkedList<Runnable>();
+		this.capacity = capacity;
+		this.policy = policy;
+		tasks = new LinkedBlockingQueue<Runnable>(queued ? capacity : UNBOUNDED);
+		slots = (!queued && capacity != UNBOUNDED) ? new Semaphore(capacity) : null;
+		// async mode: each worker takes its own tasks in the order they came
+		this.stealing = stealing ? new ForkJoinPool(size, 
+				ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true) : null;
+		if (start) {
+			startPool();
+		}
 	}
 	
 	// call to start threadpool on a delayed start - only to be used with 'delayed start' constructor
 	public void startPool() {
+		if (size == THREAD_PER_TASK || stealing != null) {
+			// no threads of our own
+			threads = new Thread[0];
+			return;
+		}
 		threads = new Thread[size];
 		for (int i=0;i<size;i++) {
 			threads[i] = new WorkerThread(this);
@@ -76,13 +194,222 @@ public class ThreadPool {
 	 * Add a job to the queue of tasks that has to be executed. As soon as a thread is available, 
 	 * it will retrieve tasks from this queue and start processing.
 	 * @param r job that has to be executed asynchronously 
-	 * @throws InterruptedException 
+	 * @throws InterruptedException if the BLOCK policy was interrupted while waiting for room
+	 * @throws RejectedExecutionException if the pool is full under the FAIL 
+	 * policy (with message BUSY), or shut down
 	 */
-	public synchronized void addToQueue(Runnable r) throws InterruptedException
+	public void addToQueue(Runnable r) throws InterruptedException
 	{
-		// implement me
-		tasks.add(r);
-		this.notify();
+		if (shutdown) {
+			throw new RejectedExecutionException("ThreadPool is shut down");
+		}
+		if (size == THREAD_PER_TASK || stealing != null) {
+			startTask(r);
+			return;
+		}
+		if (!tasks.offer(r)) {
+			switch (policy) {
+			case CALLER_RUNS:
+				r.run();
+				return;
+			case BLOCK:
+				tasks.put(r);
+				break;
+			default:
+				throw new RejectedExecutionException(BUSY);
+			}
+		}
+		if (shutdown && tasks.remove(r)) {
+			// the workers may already have seen the queue empty and quit
+			throw new RejectedExecutionException("ThreadPool is shut down");
+		}
+	}
+
+	/**
+	 * Adds a job only if the pool has room for it right now, whatever its 
+	 * RejectionPolicy; for a caller that must not wait on the pool
+	 * @param r job that has to be executed asynchronously
+	 * @return false if the job was not added
+	 */
+	public boolean offer(Runnable r) {
+		if (shutdown) {
+			return false;
+		}
+		if (size == THREAD_PER_TASK || stealing != null) {
+			if (slots != null && !slots.tryAcquire()) {
+				return false;
+			}
+			try {
+				launch(r);
+			} catch (RuntimeException e) {
+				return false;
+			}
+			return true;
+		}
+		if (!tasks.offer(r)) {
+			return false;
+		}
+		// the workers may already have seen the queue empty and quit
+		return !(shutdown && tasks.remove(r));
+	}
+
+	private void startTask(Runnable r) throws InterruptedException {
+		if (slots != null && !slots.tryAcquire()) {
+			switch (policy) {
+			case CALLER_RUNS:
+				r.run();
+				return;
+			case BLOCK:
+				slots.acquire();
+				break;
+			default:
+				throw new RejectedExecutionException(BUSY);
+			}
+		}
+		launch(r);
+	}
+
+	/**
+	 * Hands a task that holds a slot to its own thread or to the ForkJoinPool
+	 */
+	private void launch(Runnable r) {
+		synchronized (this) {
+			running++;
+		}
+		try {
+			if (stealing != null) {
+				// from one of its own workers, this goes on that worker's deque
+				stealing.execute(new taskRunnable(r));
+			} else {
+				Threads.start(new taskRunnable(r), "task");
+			}
+		} catch (RuntimeException e) {
+			finishTask();
+			throw e;
+		}
+	}
+
+	private void finishTask() {
+		if (slots != null) {
+			slots.release();
+		}
+		synchronized (this) {
+			running--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Runs one task that is not in the shared queue, and gives back its slot
+	 */
+	private class taskRunnable implements Runnable {
+		private final Runnable task;
+
+		public taskRunnable(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				finishTask();
+			}
+		}
+	}
+
+	/**
+	 * Takes the next task for a worker, waiting for one
+	 * @return null once the pool is shut down and the queue is empty
+	 */
+	Runnable nextTask() {
+		Thread worker = Thread.currentThread();
+		while (true) {
+			synchronized (idleWorkers) {
+				if (shutdown) {
+					// nothing new can arrive, so drain without blocking
+					return tasks.poll();
+				}
+				idleWorkers.add(worker);
+			}
+			Runnable r = null;
+			try {
+				r = tasks.take();
+			} catch (InterruptedException e) {
+				// woken by shutdown(), so look at the queue again
+			}
+			synchronized (idleWorkers) {
+				idleWorkers.remove(worker);
+				// an interrupt from shutdown() that came after take() 
+				// returned must not reach the task
+				Thread.interrupted();
+			}
+			if (r != null) {
+				return r;
+			}
+		}
+	}
+
+	/**
+	 * Stops taking new tasks. Tasks already queued still run.
+	 */
+	public void shutdown() {
+		synchronized (idleWorkers) {
+			shutdown = true;
+			for (Thread worker : idleWorkers) {
+				worker.interrupt();
+			}
+		}
+		if (stealing != null) {
+			stealing.shutdown();
+		}
+	}
+
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Waits for all tasks to finish after shutdown()
+	 * @param timeout
+	 * @param unit
+	 * @return false if the timeout passed first
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if (threads != null) {
+			for (Thread thread : threads) {
+				long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (left <= 0) {
+					return false;
+				}
+				thread.join(left);
+				if (thread.isAlive()) {
+					return false;
+				}
+			}
+		}
+		synchronized (this) {
+			while (running > 0) {
+				long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (left <= 0) {
+					return false;
+				}
+				wait(left);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the bound given at construction, or UNBOUNDED
+	 */
+	public int getCapacity() {
+		return capacity;
 	}
 }
 
@@ -94,13 +421,10 @@ class WorkerThread extends Thread {
 	 * @param o the thread pool 
 	 */
 	ThreadPool pool;
-	Runnable r;
 	
 	WorkerThread(ThreadPool o)
 	{
-		// implement me
 		pool = o;
-		
 	}
 
 	/**
@@ -108,19 +432,13 @@ class WorkerThread extends Thread {
 	 */
 	public void run()
 	{
-		// implement me
-		while (true){
-			if (!pool.tasks.isEmpty()) {
-				r = pool.tasks.poll();
+		Runnable r;
+		while ((r = pool.nextTask()) != null) {
+			try {
 				r.run();
-			} else {
-				try {
-					synchronized(pool){
-					pool.wait();
-					}
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+			} catch (RuntimeException e) {
+				// a failed task must not take the worker down with it
+				e.printStackTrace();
 			}
 		}
 	}
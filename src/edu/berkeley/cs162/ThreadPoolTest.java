@@ -1,5 +1,10 @@
 package edu.berkeley.cs162;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -44,4 +49,244 @@ public class ThreadPoolTest {
 		assertTrue(testPool.tasks.contains(testThread));
 	}
 
+	// tests that every task gets a thread of its own, so blocked tasks do not hold up others
+	@Test
+	public void testThreadPerTask() throws InterruptedException {
+		ThreadPool testPool = new ThreadPool(ThreadPool.THREAD_PER_TASK);
+		assertEquals(testPool.threads.length, 0);
+		int size = 100;
+		final CountDownLatch started = new CountDownLatch(size);
+		final CountDownLatch finished = new CountDownLatch(size);
+		for (int i = 0; i < size; i++) {
+			testPool.addToQueue(new Runnable() {
+				public void run() {
+					started.countDown();
+					try {
+						// only returns once all the tasks are running at once
+						started.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					finished.countDown();
+				}
+			});
+		}
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+		assertEquals(testPool.tasks.size(), 0);
+	}
+
+	// tests that every queued task runs exactly once before the pool terminates
+	@Test
+	public void testAllTasksRun() throws InterruptedException {
+		ThreadPool testPool = new ThreadPool(4);
+		final AtomicInteger count = new AtomicInteger();
+		int size = 10000;
+		for (int i = 0; i < size; i++) {
+			testPool.addToQueue(new Runnable() {
+				public void run() {
+					count.incrementAndGet();
+				}
+			});
+		}
+		testPool.shutdown();
+		assertTrue(testPool.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(size, count.get());
+	}
+
+	// tests that a full pool with the FAIL policy turns tasks away
+	@Test
+	public void testFailPolicy() throws InterruptedException {
+		ThreadPool testPool = new ThreadPool(0, 2, ThreadPool.RejectionPolicy.FAIL);
+		testPool.addToQueue(new Thread());
+		testPool.addToQueue(new Thread());
+		try {
+			testPool.addToQueue(new Thread());
+			fail("a full pool took a task");
+		} catch (RejectedExecutionException e) {
+			assertEquals(ThreadPool.BUSY, e.getMessage());
+		}
+		assertEquals(testPool.tasks.size(), 2);
+	}
+
+	// tests that a full pool with the CALLER_RUNS policy runs tasks on the caller
+	@Test
+	public void testCallerRunsPolicy() throws InterruptedException {
+		ThreadPool testPool = new ThreadPool(0, 1, ThreadPool.RejectionPolicy.CALLER_RUNS);
+		final Thread caller = Thread.currentThread();
+		final AtomicInteger ranOnCaller = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				if (Thread.currentThread() == caller) {
+					ranOnCaller.incrementAndGet();
+				}
+			}
+		};
+		testPool.addToQueue(task);
+		testPool.addToQueue(task);
+		assertEquals(1, ranOnCaller.get());
+		assertEquals(testPool.tasks.size(), 1);
+	}
+
+	// tests that a full pool with the BLOCK policy waits for room
+	@Test
+	public void testBlockPolicy() throws InterruptedException {
+		final ThreadPool testPool = new ThreadPool(1, 1, ThreadPool.RejectionPolicy.BLOCK);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger count = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				count.incrementAndGet();
+			}
+		};
+		// one task runs and one waits in the queue, so the third blocks
+		testPool.addToQueue(task);
+		Thread.sleep(100);
+		testPool.addToQueue(task);
+		final Runnable third = task;
+		Thread adder = new Thread() {
+			public void run() {
+				try {
+					testPool.addToQueue(third);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		adder.start();
+		adder.join(200);
+		assertTrue(adder.isAlive());
+		release.countDown();
+		adder.join(1000);
+		assertFalse(adder.isAlive());
+		testPool.shutdown();
+		assertTrue(testPool.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(3, count.get());
+	}
+
+	// tests that the bound of a THREAD_PER_TASK pool limits the tasks running at once
+	@Test
+	public void testThreadPerTaskBound() throws InterruptedException {
+		ThreadPool testPool = new ThreadPool(ThreadPool.THREAD_PER_TASK, 1, ThreadPool.RejectionPolicy.FAIL);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		testPool.addToQueue(task);
+		try {
+			testPool.addToQueue(task);
+			fail("a full pool took a task");
+		} catch (RejectedExecutionException e) {
+			assertEquals(ThreadPool.BUSY, e.getMessage());
+		}
+		release.countDown();
+		testPool.shutdown();
+		assertTrue(testPool.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	// tests that a pool takes no tasks after shutdown
+	@Test(expected = RejectedExecutionException.class)
+	public void testShutdown() throws InterruptedException {
+		ThreadPool testPool = new ThreadPool(1);
+		testPool.shutdown();
+		testPool.addToQueue(new Thread());
+	}
+
+	// tests that tasks added from inside a work-stealing pool all run
+	@Test
+	public void testWorkStealing() throws InterruptedException {
+		final ThreadPool testPool = new ThreadPool(4, ThreadPool.UNBOUNDED, 
+				ThreadPool.RejectionPolicy.BLOCK, ThreadPool.Scheduling.WORK_STEALING);
+		assertEquals(testPool.threads.length, 0);
+		final AtomicInteger count = new AtomicInteger();
+		final CountDownLatch finished = new CountDownLatch(1000);
+		for (int i = 0; i < 100; i++) {
+			testPool.addToQueue(new Runnable() {
+				public void run() {
+					// each task fans out to ten more from its worker
+					for (int j = 0; j < 10; j++) {
+						try {
+							testPool.addToQueue(new Runnable() {
+								public void run() {
+									count.incrementAndGet();
+									finished.countDown();
+								}
+							});
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			});
+		}
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+		testPool.shutdown();
+		assertTrue(testPool.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(1000, count.get());
+	}
+
+	// tests that the bound of a work-stealing pool counts queued and running tasks
+	@Test
+	public void testWorkStealingBound() throws InterruptedException {
+		ThreadPool testPool = new ThreadPool(1, 2, 
+				ThreadPool.RejectionPolicy.FAIL, ThreadPool.Scheduling.WORK_STEALING);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		testPool.addToQueue(task);
+		testPool.addToQueue(task);
+		try {
+			testPool.addToQueue(task);
+			fail("a full pool took a task");
+		} catch (RejectedExecutionException e) {
+			assertEquals(ThreadPool.BUSY, e.getMessage());
+		}
+		release.countDown();
+		testPool.shutdown();
+		assertTrue(testPool.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	// tests that offer() turns a task away instead of waiting, even under the BLOCK policy
+	@Test
+	public void testOffer() throws InterruptedException {
+		ThreadPool testPool = new ThreadPool(0, 1, ThreadPool.RejectionPolicy.BLOCK);
+		assertTrue(testPool.offer(new Thread()));
+		assertFalse(testPool.offer(new Thread()));
+		assertEquals(testPool.tasks.size(), 1);
+
+		ThreadPool perTask = new ThreadPool(ThreadPool.THREAD_PER_TASK, 1, ThreadPool.RejectionPolicy.BLOCK);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		assertTrue(perTask.offer(task));
+		assertFalse(perTask.offer(task));
+		release.countDown();
+		perTask.shutdown();
+		assertTrue(perTask.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
 }
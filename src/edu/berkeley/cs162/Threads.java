@@ -0,0 +1,84 @@
+/**
+ * Per-task threads, virtual where the JVM supports them
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts one thread per task. On a JVM with virtual threads (Java 21 and 
+ * later) these are virtual threads, which cost little while they block on a 
+ * socket, so blocking code can have thousands of requests in flight. Older 
+ * JVMs get ordinary threads. The code still builds for Java versions without
+ * virtual threads, so the API is looked up by reflection.
+ */
+final class Threads {
+	private static final ThreadFactory factory = createFactory();
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private Threads() {
+	}
+
+	private static ThreadFactory createFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			// no virtual threads here (or only as a preview feature)
+			return null;
+		}
+	}
+
+	/**
+	 * @return whether tasks run on virtual threads
+	 */
+	static boolean isVirtual() {
+		return factory != null;
+	}
+
+	/**
+	 * Runs a task on a new thread
+	 * @param task
+	 * @param name prefix for the thread's name
+	 * @return the started thread
+	 */
+	static Thread start(Runnable task, String name) {
+		Thread thread;
+		if (factory != null) {
+			thread = factory.newThread(task);
+		} else {
+			thread = new Thread(task);
+		}
+		thread.setName(name + "-" + count.incrementAndGet());
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,414 @@
+/**
+ * Chooses between the XML and the binary wire format
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends and receives messages in either wire format. 
+ *
+ * A receiver tells the formats apart by the first byte (see 
+ * {@link BinaryCodec#MAGIC}) and answers in the format it was asked in. The
+ * side that opens a connection sends binary first; a server that only knows
+ * XML cannot parse that and answers with an XML error (or nothing at all), 
+ * in which case the request is sent again as XML on a new connection and the 
+ * server is remembered as XML-only. An XML-only server never executed the 
+ * binary request, so resending it is safe.
+ *
+ * Binary frames carry their own length, so a binary connection stays open 
+ * for further requests: clients hand it back with {@link #recycle(Socket)}
+ * to the {@link ConnectionPool} it came from, and servers wait for the next
+ * request in {@link SocketServer#release(Socket)}. An XML message
+ * still ends with shutdownOutput(), so XML connections carry one exchange.
+ */
+final class WireProtocol {
+	/**
+	 * What we know about one socket
+	 */
+	private static class Connection {
+		// the format the socket speaks, once it has sent or received a message
+		volatile Boolean binary = null;
+		// first byte of the next message, if it was read while waiting for it
+		volatile int pushedBack = -1;
+		// the whole next message, if a selector already read it
+		volatile byte[] framed = null;
+		// the pool the socket was opened by, or null
+		volatile ConnectionPool pool = null;
+		// the socket was idle in its pool, so the server may have closed it
+		volatile boolean reused = false;
+		// writing the request to a reused socket failed
+		volatile boolean stale = false;
+		// a request was sent and its reply has not been read
+		volatile boolean awaitingReply = false;
+	}
+
+	private static final Map<Socket, Connection> connections = 
+			Collections.synchronizedMap(new WeakHashMap<Socket, Connection>());
+	// pools for connect(), by host:port
+	private static final ConcurrentHashMap<String, ConnectionPool> pools = 
+			new ConcurrentHashMap<String, ConnectionPool>();
+	// host:port of servers that did not understand a binary request
+	private static final Set<String> xmlOnlyPeers = 
+			Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private static volatile boolean binaryEnabled = true;
+
+	private WireProtocol() {
+	}
+
+	/**
+	 * @param enabled false to open every new connection in XML, e.g. when all
+	 * the peers are known to be older servers
+	 */
+	static void setBinaryEnabled(boolean enabled) {
+		binaryEnabled = enabled;
+	}
+
+	private static Connection state(Socket connection) {
+		synchronized (connections) {
+			Connection state = connections.get(connection);
+			if (state == null) {
+				state = new Connection();
+				connections.put(connection, state);
+			}
+			return state;
+		}
+	}
+
+	/**
+	 * Opens a connection to a server, or reuses an idle one from the shared
+	 * pool for that server (which is not bounded)
+	 * @param host
+	 * @param port
+	 * @return a connected socket
+	 * @throws IOException
+	 */
+	static Socket connect(String host, int port) throws IOException {
+		String peerKey = host + ":" + port;
+		ConnectionPool pool = pools.get(peerKey);
+		if (pool == null) {
+			pools.putIfAbsent(peerKey, new ConnectionPool(host, port, 
+					ConnectionPool.UNBOUNDED, ConnectionPool.DEFAULT_MAX_IDLE));
+			pool = pools.get(peerKey);
+		}
+		return pool.borrow();
+	}
+
+	/**
+	 * Hands a client connection back once its reply has been read. Binary 
+	 * connections go back to the pool they came from; anything else is closed.
+	 * @param connection
+	 */
+	static void recycle(Socket connection) {
+		Connection state = connections.get(connection);
+		if (state == null || state.pool == null) {
+			closeQuietly(connection);
+		} else if (!Boolean.TRUE.equals(state.binary) || state.awaitingReply || connection.isClosed()) {
+			state.pool.discard(connection);
+		} else {
+			state.pool.giveBack(connection);
+		}
+	}
+
+	/**
+	 * Records the pool that opened a connection
+	 * @param connection
+	 * @param pool
+	 */
+	static void attach(Socket connection, ConnectionPool pool) {
+		state(connection).pool = pool;
+	}
+
+	/**
+	 * Records that a pooled connection is being used again
+	 * @param connection
+	 */
+	static void markReused(Socket connection) {
+		Connection state = state(connection);
+		state.reused = true;
+		state.stale = false;
+	}
+
+	/**
+	 * @param connection a server-side socket that has sent its reply
+	 * @return whether the client can send another request on it
+	 */
+	static boolean isReusable(Socket connection) {
+		Connection state = connections.get(connection);
+		return state != null && Boolean.TRUE.equals(state.binary) && !connection.isClosed()
+				&& !connection.isInputShutdown() && !connection.isOutputShutdown();
+	}
+
+	/**
+	 * Blocks until the next request starts to arrive on a kept-alive connection
+	 * @param connection
+	 * @return false if the client closed the connection instead
+	 * @throws IOException (SocketTimeoutException if the socket timeout passes first)
+	 */
+	static boolean awaitRequest(Socket connection) throws IOException {
+		int first = connection.getInputStream().read();
+		if (first < 0) {
+			return false;
+		}
+		state(connection).pushedBack = first;
+		return true;
+	}
+
+	/**
+	 * Hands over a request that was read in full before its handler ran, to
+	 * be returned by the next {@link #receive(Socket)}
+	 * @param connection
+	 * @param message the bytes of exactly one message
+	 */
+	static void setFramed(Socket connection, byte[] message) {
+		state(connection).framed = message;
+	}
+
+	/**
+	 * @param buffer the start of a message
+	 * @param length number of bytes in buffer
+	 * @return whether the bytes hold a whole binary frame (or a header no 
+	 * frame can have, which is as complete as it will get). XML is only 
+	 * complete at end of stream.
+	 */
+	static boolean isCompleteFrame(byte[] buffer, int length) {
+		if (length < BinaryCodec.HEADER_SIZE || (buffer[0] & 0xff) != BinaryCodec.MAGIC) {
+			return false;
+		}
+		int payload = ((buffer[1] & 0xff) << 24) | ((buffer[2] & 0xff) << 16) 
+				| ((buffer[3] & 0xff) << 8) | (buffer[4] & 0xff);
+		if (payload < 0 || payload > BinaryCodec.MAX_FRAME_SIZE) {
+			return true;
+		}
+		return length >= BinaryCodec.HEADER_SIZE + payload;
+	}
+
+	/**
+	 * Sends a message. A reply goes out in the format of the request it 
+	 * answers; a request on a new connection goes out in binary unless the 
+	 * peer is known to be XML-only. XML messages end with shutdownOutput().
+	 * @param connection
+	 * @param fields
+	 * @throws IOException
+	 */
+	static void send(Socket connection, MessageFields fields) throws IOException {
+		Connection state = state(connection);
+		if (state.binary == null) {
+			state.binary = Boolean.valueOf(binaryEnabled && !xmlOnlyPeers.contains(peer(connection)));
+		}
+		state.awaitingReply = true;
+		if (state.binary.booleanValue()) {
+			try {
+				connection.getOutputStream().write(BinaryCodec.write(fields));
+				connection.getOutputStream().flush();
+			} catch (IOException e) {
+				if (!state.reused) {
+					throw e;
+				}
+				// the server closed the idle connection; receiveReply() resends
+				state.stale = true;
+			}
+		} else {
+			PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
+			out.println(XMLCodec.write(fields.msgType, fields.key, fields.value, fields.message, fields.tpcOpId));
+			connection.shutdownOutput();
+		}
+	}
+
+	/**
+	 * Receives a request, remembering its format for the reply
+	 * @param connection
+	 * @return the fields of the message
+	 * @throws KVException if the message cannot be parsed
+	 * @throws SocketTimeoutException
+	 * @throws IOException
+	 */
+	static MessageFields receive(Socket connection) throws KVException, SocketTimeoutException, IOException {
+		Connection state = state(connection);
+		byte[] framed = state.framed;
+		if (framed != null) {
+			state.framed = null;
+			state.awaitingReply = false;
+			InputStream input = new ByteArrayInputStream(framed);
+			return decode(input.read(), input, connection);
+		}
+		int first = state.pushedBack;
+		if (first >= 0) {
+			state.pushedBack = -1;
+		} else {
+			first = connection.getInputStream().read();
+		}
+		state.awaitingReply = false;
+		return decode(first, connection.getInputStream(), connection);
+	}
+
+	/**
+	 * Receives the reply to a request sent with {@link #send(Socket, MessageFields)}.
+	 * If the server did not understand a binary request, or closed a reused 
+	 * connection before the request could be written to it, the request is 
+	 * sent again on a new connection. A connection that breaks after the 
+	 * request was written is not retried, since the server may have acted on
+	 * the request; the caller decides whether sending it again is safe.
+	 * @param connection
+	 * @param request
+	 * @return the fields of the reply
+	 * @throws KVException if the reply cannot be parsed
+	 * @throws SocketTimeoutException
+	 * @throws IOException if the connection broke before the whole reply arrived
+	 */
+	static MessageFields receiveReply(Socket connection, MessageFields request) 
+			throws KVException, SocketTimeoutException, IOException {
+		Connection state = state(connection);
+		boolean sentBinary = Boolean.TRUE.equals(state.binary);
+		int first = -1;
+		if (!state.stale) {
+			try {
+				first = connection.getInputStream().read();
+			} catch (SocketTimeoutException e) {
+				throw e;
+			} catch (IOException e) {
+				if (!state.reused) {
+					throw e;
+				}
+			}
+		}
+		if (!state.stale && first < 0) {
+			throw new IOException("Connection closed before the reply");
+		}
+		if (state.stale || (sentBinary && first != BinaryCodec.MAGIC)) {
+			boolean asXML = !state.stale;
+			if (asXML) {
+				xmlOnlyPeers.add(peer(connection));
+			}
+			SocketAddress address = connection.getRemoteSocketAddress();
+			int timeout = connection.getSoTimeout();
+			closeQuietly(connection);
+			return resend(address, timeout, state.pool, request, asXML);
+		}
+		MessageFields reply = decode(first, connection.getInputStream(), connection);
+		state.awaitingReply = false;
+		return reply;
+	}
+
+	/**
+	 * Reads a message in either format from a stream
+	 * @param input
+	 * @return the fields of the message
+	 * @throws KVException if the message cannot be parsed
+	 * @throws SocketTimeoutException
+	 */
+	static MessageFields read(InputStream input) throws KVException, SocketTimeoutException {
+		try {
+			return decode(input.read(), input, null);
+		} catch (SocketTimeoutException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("XML Error: Received unparseable message"));
+		}
+	}
+
+	/**
+	 * @param first the first byte of the message, already read from input
+	 * @param input
+	 * @param connection socket to remember the format for, or null
+	 */
+	private static MessageFields decode(int first, InputStream input, Socket connection) 
+			throws KVException, SocketTimeoutException {
+		if (first == BinaryCodec.MAGIC) {
+			if (connection != null) {
+				state(connection).binary = Boolean.TRUE;
+			}
+			return BinaryCodec.read(input);
+		}
+		if (connection != null) {
+			state(connection).binary = Boolean.FALSE;
+		}
+		if (first < 0) {
+			throw new KVException(new KVMessage("XML Error: Received unparseable message"));
+		}
+		InputStream whole = new SequenceInputStream(new ByteArrayInputStream(new byte[] { (byte) first }), input);
+		return XMLCodec.read(whole);
+	}
+
+	/**
+	 * Sends a request again on a fresh connection to the same server (from 
+	 * the same pool, if the first one was pooled); the reply is read from 
+	 * there and the fresh connection is recycled.
+	 */
+	private static MessageFields resend(SocketAddress address, int timeout, ConnectionPool pool, 
+			MessageFields request, boolean asXML) throws KVException, SocketTimeoutException, IOException {
+		Socket retry;
+		if (pool != null) {
+			retry = pool.open();
+		} else {
+			retry = new Socket();
+			retry.connect(address);
+		}
+		boolean done = false;
+		try {
+			retry.setSoTimeout(timeout);
+			Connection state = state(retry);
+			if (asXML) {
+				state.binary = Boolean.FALSE;
+			}
+			send(retry, request);
+			MessageFields reply = receiveReply(retry, request);
+			done = true;
+			return reply;
+		} finally {
+			if (done) {
+				recycle(retry);
+			} else {
+				closeQuietly(retry);
+			}
+		}
+	}
+
+	private static String peer(Socket connection) {
+		return connection.getInetAddress().getHostAddress() + ":" + connection.getPort();
+	}
+
+	static void closeQuietly(Socket connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// nothing left to do with it
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class WireProtocolTest {
+
+	// tests that a binary frame gives back exactly the strings that went in
+	@Test
+	public void testBinaryRoundTrip() throws Exception {
+		TPCMessage sent = new TPCMessage("putreq", KVMessage.encodeObject("key"), 
+				KVMessage.encodeObject("value"), "42");
+		byte[] frame = BinaryCodec.write(MessageFields.of(sent));
+		assertEquals(BinaryCodec.MAGIC, frame[0] & 0xff);
+		assertTrue(frame.length < sent.toXML().length());
+
+		TPCMessage received = new TPCMessage(new ByteArrayInputStream(frame));
+		assertTrue(sent.equals(received));
+		assertEquals("value", KVMessage.decodeObject(received.getValue()));
+	}
+
+	// tests that fields which are not Base64 and unknown types survive as text
+	@Test
+	public void testBinaryText() throws Exception {
+		KVMessage sent = new KVMessage("someType", "not base64!", "abcd");
+		KVMessage received = new KVMessage(new ByteArrayInputStream(BinaryCodec.write(MessageFields.of(sent))));
+		assertEquals("someType", received.getMsgType());
+		assertEquals("not base64!", received.getKey());
+		assertEquals("abcd", received.getValue());
+	}
+
+	// tests that a field longer than its frame is refused before it is allocated
+	@Test
+	public void testOversizedField() throws Exception {
+		byte[] frame = { (byte) BinaryCodec.MAGIC, 0, 0, 0, 6, 0, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0 };
+		try {
+			new KVMessage(new ByteArrayInputStream(frame));
+			fail("a field of 2 GB was accepted");
+		} catch (KVException e) {
+			assertEquals("Network Error: Received malformed binary message", e.getMsg().getMessage());
+		}
+	}
+
+	// tests that the same constructor still reads XML
+	@Test
+	public void testXMLStillAccepted() throws Exception {
+		KVMessage sent = new KVMessage("getreq", "key", null);
+		KVMessage received = new KVMessage(new ByteArrayInputStream(sent.toXML().getBytes("UTF-8")));
+		assertEquals("getreq", received.getMsgType());
+		assertEquals("key", received.getKey());
+	}
+
+	// tests that a request to a server that only speaks XML is sent again as XML
+	@Test
+	public void testFallbackToXML() throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		Thread oldServer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 2; i++) {
+						Socket client = server.accept();
+						InputStream in = client.getInputStream();
+						String reply;
+						if (in.read() == '<') {
+							reply = new KVMessage("Success").toXML();
+						} else {
+							reply = new KVMessage("XML Error: Received unparseable message").toXML();
+						}
+						PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+						out.println(reply);
+						client.close();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		oldServer.start();
+
+		MessageFields request = MessageFields.of(new KVMessage("getreq", "key", null));
+		Socket connection = new Socket(InetAddress.getLocalHost(), server.getLocalPort());
+		WireProtocol.send(connection, request);
+		MessageFields reply = WireProtocol.receiveReply(connection, request);
+		connection.close();
+		assertEquals("Success", reply.message);
+
+		oldServer.join();
+		server.close();
+	}
+
+	/**
+	 * Starts a SocketServer that answers every request with its key, and 
+	 * remembers each distinct connection it was handed
+	 */
+	static SocketServer startEchoServer(final Set<Socket> seen) throws IOException {
+		return startEchoServer(seen, 0);
+	}
+
+	/**
+	 * @param ioThreads 0 for a blocking server, or the number of selector threads
+	 */
+	static SocketServer startEchoServer(final Set<Socket> seen, int ioThreads) throws IOException {
+		return startServer(new FramedNetworkHandler() {
+			public void handle(Socket client) throws IOException {
+				seen.add(client);
+				try {
+					KVMessage request = new KVMessage(WireProtocol.receive(client));
+					KVMessage.sendMessage(client, new KVMessage("resp", request.getKey(), null));
+				} catch (KVException e) {
+					KVMessage.sendMessage(client, e.getMsg());
+				}
+			}
+		}, ioThreads);
+	}
+
+	/**
+	 * Starts a SocketServer with the given handler
+	 * @param ioThreads 0 for a blocking server, or the number of selector threads
+	 */
+	static SocketServer startServer(FramedNetworkHandler handler, int ioThreads) throws IOException {
+		final SocketServer server = new SocketServer(InetAddress.getLocalHost().getHostAddress());
+		server.setIOThreads(ioThreads);
+		server.addHandler(handler);
+		server.connect();
+		Thread serverThread = new Thread() {
+			public void run() {
+				try {
+					server.run();
+				} catch (IOException e) {
+					// the test closed the server
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+		return server;
+	}
+
+	private String echo(SocketServer server, String key) throws Exception {
+		return echo(WireProtocol.connect(server.getHostname(), server.getPort()), key);
+	}
+
+	/**
+	 * Sends one request to an echo server and recycles the connection
+	 */
+	static String echo(Socket connection, String key) throws Exception {
+		MessageFields request = MessageFields.of(new KVMessage("getreq", key, null));
+		WireProtocol.send(connection, request);
+		MessageFields reply = WireProtocol.receiveReply(connection, request);
+		WireProtocol.recycle(connection);
+		return reply.key;
+	}
+
+	// tests that consecutive requests to one server share a connection
+	@Test
+	public void testKeepAlive() throws Exception {
+		Set<Socket> seen = Collections.synchronizedSet(new HashSet<Socket>());
+		SocketServer server = startEchoServer(seen);
+		for (int i = 0; i < 5; i++) {
+			assertEquals("key" + i, echo(server, "key" + i));
+		}
+		assertEquals(1, seen.size());
+		server.server.close();
+	}
+
+	// tests that a pooled connection the server has since closed is replaced before a request goes out on it
+	@Test
+	public void testStaleConnection() throws Exception {
+		Set<Socket> seen = Collections.synchronizedSet(new HashSet<Socket>());
+		SocketServer server = startEchoServer(seen);
+		server.setIdleTimeout(100);
+		ConnectionPool pool = new ConnectionPool(server.getHostname(), server.getPort(), 1, 1);
+		pool.setTimeouts(ConnectionPool.DEFAULT_IDLE_TIMEOUT, 50);
+		assertEquals("first", echo(pool.borrow(), "first"));
+		Thread.sleep(500);
+		assertEquals("second", echo(pool.borrow(), "second"));
+		assertEquals(2, seen.size());
+		server.server.close();
+	}
+
+	// tests that a request whose reply was lost is reported rather than sent again
+	@Test
+	public void testLostReply() throws Exception {
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		SocketServer server = startServer(new FramedNetworkHandler() {
+			public void handle(Socket client) throws IOException {
+				try {
+					KVMessage request = new KVMessage(WireProtocol.receive(client));
+					received.add(request.getKey());
+					if (request.getKey().equals("drop")) {
+						client.close();
+						return;
+					}
+					KVMessage.sendMessage(client, new KVMessage("resp", request.getKey(), null));
+				} catch (KVException e) {
+					KVMessage.sendMessage(client, e.getMsg());
+				}
+			}
+		}, 0);
+		ConnectionPool pool = new ConnectionPool(server.getHostname(), server.getPort(), 1, 1);
+		assertEquals("first", echo(pool.borrow(), "first"));
+		try {
+			echo(pool.borrow(), "drop");
+			fail("the lost reply was not reported");
+		} catch (IOException e) {
+			// the server may have acted on the request
+		}
+		assertEquals(2, received.size());
+		server.server.close();
+	}
+}
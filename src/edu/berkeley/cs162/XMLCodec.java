@@ -0,0 +1,207 @@
+/**
+ * Streaming reader and writer for the XML wire format
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads and writes KVMessage and TPCMessage XML without building a DOM. The
+ * writer produces exactly what the old DOM + Transformer code did:
+ *
+ * <pre>
+ * &lt;?xml version="1.0" encoding="UTF-8"?&gt;
+ * &lt;KVMessage type="..."&gt;
+ * &lt;Key&gt;...&lt;/Key&gt;
+ * &lt;Value&gt;...&lt;/Value&gt;
+ * &lt;Message&gt;...&lt;/Message&gt;
+ * &lt;TPCOpId&gt;...&lt;/TPCOpId&gt;
+ * &lt;/KVMessage&gt;
+ * </pre>
+ *
+ * where absent fields are left out (a message with no fields at all is the 
+ * empty element &lt;KVMessage type="..."/&gt;). One StAX factory is shared by
+ * all readers.
+ */
+final class XMLCodec {
+	private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+
+	private static final XMLInputFactory inputFactory = createInputFactory();
+
+	private XMLCodec() {
+	}
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// messages never carry a DTD, and must not be able to pull in files
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		return factory;
+	}
+
+	/**
+	 * @param msgType
+	 * @param key
+	 * @param value
+	 * @param message
+	 * @param tpcOpId
+	 * @return the XML for a message; null fields are left out
+	 */
+	static String write(String msgType, String key, String value, String message, String tpcOpId) {
+		StringBuilder xml = new StringBuilder(HEADER.length() + 64
+				+ length(key) + length(value) + length(message) + length(tpcOpId));
+		xml.append(HEADER);
+		xml.append("<KVMessage type=\"");
+		escape(xml, msgType, true);
+		if (key == null && value == null && message == null && tpcOpId == null) {
+			// an element without children is written in its short form
+			xml.append("\"/>\n");
+			return xml.toString();
+		}
+		xml.append("\">\n");
+		element(xml, "Key", key);
+		element(xml, "Value", value);
+		element(xml, "Message", message);
+		element(xml, "TPCOpId", tpcOpId);
+		xml.append("</KVMessage>\n");
+		return xml.toString();
+	}
+
+	private static int length(String field) {
+		return (field == null) ? 0 : field.length() + 20;
+	}
+
+	private static void element(StringBuilder xml, String tag, String text) {
+		if (text == null) {
+			return;
+		}
+		xml.append('<').append(tag).append('>');
+		escape(xml, text, false);
+		xml.append("</").append(tag).append(">\n");
+	}
+
+	private static void escape(StringBuilder xml, String text, boolean attribute) {
+		if (text == null) {
+			return;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '&': xml.append("&amp;"); break;
+			case '<': xml.append("&lt;"); break;
+			case '>': xml.append("&gt;"); break;
+			case '\r': xml.append("&#13;"); break;
+			case '"': xml.append(attribute ? "&quot;" : "\""); break;
+			case '\n': xml.append(attribute ? "&#10;" : "\n"); break;
+			case '\t': xml.append(attribute ? "&#9;" : "\t"); break;
+			default: xml.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Reads one message from the stream, up to the end of its root element. 
+	 * The stream is not closed.
+	 * @param input
+	 * @return the fields of the message
+	 * @throws KVException if the input is not a well-formed message
+	 * @throws SocketTimeoutException if the socket timed out while reading
+	 */
+	static MessageFields read(InputStream input) throws KVException, SocketTimeoutException {
+		MessageFields fields = new MessageFields();
+		XMLStreamReader reader = null;
+		try {
+			reader = inputFactory.createXMLStreamReader(input);
+			boolean inMessage = false;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT && "KVMessage".equals(reader.getLocalName())) {
+					break;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String tag = reader.getLocalName();
+				if ("KVMessage".equals(tag)) {
+					inMessage = true;
+					String type = reader.getAttributeValue(null, "type");
+					fields.msgType = (type == null) ? "" : type;
+				} else if ("Key".equals(tag)) {
+					fields.key = reader.getElementText();
+				} else if ("Value".equals(tag)) {
+					fields.value = reader.getElementText();
+				} else if ("Message".equals(tag)) {
+					fields.message = reader.getElementText();
+				} else if ("TPCOpId".equals(tag)) {
+					fields.tpcOpId = reader.getElementText();
+				}
+			}
+			if (!inMessage) {
+				throw new KVException(new KVMessage("XML Error: Received unparseable message"));
+			}
+		} catch (XMLStreamException e) {
+			SocketTimeoutException timeout = findTimeout(e);
+			if (timeout != null) {
+				throw timeout;
+			}
+			throw new KVException(new KVMessage("XML Error: Received unparseable message"));
+		} finally {
+			if (reader != null) {
+				try {
+					// does not close the underlying stream
+					reader.close();
+				} catch (XMLStreamException e) {
+					// nothing left to clean up
+				}
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * StAX wraps I/O errors, so look for a socket timeout in the cause chain
+	 */
+	private static SocketTimeoutException findTimeout(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SocketTimeoutException) {
+				return (SocketTimeoutException) cause;
+			}
+			if (cause instanceof XMLStreamException
+					&& ((XMLStreamException) cause).getNestedException() instanceof SocketTimeoutException) {
+				return (SocketTimeoutException) ((XMLStreamException) cause).getNestedException();
+			}
+		}
+		return null;
+	}
+}